@@ -16,14 +16,18 @@ case object CachingDebugAnnotation extends NoTargetAnnotation
 
 private object Caching {
   // change this string everytime you update the caching mechanism in order to invalidate any old caches
-  private val VersionNumber = "1"
-
-  def cacheSimulationBin(
-    simName:  String,
-    state:    CircuitState,
-    makeBin:  CircuitState => SimulatorContext,
-    reuseBin: CircuitState => SimulatorContext
-  ): SimulatorContext = {
+  private val VersionNumber = "2"
+
+  /** @param artifacts files in the target directory that `reuseBin` needs, they are kept in the
+    *                  [[SimulationCache]] if the state has a [[SimulationCacheAnnotation]]
+    */
+  def cacheSimulationBin[T](
+    simName:   String,
+    state:     CircuitState,
+    makeBin:   CircuitState => T,
+    reuseBin:  CircuitState => T,
+    artifacts: Seq[os.RelPath] = Seq()
+  ): T = {
     if (!shouldCache(state)) return makeBin(state)
     val debug = state.annotations.contains(CachingDebugAnnotation)
 
@@ -35,18 +39,31 @@ private object Caching {
         s"targetDir: $targetDir; oldHash: $oldHash; newHash: $newHash; oldHash.contains(newHash): ${oldHash.contains(newHash)}"
       )
     }
+    val shared = state.annotations.collectFirst { case a: SimulationCacheAnnotation => a }
+      .filter(_ => artifacts.nonEmpty)
+      .map(SimulationCache(_))
+    lazy val sharedKey = hashShared(simName, state)
     if (oldHash.contains(newHash)) {
       if (debug) { println(s"Re-using compiled simulation in $targetDir") }
       reuseBin(state)
+    } else if (shared.exists(_.restore(sharedKey, targetDir, artifacts))) {
+      if (debug) { println(s"Re-using compiled simulation $sharedKey from the simulation cache") }
+      saveHash(targetDir, newHash)
+      reuseBin(state)
     } else {
-      val ctx = makeBin(state)
+      val bin = makeBin(state)
       saveHash(targetDir, newHash)
-      ctx
+      shared.foreach(_.store(sharedKey, targetDir, artifacts))
+      bin
     }
   }
 
   def shouldCache(state: CircuitState): Boolean = {
-    state.annotations.contains(CachingAnnotation)
+    state.annotations.exists {
+      case CachingAnnotation             => true
+      case _: SimulationCacheAnnotation => true
+      case _ => false
+    }
   }
 
   private def saveHash(targetDir: os.Path, value: String): Unit = {
@@ -63,6 +80,14 @@ private object Caching {
     hashStrings(values)
   }
 
+  // independent of the target directory and of the JVM, but sensitive to every name in the circuit,
+  // since the coverage annotations that are cached with the simulation refer to them
+  private def hashShared(simName: String, state: CircuitState): String = {
+    val annos = state.annotations.filterNot(_.isInstanceOf[firrtl.options.TargetDirAnnotation])
+    val values = Seq(VersionNumber, simName, firrtlVersionString, state.circuit.serialize, annotationHash(annos))
+    hashStrings(values)
+  }
+
   private def circuitHash(circuit: ir.Circuit): String = {
     val values = circuit.modules
       .sortBy(_.name)
@@ -78,12 +103,15 @@ private object Caching {
   private def annotationHash(annos: AnnotationSeq): String = {
     val relevant = annos.filterNot(ignoreAnno)
     // we serialize every annotation individually so that we can later sort them
-    val values = relevant.map(a => JsonProtocol.serialize(Seq(a))).sorted
+    val values = relevant.map(a => Try(JsonProtocol.serialize(Seq(a))).getOrElse(a.toString)).sorted
     hashStrings(values)
   }
 
-  private def ignoreAnno(a: Annotation): Boolean = {
-    false
+  private def ignoreAnno(a: Annotation): Boolean = a match {
+    case _: SimulatorRuntimeAnnotation => true
+    case _: SimulationCacheAnnotation  => true
+    case CachingDebugAnnotation        => true
+    case _ => false
   }
 
   private def hashStrings(values: Seq[String]): String = {
@@ -0,0 +1,86 @@
+// SPDX-License-Identifier: Apache-2.0
+
+package chiseltest.simulator
+
+import firrtl.annotations.NoTargetAnnotation
+
+import scala.util.Try
+
+/** Keeps compiled simulations in a directory that is shared by all target directories and runs.
+  * A simulation is looked up by the hash of the circuit, the annotations and the simulator version, so a
+  * design that was compiled before is copied out of the cache instead of being compiled again.
+  * Implies [[chiseltest.internal.CachingAnnotation]].
+  * @param dir cache directory, defaults to `$CHISELTEST_CACHE_DIR` or `~/.cache/chiseltest/simulations`
+  * @param maxSizeMB the least recently used simulations are removed once the cache grows beyond this size
+  */
+case class SimulationCacheAnnotation(dir: String = "", maxSizeMB: Long = 4096) extends NoTargetAnnotation
+
+/** An annotation that only configures how a compiled simulation is used, e.g. by a test harness,
+  * and therefore does not invalidate cached simulations.
+  */
+trait SimulatorRuntimeAnnotation extends NoTargetAnnotation
+
+/** A content-addressed store of simulation binaries, one directory per hash.
+  * Entries are written into a temporary directory first and then renamed, so several processes can share the
+  * cache. The modification time of an entry is updated whenever it is used and determines the eviction order.
+  */
+private class SimulationCache(dir: os.Path, maxBytes: Long) {
+
+  /** Copies the `artifacts` of the entry `key` into `targetDir`.
+    * @return false if the entry does not exist or could not be copied
+    */
+  def restore(key: String, targetDir: os.Path, artifacts: Seq[os.RelPath]): Boolean = {
+    val entry = dir / key
+    val copied = Try {
+      if (!artifacts.forall(a => os.isFile(entry / a))) { false }
+      else {
+        artifacts.foreach(a => os.copy.over(entry / a, targetDir / a, createFolders = true))
+        os.mtime.set(entry, System.currentTimeMillis())
+        true
+      }
+    }
+    copied.getOrElse(false)
+  }
+
+  /** Adds the `artifacts` in `targetDir` as entry `key`, unless another process was faster.
+    * Errors are ignored, the cache is only an optimization.
+    */
+  def store(key: String, targetDir: os.Path, artifacts: Seq[os.RelPath]): Unit = {
+    val tmp = dir / s".tmp-$key-${ProcessHandle.current().pid()}-${System.nanoTime()}"
+    Try {
+      artifacts.foreach(a => os.copy.over(targetDir / a, tmp / a, createFolders = true))
+      if (!os.exists(dir / key)) {
+        os.move(tmp, dir / key, atomicMove = true)
+      }
+    }
+    Try(os.remove.all(tmp))
+    Try(evict(keep = key))
+  }
+
+  private def evict(keep: String): Unit = {
+    val entries = os.list(dir).filter(e => os.isDir(e) && !e.last.startsWith(".")).map { e =>
+      (e, os.mtime(e), os.walk(e).filter(os.isFile).map(os.size).sum)
+    }
+    var size = entries.map(_._3).sum
+    entries.sortBy(_._2).foreach { case (e, _, bytes) =>
+      if (size > maxBytes && e.last != keep) {
+        Try(os.remove.all(e))
+        size -= bytes
+      }
+    }
+  }
+}
+
+private object SimulationCache {
+  def apply(anno: SimulationCacheAnnotation): SimulationCache = {
+    val dir = if (anno.dir.nonEmpty) { os.Path(anno.dir, os.pwd) }
+    else {
+      sys.env.get("CHISELTEST_CACHE_DIR") match {
+        case Some(d) => os.Path(d, os.pwd)
+        case None    => os.home / ".cache" / "chiseltest" / "simulations"
+      }
+    }
+    os.makeDir.all(dir)
+    new SimulationCache(dir, anno.maxSizeMB << 20)
+  }
+}
@@ -24,6 +24,57 @@ trait SimulatorContext {
   /** Change the value of an input port on the top-level module. */
   def poke(signal: String, value: BigInt): Unit
 
+  /** Resolves a port of the top-level module once, so that it can be accessed through `pokeLong`, `peekLong`,
+    * `pokeWide` and `peekWide` without looking it up by name.
+    */
+  def getHandle(signal: String): SignalHandle = new SignalHandle(signal, -1)
+
+  /** Same as `poke(handle.name, value)`.
+    * @note the Verilator backend neither looks up the signal nor allocates
+    */
+  def pokeLong(handle: SignalHandle, value: Long): Unit = poke(handle.name, value)
+
+  /** Returns the lowest 64 bits of `peek(handle.name)`, i.e. the sign-extended value of a signed port
+    * that is at most 64 bits wide.
+    */
+  def peekLong(handle: SignalHandle): Long = peek(handle.name).toLong
+
+  /** Changes bits `64 * word` until `64 * word + 63` of an input port, the other bits keep their value. */
+  def pokeWide(handle: SignalHandle, word: Int, value: Long): Unit = {
+    val mask = ((BigInt(1) << 64) - 1) << (64 * word)
+    val bits = (BigInt(value) << (64 * word)) & mask
+    poke(handle.name, (peek(handle.name) & ~mask) | bits)
+  }
+
+  /** Returns bits `64 * word` until `64 * word + 63` of `peek(handle.name)`. */
+  def peekWide(handle: SignalHandle, word: Int): Long = (peek(handle.name) >> (64 * word)).toLong
+
+  /** Makes `step` check `signal` before every cycle and remember whether it was ever 1, which is cheaper than
+    * peeking it every cycle. The signal is usually the `assert_failed` output that fuzzing adds to the design.
+    * @return false if the simulator does not support this, in which case the caller needs to peek the signal
+    */
+  def setAssertLatch(signal: String): Boolean = false
+
+  /** Returns whether the signal passed to `setAssertLatch` was 1 before any cycle stepped since the last call,
+    * and clears the latch.
+    */
+  def takeAssertLatch(): Boolean =
+    throw new NotImplementedError(s"${sim.name} does not support latching an assert signal!")
+
+  /** Steps the main clock until `peekLong(handle) == value`, but at most `maxCycles` times. The signal is checked
+    * before every cycle and after the last one. Stops and interrupts do not end the execution.
+    * @note the Verilator backend waits natively, for ports that are at most 64 bits wide
+    */
+  def stepUntil(handle: SignalHandle, value: Long, maxCycles: Int): StepUntilResult = {
+    var cycles = 0
+    while (peekLong(handle) != value) {
+      if (cycles >= maxCycles) { return StepUntilResult(cycles, timedOut = true) }
+      step(1)
+      cycles += 1
+    }
+    StepUntilResult(cycles, timedOut = false)
+  }
+
   /** Returns the latest value of a memory location. Only supported by some simulators.
     * @note the simulator has to take care of recomputing signals after any change
     */
@@ -57,8 +108,177 @@ trait SimulatorContext {
 
   def getFastCoverage(): Array[Int] =
     throw new NotImplementedError(s"${sim.name} does not support fast coverage!")
+
+  /** Saves the current state of the design, so that `restore` can return to it without re-simulating.
+    * @note coverage counters are not part of the snapshot
+    * @return false if the simulator does not support snapshots
+    */
+  def snapshot(): Boolean = false
+
+  /** Returns the design to the state saved by the last call to `snapshot`.
+    * @return false if there is no snapshot to restore
+    */
+  def restore(): Boolean = false
+
+  /** Size in bytes of the buffers used by `saveState` and `loadState`, 0 if they are not supported. */
+  def getStateSize(): Int = 0
+
+  /** Like `snapshot`, but copies the state of the design into `dst`, so that the caller can keep several states.
+    * @note a state can only be loaded into the context that saved it
+    * @return false if the state could not be saved
+    */
+  def saveState(dst: java.nio.ByteBuffer): Boolean = false
+
+  /** Returns the design to a state saved with `saveState`.
+    * @return false if the state could not be loaded
+    */
+  def loadState(src: java.nio.ByteBuffer): Boolean = false
+
+  /** Returns the number of counters returned by `getFastCoverage`. */
+  def getFastCoverageSize(): Int = getFastCoverage().length
+
+  /** Writes one 32-bit entry `(index << 8) | min(count, cap)` in native byte order to `dst` for every
+    * fast coverage counter that was hit since the last `resetCoverage`.
+    * @note the Verilator backend only visits the counters that were hit, independent of the design size
+    * @return the number of entries written to `dst`
+    */
+  def getSparseFastCoverage(dst: java.nio.ByteBuffer, cap: Int): Int = {
+    val c = getFastCoverage()
+    val out = dst.duplicate().order(java.nio.ByteOrder.nativeOrder())
+    val saturation = math.max(0, math.min(cap, 255))
+    val size = dst.capacity() / 4
+    var n = 0
+    var i = 0
+    while (i < c.length && n < size) {
+      if (c(i) != 0) {
+        out.putInt(n * 4, (i << 8) | math.min(c(i), saturation))
+        n += 1
+      }
+      i += 1
+    }
+    n
+  }
+
+  /** Replaces the fast coverage counters with the first `entries` entries of `src`, which are in the format
+    * written by `getSparseFastCoverage`. All other counters are set to zero.
+    */
+  def setSparseFastCoverage(src: java.nio.ByteBuffer, entries: Int): Unit =
+    throw new NotImplementedError(s"${sim.name} does not support setting the fast coverage!")
+
+  /** Executes one cycle per frame: pokes the inputs of `layout` with the values of the frame, checks the
+    * assert signal of `layout` and steps the clock. Stops and interrupts do not end the execution.
+    * @param src holds `frames` consecutive frames of `layout.frameBytes` bytes, starting at index 0
+    * @note the Verilator backend decodes the frames and steps natively if `src` is a direct buffer
+    */
+  def runFrames(layout: FrameLayout, src: java.nio.ByteBuffer, frames: Int): FrameResult = {
+    require(frames * layout.frameBytes <= src.capacity())
+    var assertFailed = false
+    var offset = 0
+    (0 until frames).foreach { _ =>
+      layout.inputs.foreach { case (name, width) =>
+        var value = BigInt(0)
+        (0 until (width + 7) / 8).foreach { _ =>
+          value = (value << 8) | (src.get(offset) & 0xff)
+          offset += 1
+        }
+        poke(name, value & ((BigInt(1) << width) - 1))
+      }
+      layout.assertSignal.foreach { signal => if (peek(signal) == 1) { assertFailed = true } }
+      step(1)
+    }
+    FrameResult(frames, assertFailed)
+  }
+
+  /** Runs a batch of inputs back to back, each one from the state saved by the last `snapshot` with all
+    * coverage counters reset, and writes the result of every input into row `i` of `results`.
+    * Input `i` consists of the next `frames(i)` frames of `layout` in `src`, the first input starts at index 0.
+    * @note the Verilator backend runs the whole batch in a single native call if `src` is a direct buffer
+    * @return false if there is no snapshot to start the inputs from
+    */
+  def runBatch(
+    layout:  FrameLayout,
+    src:     java.nio.ByteBuffer,
+    frames:  Array[Int],
+    count:   Int,
+    cap:     Int,
+    results: BatchResults
+  ): Boolean = {
+    require(count <= frames.length && count <= results.capacity)
+    var offset = 0
+    var i = 0
+    while (i < count && restore()) {
+      resetCoverage()
+      val input = src.duplicate()
+      input.position(offset)
+      val r = runFrames(layout, input.slice(), frames(i))
+      results.set(i, r, getSparseFastCoverage(results.coverageRow(i), cap))
+      offset += frames(i) * layout.frameBytes
+      i += 1
+    }
+    i == count
+  }
+}
+
+/** The inputs that [[SimulatorContext.runFrames]] drives every cycle. A frame holds the value of each input
+  * in this order, big-endian in `(width + 7) / 8` bytes.
+  * @param inputs name and width of the inputs
+  * @param assertSignal an output that signals a failed assertion when it is 1 before a cycle
+  */
+case class FrameLayout(inputs: Seq[(String, Int)], assertSignal: Option[String] = None) {
+  val frameBytes: Int = inputs.map { case (_, width) => (width + 7) / 8 }.sum
 }
 
+/** Result of [[SimulatorContext.runFrames]].
+  * @param cycles number of frames that were executed
+  * @param assertFailed true if the assert signal was 1 before any of the cycles
+  */
+case class FrameResult(cycles: Int, assertFailed: Boolean)
+
+/** Preallocated results of [[SimulatorContext.runBatch]] for up to `capacity` inputs.
+  * Row `i` of the coverage matrix holds the coverage of input `i` in the format of
+  * [[SimulatorContext.getSparseFastCoverage]], with room for `coverageSize` entries.
+  * @param coverageSize number of fast coverage counters of the simulator, see [[SimulatorContext.getFastCoverageSize]]
+  */
+final class BatchResults(val capacity: Int, val coverageSize: Int) {
+  private[chiseltest] val coverage =
+    java.nio.ByteBuffer.allocateDirect(4 * capacity * math.max(coverageSize, 1)).order(java.nio.ByteOrder.nativeOrder())
+  // two 64-bit words per input: the frame result (cycles in the lower half, bit 32: assert, bit 33: fatal)
+  // followed by the number of coverage entries
+  private[chiseltest] val status =
+    java.nio.ByteBuffer.allocateDirect(16 * math.max(capacity, 1)).order(java.nio.ByteOrder.nativeOrder())
+
+  /** the coverage entries of input `i`, starting at index 0 */
+  def coverageRow(i: Int): java.nio.ByteBuffer = {
+    val row = coverage.duplicate()
+    row.position(4 * i * math.max(coverageSize, 1))
+    row.limit(4 * (i + 1) * math.max(coverageSize, 1))
+    row.slice().order(java.nio.ByteOrder.nativeOrder())
+  }
+  def coverageEntries(i: Int): Int = status.getLong(16 * i + 8).toInt
+  def cycles(i: Int): Int = (status.getLong(16 * i) & 0xffffffffL).toInt
+  def assertFailed(i: Int): Boolean = ((status.getLong(16 * i) >> 32) & 1) == 1
+  private[chiseltest] def encounteredFatal(i: Int): Boolean = ((status.getLong(16 * i) >> 33) & 1) == 1
+
+  private[chiseltest] def set(i: Int, result: FrameResult, entries: Int): Unit = {
+    status.putLong(16 * i, (result.cycles & 0xffffffffL) | (if (result.assertFailed) 1L << 32 else 0L))
+    status.putLong(16 * i + 8, entries)
+  }
+}
+
+/** A port of the top-level module, returned by [[SimulatorContext.getHandle]].
+  * @param name name of the port
+  * @param id index of the port in the simulator that resolved it, -1 if it is only known by name
+  */
+final class SignalHandle private[chiseltest] (val name: String, private[chiseltest] val id: Int) {
+  override def toString: String = s"SignalHandle($name)"
+}
+
+/** Result of [[SimulatorContext.stepUntil]].
+  * @param cycles number of cycles that were stepped
+  * @param timedOut true if the signal did not reach the value within the maximum number of cycles
+  */
+case class StepUntilResult(cycles: Int, timedOut: Boolean)
+
 sealed trait StepResult
 case object StepOk extends StepResult
 
@@ -93,6 +313,12 @@ trait Simulator {
     * @param state LoFirrtl circuit + annotations
     */
   def createContext(state: CircuitState): SimulatorContext
+
+  /** start `n` independent simulations of the same circuit
+    * @note the default calls `createContext` `n` times, the Verilator backend compiles the circuit only once
+    * @param state LoFirrtl circuit + annotations
+    */
+  def createContexts(state: CircuitState, n: Int): Seq[SimulatorContext] = Seq.fill(n)(createContext(state))
 }
 
 /** Defines a simulator backend that should be used. */
@@ -22,6 +22,18 @@ case class VerilatorCFlags(flags: Seq[String]) extends VerilatorOption
 /** adds flags to the linker in the Makefile generated by verilator */
 case class VerilatorLinkFlags(flags: Seq[String]) extends VerilatorOption
 
+/** builds a model that evaluates the design with `n` threads (Verilator's `--threads`), 1 for a single-threaded model;
+  * models with more than one thread do not support `snapshot` and `saveState`
+  */
+case class VerilatorThreads(n: Int) extends VerilatorOption {
+  require(n > 0, s"A model needs at least one thread, not $n")
+}
+
+/** calls into the simulation through the Java Foreign Function & Memory API instead of JNA,
+  * on Java versions that do not provide the API, JNA is used anyways
+  */
+case object VerilatorFFMBridge extends VerilatorOption
+
 private object VerilatorSimulator extends Simulator {
   override def name: String = "verilator"
 
@@ -64,35 +76,64 @@ private object VerilatorSimulator extends Simulator {
     *
     * @param state LoFirrtl circuit + annotations
     */
-  override def createContext(state: CircuitState): SimulatorContext = {
-    val simName = s"${VerilatorSimulator.name} ${VerilatorSimulator.majorVersion}.${VerilatorSimulator.minorVersion}"
-    Caching.cacheSimulationBin(simName, state, createContextFromScratch, recreateCachedContext)
+  override def createContext(state: CircuitState): SimulatorContext = createContexts(state, 1).head
+
+  /** Verilates and compiles the circuit once and loads the resulting library `n` times.
+    * Every load works on its own copy of the library, so the models and the Verilator runtime state
+    * of the contexts are independent of each other.
+    * @note all contexts share the target directory, and with it the waveform file. If there is more than one context,
+    *       context `i` writes its coverage to `coverage_<i>.dat`
+    */
+  override def createContexts(state: CircuitState, n: Int): Seq[SimulatorContext] = {
+    require(n > 0, s"Cannot create $n simulator contexts")
+    val simName = s"${VerilatorSimulator.name} ${VerilatorSimulator.majorVersion}.${VerilatorSimulator.minorVersion}" +
+      s" harness ${VerilatorCppJNAHarnessGenerator.Version}" +
+      VerilatorCoverage.CoveragePasses.map(_.transform.getClass.getName).mkString(" passes ", ",", "")
+    val build = Caching.cacheSimulationBin(simName, state, buildFromScratch, reuseCachedBuild, cachedArtifacts(state))
+    if (n == 1) { Seq(loadContext(state, build, build.targetDir / "coverage.dat")) }
+    else { Seq.tabulate(n)(i => loadContext(state, build, build.targetDir / s"coverage_$i.dat")) }
+  }
+
+  // the files that `reuseCachedBuild` needs; the harness refers to the waveform file by its absolute path,
+  // so simulations that dump waveforms are not shared with other target directories.
+  // The coverage file is passed to the harness when it is written.
+  private def cachedArtifacts(state: CircuitState): Seq[os.RelPath] = {
+    if (Simulator.getWavformFormat(state.annotations).nonEmpty) { Seq() }
+    else {
+      val toplevel = TopmoduleInfo(state.circuit)
+      Seq(os.RelPath("verilated") / ("V" + toplevel.name), os.RelPath("coverageAnnotations.json"))
+    }
   }
 
   private def getSimulatorArgs(state: CircuitState): Array[String] = {
     state.annotations.view.collect { case PlusArgsAnnotation(args) => args }.flatten.toArray
   }
 
-  private def recreateCachedContext(state: CircuitState): SimulatorContext = {
-    // we will create the simulation in the target directory
-    val targetDir = Compiler.requireTargetDir(state.annotations)
-    val toplevel = TopmoduleInfo(state.circuit)
+  /** a compiled simulation library and the coverage annotations needed to read its coverage file */
+  private case class Build(targetDir: os.Path, toplevel: TopmoduleInfo, libPath: os.Path, coverageAnnos: AnnotationSeq)
 
-    val libPath = targetDir / "verilated" / ("V" + toplevel.name)
-    // the binary we created communicates using our standard IPC interface
-    val coverageAnnos = loadCoverageAnnos(targetDir)
-    val coverageFile = targetDir / "coverage.dat"
+  private def loadContext(state: CircuitState, build: Build, coverageFile: os.Path): SimulatorContext = {
     def readCoverage(): List[(String, Long)] = {
       assert(os.exists(coverageFile), s"Could not find `$coverageFile` file!")
-      VerilatorCoverage.loadCoverage(coverageAnnos, coverageFile)
+      VerilatorCoverage.loadCoverage(build.coverageAnnos, coverageFile)
     }
 
     val args = getSimulatorArgs(state)
-    val lib = JNAUtils.compileAndLoadJNAClass(libPath)
-    new JNASimulatorContext(lib, targetDir, toplevel, VerilatorSimulator, args, Some(readCoverage))
+    val lib = JNAUtils.loadSharedLib(build.libPath, preferFFM = state.annotations.contains(VerilatorFFMBridge))
+    new JNASimulatorContext(lib, coverageFile, build.toplevel, VerilatorSimulator, args, Some(readCoverage))
+  }
+
+  private def reuseCachedBuild(state: CircuitState): Build = {
+    // we will create the simulation in the target directory
+    val targetDir = Compiler.requireTargetDir(state.annotations)
+    val toplevel = TopmoduleInfo(state.circuit)
+
+    val libPath = targetDir / "verilated" / ("V" + toplevel.name)
+    // the binary we created communicates using our standard IPC interface
+    Build(targetDir, toplevel, libPath, loadCoverageAnnos(targetDir))
   }
 
-  private def createContextFromScratch(state: CircuitState): SimulatorContext = {
+  private def buildFromScratch(state: CircuitState): Build = {
     // we will create the simulation in the target directory
     val targetDir = Compiler.requireTargetDir(state.annotations)
     val toplevel = TopmoduleInfo(state.circuit)
@@ -128,15 +169,7 @@ private object VerilatorSimulator extends Simulator {
     if (Caching.shouldCache(state)) {
       saveCoverageAnnos(targetDir, coverageAnnos)
     }
-    val coverageFile = targetDir / "coverage.dat"
-    def readCoverage(): List[(String, Long)] = {
-      assert(os.exists(coverageFile), s"Could not find `$coverageFile` file!")
-      VerilatorCoverage.loadCoverage(coverageAnnos, coverageFile)
-    }
-
-    val args = getSimulatorArgs(state)
-    val lib = JNAUtils.compileAndLoadJNAClass(libPath)
-    new JNASimulatorContext(lib, targetDir, toplevel, VerilatorSimulator, args, Some(readCoverage))
+    Build(targetDir, toplevel, libPath, coverageAnnos)
   }
 
   private def saveCoverageAnnos(targetDir: os.Path, annos: AnnotationSeq): Unit = {
@@ -149,7 +182,9 @@ private object VerilatorSimulator extends Simulator {
 
   private def compileSimulation(topName: String, verilatedDir: os.Path, verbose: Boolean): os.Path = {
     val target = s"V$topName"
-    val cmd = Seq("make", "-C", verilatedDir.toString(), "-j", "-f", s"V$topName.mk", target)
+    // VM_PARALLEL_BUILDS compiles the files of the model one by one instead of all at once, so that make can use every core
+    val jobs = Runtime.getRuntime.availableProcessors()
+    val cmd = Seq("make", "-C", verilatedDir.toString(), s"-j$jobs", "VM_PARALLEL_BUILDS=1", "-f", s"V$topName.mk", target)
     val ret = run(cmd, null, verbose)
     assert(
       ret.exitCode == 0,
@@ -244,8 +279,10 @@ private object VerilatorSimulator extends Simulator {
       case ""    => List()
       case other => throw new RuntimeException(s"Unsupported waveform format: $other")
     }
+    val threadFlags = annos.collectFirst { case VerilatorThreads(n) if n > 1 => List("--threads", n.toString) }
+      .getOrElse(List())
     val flags =
-      DefaultFlags(topName, verilatedDir, cFlags, ldFlags) ++ waveformFlags ++ BlackBox.fFileFlags(
+      DefaultFlags(topName, verilatedDir, cFlags, ldFlags) ++ waveformFlags ++ threadFlags ++ BlackBox.fFileFlags(
         targetDir
       ) ++ userFlags
     flags
@@ -265,7 +302,6 @@ private object VerilatorSimulator extends Simulator {
     val code = VerilatorCppJNAHarnessGenerator.codeGen(
       toplevel,
       vcdFile,
-      targetDir,
       majorVersion = majorVersion,
       minorVersion = minorVersion,
       verbose = verbose
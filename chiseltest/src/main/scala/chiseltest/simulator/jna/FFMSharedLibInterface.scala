@@ -0,0 +1,279 @@
+// SPDX-License-Identifier: Apache-2.0
+
+package chiseltest.simulator.jna
+
+import java.lang.invoke.{MethodHandle, MethodHandles, MethodType}
+import java.nio.{ByteBuffer, ByteOrder}
+import scala.util.Try
+
+/** Calls into the simulation library through downcall method handles of the Java Foreign Function & Memory API.
+  * Unlike the reflective calls of JNA, a call neither boxes its arguments nor allocates, and the coverage counters
+  * are read through a view of the native memory.
+  * @note the API is final since Java 22. It is only accessed reflectively, so that chiseltest still builds with
+  *       older Java versions, which load the library through [[JNASharedLibInterface]] instead.
+  */
+private[chiseltest] class FFMSharedLibInterface private (lib: FFMSharedLibInterface.Library)
+    extends TesterSharedLibInterface {
+  import FFMSharedLibInterface._
+
+  // the handles below expect the exact (erased) argument types, see `Library.function`
+  private val sPtr: Object = {
+    val init = lib.function("sim_init", Some(Ptr))
+    init.invokeExact()
+  }
+  private def method(name: String, result: Option[CType], args: CType*): MethodHandle =
+    lib.function(name, result, Ptr +: args: _*)
+
+  private val stepFoo = method("step", Some(I64), I32)
+  def step(cycles: Int): Long = stepFoo.invokeExact(sPtr, cycles)
+  private val updateFoo = method("update", None)
+  def update(): Unit = updateFoo.invokeExact(sPtr): Unit
+  private val snapshotFoo = method("snapshot", Some(I32))
+  def snapshot(): Boolean = (snapshotFoo.invokeExact(sPtr): Int) != 0
+  private val restoreFoo = method("restore", Some(I32))
+  def restore(): Boolean = (restoreFoo.invokeExact(sPtr): Int) != 0
+  private val stateBufferSizeFoo = method("stateBufferSize", Some(I32))
+  def stateBufferSize(): Int = stateBufferSizeFoo.invokeExact(sPtr)
+  private val saveStateFoo = method("saveState", Some(I32), Buf, I32)
+  def saveState(dst: ByteBuffer): Boolean = {
+    require(dst.isDirect, "the state can only be copied into a direct buffer")
+    (saveStateFoo.invokeExact(sPtr, dst, dst.capacity()): Int) != 0
+  }
+  private val loadStateFoo = method("loadState", Some(I32), Buf, I32)
+  def loadState(src: ByteBuffer): Boolean = {
+    require(src.isDirect, "the state can only be copied from a direct buffer")
+    (loadStateFoo.invokeExact(sPtr, src, src.capacity()): Int) != 0
+  }
+  private val finishFoo = method("finish", None)
+  def finish(): Unit = {
+    finishFoo.invokeExact(sPtr): Unit
+    lib.close()
+  }
+  private val resetCoverageFoo = method("resetCoverage", None)
+  def resetCoverage(): Unit = resetCoverageFoo.invokeExact(sPtr): Unit
+  private val writeCoverageFoo = method("writeCoverage", None, Ptr)
+  def writeCoverage(filename: String): Unit = lib.withTemporaryMemory { mem =>
+    val name = mem.string(filename)
+    writeCoverageFoo.invokeExact(sPtr, name): Unit
+  }
+
+  private val covFoo = method("getCovVector", Some(Ptr))
+  private val covSizeFoo = method("covVectorSize", Some(I32))
+  def fastCoverageSize(): Int = covSizeFoo.invokeExact(sPtr)
+  // the counters live as long as the model, so they are read in place instead of being copied by a native call
+  private lazy val covView: java.nio.IntBuffer = {
+    val covPtr: Object = covFoo.invokeExact(sPtr)
+    lib.view(covPtr, 4L * fastCoverageSize()).order(ByteOrder.nativeOrder()).asIntBuffer()
+  }
+  def getFastCoverage(): Array[Int] = {
+    val arr = new Array[Int](covView.capacity())
+    covView.duplicate().get(arr)
+    arr
+  }
+  private val copyCovSparseFoo = method("copyCovSparse", Some(I32), Buf, I32, I32)
+  def copySparseFastCoverage(dst: ByteBuffer, cap: Int): Int = {
+    require(dst.isDirect, "coverage can only be copied into a direct buffer")
+    copyCovSparseFoo.invokeExact(sPtr, dst, dst.capacity() / 4, cap)
+  }
+  private val setCovSparseFoo = method("setCovSparse", None, Buf, I32)
+  def setSparseFastCoverage(src: ByteBuffer, entries: Int): Unit = {
+    require(src.isDirect, "coverage can only be copied from a direct buffer")
+    require(entries <= src.capacity() / 4)
+    setCovSparseFoo.invokeExact(sPtr, src, entries): Unit
+  }
+
+  private val pokeFoo = method("poke", None, I32, I64)
+  def poke(id: Int, value: Long): Unit = pokeFoo.invokeExact(sPtr, id, value): Unit
+  private val peekFoo = method("peek", Some(I64), I32)
+  def peek(id: Int): Long = peekFoo.invokeExact(sPtr, id)
+  private val pokeWideFoo = method("poke_wide", None, I32, I32, I64)
+  def pokeWide(id: Int, offset: Int, value: Long): Unit = pokeWideFoo.invokeExact(sPtr, id, offset, value): Unit
+  private val peekWideFoo = method("peek_wide", Some(I64), I32, I32)
+  def peekWide(id: Int, offset: Int): Long = peekWideFoo.invokeExact(sPtr, id, offset)
+  private val setFrameLayoutFoo = method("set_frame_layout", None, Buf, Buf, I32, I32)
+  def setFrameLayout(ids: Array[Int], widths: Array[Int], assertId: Int): Unit = {
+    require(ids.length == widths.length)
+    val idBuffer = intBuffer(ids)
+    val widthBuffer = intBuffer(widths)
+    setFrameLayoutFoo.invokeExact(sPtr, idBuffer, widthBuffer, ids.length, assertId): Unit
+  }
+  private val runFramesFoo = method("run_frames", Some(I64), Buf, I32)
+  def runFrames(src: ByteBuffer, frames: Int): Long = {
+    require(src.isDirect, "frames can only be read from a direct buffer")
+    runFramesFoo.invokeExact(sPtr, src, frames)
+  }
+  private val setAssertSignalFoo = method("set_assert_signal", None, I32)
+  def setAssertSignal(id: Int): Unit = setAssertSignalFoo.invokeExact(sPtr, id): Unit
+  private val stepUntilFoo = method("step_until", Some(I64), I32, I64, I32)
+  def stepUntil(id: Int, value: Long, maxCycles: Int): Long = stepUntilFoo.invokeExact(sPtr, id, value, maxCycles)
+  private val runBatchFoo = method("run_batch", Some(I32), Buf, Buf, I32, I32, Buf, I32, Buf)
+  def runBatch(
+    src:    ByteBuffer,
+    frames: ByteBuffer,
+    n:      Int,
+    cap:    Int,
+    cov:    ByteBuffer,
+    covRow: Int,
+    status: ByteBuffer
+  ): Int = {
+    require(src.isDirect && frames.isDirect && cov.isDirect && status.isDirect, "batches can only use direct buffers")
+    require(n <= frames.capacity() / 4 && n * covRow <= cov.capacity() / 4 && n <= status.capacity() / 16)
+    runBatchFoo.invokeExact(sPtr, src, frames, n, cap, cov, covRow, status)
+  }
+  private val setArgsFoo = method("set_args", None, I32, Ptr)
+  def setArgs(args: Array[String]): Unit = lib.withTemporaryMemory { mem =>
+    val argv = mem.pointers(args.map(mem.string))
+    setArgsFoo.invokeExact(sPtr, args.length, argv): Unit
+  }
+
+  private def intBuffer(values: Array[Int]): ByteBuffer = {
+    val buffer = ByteBuffer.allocateDirect(4 * math.max(values.length, 1)).order(ByteOrder.nativeOrder())
+    buffer.asIntBuffer().put(values)
+    buffer
+  }
+}
+
+private[chiseltest] object FFMSharedLibInterface {
+
+  /** true if the running JVM provides the final version of the Foreign Function & Memory API */
+  lazy val isAvailable: Boolean =
+    Try(System.getProperty("java.specification.version").toInt >= 22 && api != null).getOrElse(false)
+
+  def load(libPath: os.Path): TesterSharedLibInterface = new FFMSharedLibInterface(new Library(libPath.toNIO))
+
+  /** argument and result types of the native functions */
+  private sealed trait CType
+  private case object I32 extends CType
+  private case object I64 extends CType
+
+  /** a pointer that is passed around as an opaque `MemorySegment` */
+  private case object Ptr extends CType
+
+  /** a pointer to the contents of a direct [[java.nio.ByteBuffer]] */
+  private case object Buf extends CType
+
+  private lazy val api = new Api
+
+  /** The parts of `java.lang.foreign` that we use, resolved by name. Only the downcall handles are used on the
+    * hot path, everything else is called while loading the library or for rare calls with string arguments.
+    */
+  private final class Api {
+    private def cls(name: String): Class[_] = Class.forName("java.lang.foreign." + name)
+    private def arrayOf(c: Class[_]): Class[_] = java.lang.reflect.Array.newInstance(c, 0).getClass
+    val Arena:              Class[_] = cls("Arena")
+    val SymbolLookup:       Class[_] = cls("SymbolLookup")
+    val Linker:             Class[_] = cls("Linker")
+    val LinkerOption:       Class[_] = cls("Linker$Option")
+    val FunctionDescriptor: Class[_] = cls("FunctionDescriptor")
+    val MemoryLayout:       Class[_] = cls("MemoryLayout")
+    val ValueLayout:        Class[_] = cls("ValueLayout")
+    val AddressLayout:      Class[_] = cls("AddressLayout")
+    val MemorySegment:      Class[_] = cls("MemorySegment")
+    val SegmentAllocator:   Class[_] = cls("SegmentAllocator")
+
+    private def layout(name: String): Object = ValueLayout.getField(name).get(null)
+    private val JavaInt = layout("JAVA_INT")
+    private val JavaLong = layout("JAVA_LONG")
+    val Address: Object = layout("ADDRESS")
+    val addressSize: Long = MemoryLayout.getMethod("byteSize").invoke(Address).asInstanceOf[Long]
+
+    def layoutOf(tpe: CType): Object = tpe match {
+      case I32       => JavaInt
+      case I64       => JavaLong
+      case Ptr | Buf => Address
+    }
+    def javaTypeOf(tpe: CType): Class[_] = tpe match {
+      case I32 => java.lang.Integer.TYPE
+      case I64 => java.lang.Long.TYPE
+      case Ptr => classOf[Object]
+      case Buf => classOf[ByteBuffer]
+    }
+
+    private val linker = Linker.getMethod("nativeLinker").invoke(null)
+    private val downcallHandleMethod = Linker.getMethod("downcallHandle", MemorySegment, FunctionDescriptor, arrayOf(LinkerOption))
+    private val descriptorOf = FunctionDescriptor.getMethod("of", MemoryLayout, arrayOf(MemoryLayout))
+    private val descriptorOfVoid = FunctionDescriptor.getMethod("ofVoid", arrayOf(MemoryLayout))
+    private val libraryLookupMethod = SymbolLookup.getMethod("libraryLookup", classOf[java.nio.file.Path], Arena)
+    private val findMethod = SymbolLookup.getMethod("find", classOf[String])
+    private val reinterpretMethod = MemorySegment.getMethod("reinterpret", java.lang.Long.TYPE)
+    private val asByteBufferMethod = MemorySegment.getMethod("asByteBuffer")
+    private val setAddressAtIndexMethod =
+      MemorySegment.getMethod("setAtIndex", AddressLayout, java.lang.Long.TYPE, MemorySegment)
+    private val allocateStringMethod = SegmentAllocator.getMethod("allocateFrom", classOf[String])
+    private val allocateMethod = SegmentAllocator.getMethod("allocate", java.lang.Long.TYPE)
+
+    /** MemorySegment.ofBuffer, which wraps a direct buffer without copying */
+    val ofBuffer: MethodHandle = MethodHandles
+      .publicLookup()
+      .findStatic(MemorySegment, "ofBuffer", MethodType.methodType(MemorySegment, classOf[java.nio.Buffer]))
+      .asType(MethodType.methodType(MemorySegment, classOf[ByteBuffer]))
+
+    def sharedArena(): AutoCloseable = Arena.getMethod("ofShared").invoke(null).asInstanceOf[AutoCloseable]
+    def confinedArena(): AutoCloseable = Arena.getMethod("ofConfined").invoke(null).asInstanceOf[AutoCloseable]
+    def libraryLookup(path: java.nio.file.Path, arena: AutoCloseable): Object = libraryLookupMethod.invoke(null, path, arena)
+    def find(lookup: Object, name: String): Object =
+      findMethod
+        .invoke(lookup, name)
+        .asInstanceOf[java.util.Optional[Object]]
+        .orElseThrow(() => new RuntimeException(s"Symbol $name not found in the simulation library"))
+    def downcallHandle(symbol: Object, result: Option[Object], args: Seq[Object]): MethodHandle = {
+      val layouts = java.lang.reflect.Array.newInstance(MemoryLayout, args.length).asInstanceOf[Array[Object]]
+      args.zipWithIndex.foreach { case (l, i) => layouts(i) = l }
+      val descriptor = result match {
+        case Some(r) => descriptorOf.invoke(null, r, layouts)
+        case None    => descriptorOfVoid.invoke(null, layouts)
+      }
+      val options = java.lang.reflect.Array.newInstance(LinkerOption, 0)
+      downcallHandleMethod.invoke(linker, symbol, descriptor, options).asInstanceOf[MethodHandle]
+    }
+    def view(pointer: Object, bytes: Long): ByteBuffer =
+      asByteBufferMethod.invoke(reinterpretMethod.invoke(pointer, Long.box(bytes))).asInstanceOf[ByteBuffer]
+    def allocateString(arena: AutoCloseable, value: String): Object = allocateStringMethod.invoke(arena, value)
+    def allocate(arena: AutoCloseable, bytes: Long): Object = allocateMethod.invoke(arena, Long.box(bytes))
+    def setAddressAtIndex(segment: Object, index: Long, value: Object): Unit =
+      setAddressAtIndexMethod.invoke(segment, Address, Long.box(index), value)
+  }
+
+  /** A loaded simulation library. It stays loaded until `close` is called. */
+  private final class Library(path: java.nio.file.Path) {
+    private val arena = api.sharedArena()
+    private val symbols = api.libraryLookup(path, arena)
+
+    /** Returns a downcall handle for an exported function. Arguments and results of type `Ptr` are declared
+      * as `Object`, arguments of type `Buf` as [[java.nio.ByteBuffer]], so that callers can use `invokeExact`.
+      */
+    def function(name: String, result: Option[CType], args: CType*): MethodHandle = {
+      val raw = api.downcallHandle(api.find(symbols, name), result.map(api.layoutOf), args.map(api.layoutOf))
+      val wrapped = args.zipWithIndex.foldLeft(raw) {
+        case (h, (Buf, i)) => MethodHandles.filterArguments(h, i, api.ofBuffer)
+        case (h, _)        => h
+      }
+      val resultType = result.map(api.javaTypeOf).getOrElse(Void.TYPE)
+      wrapped.asType(MethodType.methodType(resultType, args.map(api.javaTypeOf).toArray))
+    }
+
+    /** a buffer that reads `bytes` bytes of native memory in place, starting at `pointer` */
+    def view(pointer: Object, bytes: Long): ByteBuffer = api.view(pointer, bytes)
+
+    /** native memory for the arguments of a call, freed when `f` returns */
+    def withTemporaryMemory[T](f: TemporaryMemory => T): T = {
+      val temp = api.confinedArena()
+      try { f(new TemporaryMemory(temp)) }
+      finally { temp.close() }
+    }
+
+    def close(): Unit = arena.close()
+  }
+
+  private final class TemporaryMemory(arena: AutoCloseable) {
+    /** a NUL-terminated UTF-8 copy of `value` */
+    def string(value: String): Object = api.allocateString(arena, value)
+
+    /** an array of the pointers in `values` */
+    def pointers(values: Seq[Object]): Object = {
+      val array = api.allocate(arena, api.addressSize * math.max(values.length, 1))
+      values.zipWithIndex.foreach { case (v, i) => api.setAddressAtIndex(array, i, v) }
+      array
+    }
+  }
+}
@@ -7,7 +7,7 @@ import logger.LazyLogging
 
 /** This context works with a simulation binary that communicates through the Java Native Access library.
   * @param so interface to the dynamic simulation library
-  * @param targetDir simulation target directory
+  * @param coverageFile file that the coverage counters of this context are written to
   * @param toplevel information about the interface exposed by the module at the top of the RTL hierarchy
   * @param sim simulator that generated the binary
   * @param args command line arguments to the simulator (eg. Verilog plusargs)
@@ -15,7 +15,7 @@ import logger.LazyLogging
   */
 private[chiseltest] class JNASimulatorContext(
   so:               TesterSharedLibInterface,
-  targetDir:        os.Path,
+  coverageFile:     os.Path,
   toplevel:         TopmoduleInfo,
   override val sim: Simulator,
   args:             Array[String],
@@ -33,6 +33,15 @@ private[chiseltest] class JNASimulatorContext(
   private val idToMask = (toplevel.inputs ++ toplevel.outputs).map(_.width).map(w => (BigInt(1) << w) - 1).toIndexedSeq
   private val idIsSigned = (toplevel.inputs ++ toplevel.outputs).map(_.signed).toIndexedSeq
 
+  // per signal id, for the handle based accessors
+  private val idWidth = allSignals.map(_.width).toArray
+  private val idWords = allSignals.map(s => (s.width + 63) / 64).toArray
+  private val idSigned = allSignals.map(_.signed).toArray
+  // mask of the most significant 64-bit word
+  private val idTopMask = allSignals.map(s => lowBits(s.width - 64 * ((s.width - 1) / 64))).toArray
+
+  private def lowBits(n: Int): Long = if (n >= 64) -1L else (1L << n) - 1
+
   // Pass command line arguments to the simulator
   so.setArgs(args)
 
@@ -91,6 +100,76 @@ private[chiseltest] class JNASimulatorContext(
     else { unsigned }
   }
 
+  override def getHandle(signal: String): SignalHandle = new SignalHandle(signal, getId(signal))
+
+  private def getId(handle: SignalHandle): Int = if (handle.id >= 0) handle.id else getId(handle.name)
+
+  override def pokeLong(handle: SignalHandle, value: Long): Unit = {
+    assert(isRunning)
+    val signalId = getId(handle)
+    val words = idWords(signalId)
+    if (words == 1) {
+      so.poke(signalId, value & idTopMask(signalId))
+    } else {
+      // like a BigInt poke, negative values are sign-extended to the full width
+      val fill = if (value < 0) -1L else 0L
+      so.pokeWide(signalId, 0, value)
+      var ii = 1
+      while (ii < words) {
+        so.pokeWide(signalId, ii, if (ii == words - 1) fill & idTopMask(signalId) else fill)
+        ii += 1
+      }
+    }
+    isStale = true
+  }
+
+  override def peekLong(handle: SignalHandle): Long = {
+    assert(isRunning)
+    if (isStale) { update() }
+    val signalId = getId(handle)
+    if (idWords(signalId) == 1) {
+      signExtend(so.peek(signalId), signalId)
+    } else {
+      so.peekWide(signalId, 0)
+    }
+  }
+
+  override def pokeWide(handle: SignalHandle, word: Int, value: Long): Unit = {
+    assert(isRunning)
+    val signalId = getId(handle)
+    val words = idWords(signalId)
+    require(word >= 0 && word < words, s"Word $word is out of range for ${handle.name}")
+    val masked = if (word == words - 1) value & idTopMask(signalId) else value
+    if (words == 1) { so.poke(signalId, masked) }
+    else { so.pokeWide(signalId, word, masked) }
+    isStale = true
+  }
+
+  override def peekWide(handle: SignalHandle, word: Int): Long = {
+    assert(isRunning)
+    if (isStale) { update() }
+    val signalId = getId(handle)
+    val words = idWords(signalId)
+    require(word >= 0, s"Word $word is out of range for ${handle.name}")
+    if (word >= words) {
+      // bits above the width of a signed port are copies of its sign bit
+      if (idSigned(signalId) && peekWide(handle, words - 1) < 0) -1L else 0L
+    } else if (words == 1) {
+      signExtend(so.peek(signalId), signalId)
+    } else if (word == words - 1) {
+      signExtend(so.peekWide(signalId, word), signalId)
+    } else {
+      so.peekWide(signalId, word)
+    }
+  }
+
+  // sign-extends the most significant word of a signed signal
+  private def signExtend(topWord: Long, signalId: Int): Long = {
+    val bits = idWidth(signalId) - 64 * (idWords(signalId) - 1)
+    if (idSigned(signalId) && bits < 64) { (topWord << (64 - bits)) >> (64 - bits) }
+    else { topWord }
+  }
+
   private def toSigned(v: BigInt, width: Int): BigInt = {
     val isNegative = ((v >> (width - 1)) & 1) == 1
     if (isNegative) {
@@ -107,8 +186,9 @@ private[chiseltest] class JNASimulatorContext(
       case Some(_) =>
       case None    => throw NoClockException(toplevel.name)
     }
-    update()
+    if (isStale) { update() }
     val r = takeSteps(n)
+    if (((r >> 34) & 1) == 1) { assertLatch = true }
     val status = (r >> 32) & 3
     if (status == 0) {
       StepOk
@@ -123,14 +203,53 @@ private[chiseltest] class JNASimulatorContext(
     }
   }
 
+  override def stepUntil(handle: SignalHandle, value: Long, maxCycles: Int): StepUntilResult = {
+    assert(isRunning)
+    defaultClock match {
+      case Some(_) =>
+      case None    => throw NoClockException(toplevel.name)
+    }
+    val signalId = getId(handle)
+    if (idWords(signalId) > 1) { super.stepUntil(handle, value, maxCycles) }
+    else {
+      if (isStale) { update() }
+      // the harness compares the raw bits of the port
+      val r = so.stepUntil(signalId, value & idTopMask(signalId), maxCycles)
+      if (((r >> 33) & 1) == 1) {
+        val msg = "The simulator has encountered an unrecoverable error.\n" +
+          "Please consult the standard output and error for more details."
+        throw new RuntimeException(msg)
+      }
+      if (((r >> 34) & 1) == 1) { assertLatch = true }
+      StepUntilResult((r & 0xffffffffL).toInt, ((r >> 35) & 1) == 1)
+    }
+  }
+
+  // set when the native side saw the assert signal high, see setAssertLatch
+  private var assertLatch = false
+
+  override def setAssertLatch(signal: String): Boolean = {
+    assert(isRunning)
+    so.setAssertSignal(getId(signal))
+    assertLatch = false
+    true
+  }
+
+  override def takeAssertLatch(): Boolean = {
+    val latched = assertLatch
+    assertLatch = false
+    latched
+  }
+
   private var isRunning = true
   override def finish(): Unit = {
     assert(isRunning, "Simulator is already stopped! Are you trying to call finish twice?")
+    // several contexts of the same library each need their own file
+    so.writeCoverage(coverageFile.toString())
     so.finish()
     isRunning = false
   }
 
-  private val coverageFile = targetDir / "coverage.dat"
   override def getCoverage(): List[(String, Long)] = {
     if (isRunning) {
       so.writeCoverage(coverageFile.toString())
@@ -139,6 +258,36 @@ private[chiseltest] class JNASimulatorContext(
     readCoverageFile.get()
   }
 
+  override def snapshot(): Boolean = {
+    assert(isRunning)
+    so.snapshot()
+  }
+
+  override def restore(): Boolean = {
+    assert(isRunning)
+    val restored = so.restore()
+    // inputs may differ from the ones poked since the last update
+    isStale = true
+    restored
+  }
+
+  override def getStateSize(): Int = {
+    assert(isRunning)
+    so.stateBufferSize()
+  }
+
+  override def saveState(dst: java.nio.ByteBuffer): Boolean = {
+    assert(isRunning)
+    dst.isDirect && so.saveState(dst)
+  }
+
+  override def loadState(src: java.nio.ByteBuffer): Boolean = {
+    assert(isRunning)
+    val loaded = src.isDirect && so.loadState(src)
+    isStale = true
+    loaded
+  }
+
   override def resetCoverage(): Unit = {
     assert(isRunning)
     so.resetCoverage()
@@ -148,4 +297,90 @@ private[chiseltest] class JNASimulatorContext(
     assert(isRunning)
     so.getFastCoverage()
   }
+
+  override def getFastCoverageSize(): Int = {
+    assert(isRunning)
+    so.fastCoverageSize()
+  }
+
+  override def setSparseFastCoverage(src: java.nio.ByteBuffer, entries: Int): Unit = {
+    assert(isRunning)
+    so.setSparseFastCoverage(src, entries)
+  }
+
+  // the layout that was last passed to the native side
+  private var nativeFrameLayout: FrameLayout = null
+
+  override def runFrames(layout: FrameLayout, src: java.nio.ByteBuffer, frames: Int): FrameResult = {
+    assert(isRunning)
+    if (!src.isDirect) { super.runFrames(layout, src, frames) }
+    else {
+      defaultClock match {
+        case Some(_) =>
+        case None    => throw NoClockException(toplevel.name)
+      }
+      require(frames * layout.frameBytes <= src.capacity())
+      setNativeFrameLayout(layout)
+      val r = so.runFrames(src, frames)
+      // the native side evaluates the model after every cycle
+      isStale = false
+      if (((r >> 33) & 1) == 1) { throwFatal() }
+      FrameResult((r & 0xffffffffL).toInt, ((r >> 32) & 1) == 1)
+    }
+  }
+
+  private def setNativeFrameLayout(layout: FrameLayout): Unit = {
+    if (!(layout eq nativeFrameLayout)) {
+      val ids = layout.inputs.map { case (name, _) => getId(name) }.toArray
+      val widths = layout.inputs.map(_._2).toArray
+      so.setFrameLayout(ids, widths, layout.assertSignal.map(getId).getOrElse(-1))
+      nativeFrameLayout = layout
+    }
+  }
+
+  private def throwFatal(): Nothing = {
+    val msg = "The simulator has encountered an unrecoverable error.\n" +
+      "Please consult the standard output and error for more details."
+    throw new RuntimeException(msg)
+  }
+
+  // frame counts of the last batch, passed to the native side
+  private var batchFrames = java.nio.ByteBuffer.allocateDirect(4 * 64).order(java.nio.ByteOrder.nativeOrder())
+
+  override def runBatch(
+    layout:  FrameLayout,
+    src:     java.nio.ByteBuffer,
+    frames:  Array[Int],
+    count:   Int,
+    cap:     Int,
+    results: BatchResults
+  ): Boolean = {
+    assert(isRunning)
+    if (!src.isDirect) { super.runBatch(layout, src, frames, count, cap, results) }
+    else {
+      defaultClock match {
+        case Some(_) =>
+        case None    => throw NoClockException(toplevel.name)
+      }
+      require(count <= frames.length && count <= results.capacity)
+      require(frames.take(count).map(_.toLong).sum * layout.frameBytes <= src.capacity())
+      require(results.coverageSize >= so.fastCoverageSize(), "the result rows are too small for the coverage")
+      if (batchFrames.capacity() < 4 * count) {
+        batchFrames = java.nio.ByteBuffer.allocateDirect(4 * count).order(java.nio.ByteOrder.nativeOrder())
+      }
+      batchFrames.asIntBuffer().put(frames, 0, count)
+      setNativeFrameLayout(layout)
+      val executed = so.runBatch(src, batchFrames, count, cap, results.coverage, results.coverageSize, results.status)
+      isStale = false
+      // the batch ends early after an unrecoverable error, which is flagged in the status of the last input
+      if (executed > 0 && results.encounteredFatal(executed - 1)) { throwFatal() }
+      executed == count
+    }
+  }
+
+  override def getSparseFastCoverage(dst: java.nio.ByteBuffer, cap: Int): Int = {
+    assert(isRunning)
+    if (dst.isDirect) { so.copySparseFastCoverage(dst, cap) }
+    else { super.getSparseFastCoverage(dst, cap) }
+  }
 }
@@ -37,6 +37,11 @@ object JNAUtils {
   val Methods = Seq(
     ("long", "step", Seq("cycles" -> "int")), //here
     ("void", "update", Seq()),
+    ("int", "snapshot", Seq()),
+    ("int", "restore", Seq()),
+    ("int", "stateBufferSize", Seq()),
+    ("int", "saveState", Seq("dst" -> "uint8*", "size" -> "int")),
+    ("int", "loadState", Seq("src" -> "uint8*", "size" -> "int")),
     ("void", "finish", Seq()),
     ("void", "resetCoverage", Seq()),
     ("void", "writeCoverage", Seq("filename" -> "String")),
@@ -46,7 +51,26 @@ object JNAUtils {
     ("long", "peek_wide", Seq("id" -> "int", "offset" -> "int")),
     ("void", "set_args", Seq("argc" -> "int", "argv" -> "const char**")),
     ("uint*", "getCovVector", Seq()),
-    ("uint" , "covVectorSize", Seq())
+    ("uint" , "covVectorSize", Seq()),
+    ("int", "copyCovSparse", Seq("dst" -> "int*", "size" -> "int", "cap" -> "int")),
+    ("void", "setCovSparse", Seq("src" -> "int*", "size" -> "int")),
+    ("void", "set_frame_layout", Seq("ids" -> "int*", "widths" -> "int*", "n" -> "int", "assert_id" -> "int")),
+    ("long", "run_frames", Seq("src" -> "uint8*", "frames" -> "int")),
+    ("void", "set_assert_signal", Seq("id" -> "int")),
+    ("long", "step_until", Seq("id" -> "int", "value" -> "long", "max_cycles" -> "int")),
+    (
+      "int",
+      "run_batch",
+      Seq(
+        "src" -> "uint8*",
+        "frames" -> "int*",
+        "n" -> "int",
+        "cap" -> "int",
+        "cov" -> "int*",
+        "cov_row" -> "int",
+        "status" -> "long*"
+      )
+    )
   )
 
   private var idCounter = 123
@@ -56,17 +80,33 @@ object JNAUtils {
     id
   }
 
-  def compileAndLoadJNAClass(libPath: os.Path): TesterSharedLibInterface = {
-    // make a copy of the library, since overwriting the library while it is still loaded
-    // seems to go wrong
+  /** Loads the simulation library through the Foreign Function & Memory API if `preferFFM` is set and the
+    * API is available, through JNA otherwise.
+    */
+  def loadSharedLib(libPath: os.Path, preferFFM: Boolean): TesterSharedLibInterface = {
+    if (preferFFM && FFMSharedLibInterface.isAvailable) {
+      FFMSharedLibInterface.load(copyLib(libPath))
+    } else {
+      compileAndLoadJNAClass(libPath)
+    }
+  }
+
+  // make a copy of the library, since overwriting the library while it is still loaded
+  // seems to go wrong
+  private def copyLib(libPath: os.Path): os.Path = {
     val libCopy = libPath / os.up / (libPath.last + s"_$getUniqueId")
     os.copy.over(libPath, to = libCopy)
+    libCopy
+  }
+
+  def compileAndLoadJNAClass(libPath: os.Path): TesterSharedLibInterface = {
+    val libCopy = copyLib(libPath)
     // dlopen options: RTLD_NOW
     val opts = JavaConverters.mapAsJavaMap(Map(Library.OPTION_OPEN_FLAGS -> 2))
     val so = NativeLibrary.getInstance(libCopy.toString(), opts)
     val initFoo = so.getFunction("sim_init")
     val sPtr = initFoo.invokePointer(Array())
-    new TesterSharedLibInterface(so = so, sPtr = sPtr)
+    new JNASharedLibInterface(so = so, sPtr = sPtr)
   }
 
   private def cType(tpe: String): String = tpe.toLowerCase match {
@@ -75,7 +115,10 @@ object JNAUtils {
     case "int"    => "int32_t"
     case "uint"   => "uint32_t"
     case "uint*"  => "uint32_t*"
+    case "uint8*" => "uint8_t*"
+    case "int*"   => "int32_t*"
     case "long"   => "int64_t"
+    case "long*"  => "int64_t*"
     case other    => other
   }
 
@@ -114,11 +157,28 @@ object JNAUtils {
   }
 }
 
-class TesterSharedLibInterface(so: NativeLibrary, sPtr: Pointer) {
+class JNASharedLibInterface(so: NativeLibrary, sPtr: Pointer) extends TesterSharedLibInterface {
   private val stepFoo = so.getFunction("step")
   def step(cycles: Int): Long = { stepFoo.invokeLong(Array(sPtr, Integer.valueOf(cycles))) }
   private val updateFoo = so.getFunction("update")
   def update(): Unit = { updateFoo.invoke(Array(sPtr)) }
+  private val snapshotFoo = so.getFunction("snapshot")
+  def snapshot(): Boolean = { snapshotFoo.invokeInt(Array(sPtr)) != 0 }
+  private val restoreFoo = so.getFunction("restore")
+  def restore(): Boolean = { restoreFoo.invokeInt(Array(sPtr)) != 0 }
+  private val stateBufferSizeFoo = so.getFunction("stateBufferSize")
+  def stateBufferSize(): Int = stateBufferSizeFoo.invokeInt(Array(sPtr))
+  private val saveStateFoo = so.getFunction("saveState")
+  /** copies the simulator state into a direct buffer of at least `stateBufferSize` bytes */
+  def saveState(dst: java.nio.ByteBuffer): Boolean = {
+    require(dst.isDirect, "the state can only be copied into a direct buffer")
+    saveStateFoo.invokeInt(Array(sPtr, dst, Integer.valueOf(dst.capacity()))) != 0
+  }
+  private val loadStateFoo = so.getFunction("loadState")
+  def loadState(src: java.nio.ByteBuffer): Boolean = {
+    require(src.isDirect, "the state can only be copied from a direct buffer")
+    loadStateFoo.invokeInt(Array(sPtr, src, Integer.valueOf(src.capacity()))) != 0
+  }
   private val finishFoo = so.getFunction("finish")
   def finish(): Unit = {
     finishFoo.invoke(Array(sPtr))
@@ -143,6 +203,20 @@ class TesterSharedLibInterface(so: NativeLibrary, sPtr: Pointer) {
     // println(s"covSize: $covSize == ${arr.length}") //debug
     arr
   }
+  def fastCoverageSize(): Int = covSizeFoo.invokeInt(Array(sPtr))
+  private val copyCovSparseFoo = so.getFunction("copyCovSparse")
+  /** copies the hit counters as `(index << 8) | min(count, cap)` entries (native byte order) into a direct buffer */
+  def copySparseFastCoverage(dst: java.nio.ByteBuffer, cap: Int): Int = {
+    require(dst.isDirect, "coverage can only be copied into a direct buffer")
+    copyCovSparseFoo.invokeInt(Array(sPtr, dst, Integer.valueOf(dst.capacity() / 4), Integer.valueOf(cap)))
+  }
+  private val setCovSparseFoo = so.getFunction("setCovSparse")
+  /** replaces the counters with `entries` entries in the format of `copySparseFastCoverage` */
+  def setSparseFastCoverage(src: java.nio.ByteBuffer, entries: Int): Unit = {
+    require(src.isDirect, "coverage can only be copied from a direct buffer")
+    require(entries <= src.capacity() / 4)
+    setCovSparseFoo.invoke(Array(sPtr, src, Integer.valueOf(entries)))
+  }
 
   private val pokeFoo = so.getFunction("poke")
   def poke(id: Int, value: Long): Unit = {
@@ -160,6 +234,44 @@ class TesterSharedLibInterface(so: NativeLibrary, sPtr: Pointer) {
   def peekWide(id: Int, offset: Int): Long = {
     peekWideFoo.invokeLong(Array(sPtr, Integer.valueOf(id), Integer.valueOf(offset)))
   }
+  private val setFrameLayoutFoo = so.getFunction("set_frame_layout")
+  def setFrameLayout(ids: Array[Int], widths: Array[Int], assertId: Int): Unit = {
+    require(ids.length == widths.length)
+    setFrameLayoutFoo.invoke(Array(sPtr, ids, widths, Integer.valueOf(ids.length), Integer.valueOf(assertId)))
+  }
+  private val runFramesFoo = so.getFunction("run_frames")
+  /** pokes and steps `frames` frames from a direct buffer, see `set_frame_layout` in the harness */
+  def runFrames(src: java.nio.ByteBuffer, frames: Int): Long = {
+    require(src.isDirect, "frames can only be read from a direct buffer")
+    runFramesFoo.invokeLong(Array(sPtr, src, Integer.valueOf(frames)))
+  }
+  private val setAssertSignalFoo = so.getFunction("set_assert_signal")
+  /** selects the output that `step` checks before every cycle, -1 for none */
+  def setAssertSignal(id: Int): Unit = {
+    setAssertSignalFoo.invoke(Array(sPtr, Integer.valueOf(id)))
+  }
+  private val stepUntilFoo = so.getFunction("step_until")
+  /** steps until a port has a value, see `step_until` in the harness */
+  def stepUntil(id: Int, value: Long, maxCycles: Int): Long = {
+    stepUntilFoo.invokeLong(Array(sPtr, Integer.valueOf(id), Long.box(value), Integer.valueOf(maxCycles)))
+  }
+  private val runBatchFoo = so.getFunction("run_batch")
+  /** runs a batch of inputs from the snapshot, see `run_batch` in the harness; all buffers need to be direct */
+  def runBatch(
+    src:    java.nio.ByteBuffer,
+    frames: java.nio.ByteBuffer,
+    n:      Int,
+    cap:    Int,
+    cov:    java.nio.ByteBuffer,
+    covRow: Int,
+    status: java.nio.ByteBuffer
+  ): Int = {
+    require(src.isDirect && frames.isDirect && cov.isDirect && status.isDirect, "batches can only use direct buffers")
+    require(n <= frames.capacity() / 4 && n * covRow <= cov.capacity() / 4 && n <= status.capacity() / 16)
+    runBatchFoo.invokeInt(
+      Array(sPtr, src, frames, Integer.valueOf(n), Integer.valueOf(cap), cov, Integer.valueOf(covRow), status)
+    )
+  }
   private val setArgsFoo = so.getFunction("set_args")
   def setArgs(args: Array[String]): Unit = {
     setArgsFoo.invoke(Array(sPtr, Integer.valueOf(args.size), args))
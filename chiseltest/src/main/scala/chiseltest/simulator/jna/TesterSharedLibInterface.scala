@@ -0,0 +1,59 @@
+// SPDX-License-Identifier: Apache-2.0
+
+package chiseltest.simulator.jna
+
+/** The functions exported by the simulation library, see `sim_state` in [[VerilatorCppJNAHarnessGenerator]].
+  * Signals are identified by their index in the inputs followed by the outputs of the top-level module.
+  * Buffers need to be direct buffers.
+  * @note needs to match up with [[JNAUtils.Methods]]
+  */
+trait TesterSharedLibInterface {
+  def step(cycles: Int): Long
+  def update(): Unit
+  def snapshot(): Boolean
+  def restore(): Boolean
+  def stateBufferSize(): Int
+
+  /** copies the simulator state into a buffer of at least `stateBufferSize` bytes */
+  def saveState(dst: java.nio.ByteBuffer): Boolean
+  def loadState(src: java.nio.ByteBuffer): Boolean
+
+  /** finishes the simulation and unloads the library */
+  def finish(): Unit
+  def resetCoverage(): Unit
+  def writeCoverage(filename: String): Unit
+  def getFastCoverage(): Array[Int]
+  def fastCoverageSize(): Int
+
+  /** copies the hit counters as `(index << 8) | min(count, cap)` entries (native byte order) into a buffer */
+  def copySparseFastCoverage(dst: java.nio.ByteBuffer, cap: Int): Int
+
+  /** replaces the counters with `entries` entries in the format of `copySparseFastCoverage` */
+  def setSparseFastCoverage(src: java.nio.ByteBuffer, entries: Int): Unit
+  def poke(id: Int, value: Long): Unit
+  def peek(id: Int): Long
+  def pokeWide(id: Int, offset: Int, value: Long): Unit
+  def peekWide(id: Int, offset: Int): Long
+  def setFrameLayout(ids: Array[Int], widths: Array[Int], assertId: Int): Unit
+
+  /** pokes and steps `frames` frames from a buffer, see `set_frame_layout` in the harness */
+  def runFrames(src: java.nio.ByteBuffer, frames: Int): Long
+
+  /** selects the output that `step` checks before every cycle, -1 for none */
+  def setAssertSignal(id: Int): Unit
+
+  /** steps until a port has a value, see `step_until` in the harness */
+  def stepUntil(id: Int, value: Long, maxCycles: Int): Long
+
+  /** runs a batch of inputs from the snapshot, see `run_batch` in the harness; `frames` holds one int per input */
+  def runBatch(
+    src:    java.nio.ByteBuffer,
+    frames: java.nio.ByteBuffer,
+    n:      Int,
+    cap:    Int,
+    cov:    java.nio.ByteBuffer,
+    covRow: Int,
+    status: java.nio.ByteBuffer
+  ): Int
+  def setArgs(args: Array[String]): Unit
+}
@@ -8,10 +8,12 @@ import chiseltest.simulator.{PinInfo, TopmoduleInfo}
   *  This version generates a harness that can be called into through the JNI.
   */
 private[chiseltest] object VerilatorCppJNAHarnessGenerator {
+  /** needs to change whenever the generated code changes, since it is part of the key of cached simulations */
+  val Version = 5
+
   def codeGen(
     toplevel:     TopmoduleInfo,
     vcdFilePath:  os.Path,
-    targetDir:    os.Path,
     majorVersion: Int,
     minorVersion: Int,
     verbose:      Boolean
@@ -27,38 +29,192 @@ struct sim_state {
   TOP_CLASS* dut;
   VERILATED_C* tfp;
   vluint64_t main_time;
+  // model state saved by snapshot()
+  std::vector<char> saved_state;
+  vluint64_t saved_time;
+  // input ports driven by run_frames, see set_frame_layout
+  std::vector<int32_t> frame_ids;
+  std::vector<int32_t> frame_widths;
+  size_t frame_bytes = 0;
+  int32_t frame_assert_id = -1;
+  // output that step() checks before every cycle, see set_assert_signal
+  int32_t assert_id = -1;
 
   sim_state() :
     dut(new TOP_CLASS),
     tfp(nullptr),
-    main_time(0)
+    main_time(0),
+    saved_time(0)
   {
     // std::cout << "Allocating! " << ((long long) dut) << std::endl;
   }
 
+  // bit 34 of the result is set if the assert signal was high before any of the cycles
   inline int64_t step(int32_t cycles) { //here
+    int64_t assert_failed = 0;
+    auto check_assert = [&]() { if(assert_id >= 0 && peek(assert_id) == 1) assert_failed = 1; };
     for(int32_t i = 0; i < cycles; i++) {
-      const int64_t status = _step(tfp, dut, main_time);
+      const int64_t status = _step(tfp, dut, main_time, check_assert);
       if(status > 0) {
         // early exit on failure
-        return (status << 32) | ((int64_t)(i + 1));
+        return (status << 32) | (assert_failed << 34) | ((int64_t)(i + 1));
+      }
+    }
+    return ((int64_t)cycles) | (assert_failed << 34);
+  }
+  // the signal is read after the inputs have been evaluated, so checking it costs no extra eval per cycle
+  inline void set_assert_signal(int32_t id) { assert_id = id; }
+  // steps until the port `id` (at most 64 bits wide) has `value`, but at most `max_cycles` times;
+  // the port is checked before every cycle and after the last one. Like run_frames, stops do not end the execution.
+  // returns the number of cycles, bit 34 is set like in step(), bit 35 if the value was not reached
+  // and bit 33 if the simulator encountered an unrecoverable error
+  inline int64_t step_until(int32_t id, int64_t value, int32_t max_cycles) {
+    int64_t assert_failed = 0;
+    auto check_assert = [&]() { if(assert_id >= 0 && peek(assert_id) == 1) assert_failed = 1; };
+    for(int32_t i = 0; ; i++) {
+      if(peek(id) == value) return ((int64_t)i) | (assert_failed << 34);
+      if(i >= max_cycles) return ((int64_t)i) | (assert_failed << 34) | (((int64_t)1) << 35);
+      const int64_t status = _step(tfp, dut, main_time, check_assert);
+      if(status == 3) {
+        return ((int64_t)(i + 1)) | (assert_failed << 34) | (((int64_t)1) << 33);
       }
     }
-    return (int64_t)cycles;
   }
   inline void update() { dut->eval(); }
+  // copies the model state (without the coverage counters) so that restore() can return to it;
+  // models whose state cannot be copied (traced, multithreaded, with events or classes) have a state size of 0
+  inline int32_t snapshot() {
+    if(dut->stateSize() == 0) return 0;
+    dut->eval();
+    saved_state.resize(dut->stateSize());
+    std::memcpy(saved_state.data(), dut->getStatePtr(), saved_state.size());
+    saved_time = main_time;
+    return 1;
+  }
+  inline int32_t restore() {
+    if(saved_state.empty()) return 0;
+    std::memcpy(dut->getStatePtr(), saved_state.data(), saved_state.size());
+    main_time = saved_time;
+    return 1;
+  }
+  // the same as snapshot()/restore(), but with a buffer owned by the caller: main_time followed by the model state
+  inline int32_t stateBufferSize() {
+    return dut->stateSize() == 0 ? 0 : (int32_t)(sizeof(vluint64_t) + dut->stateSize());
+  }
+  inline int32_t saveState(uint8_t* dst, int32_t size) {
+    if(stateBufferSize() == 0 || size < stateBufferSize()) return 0;
+    dut->eval();
+    std::memcpy(dst, &main_time, sizeof(vluint64_t));
+    std::memcpy(dst + sizeof(vluint64_t), dut->getStatePtr(), dut->stateSize());
+    return 1;
+  }
+  inline int32_t loadState(uint8_t* src, int32_t size) {
+    if(stateBufferSize() == 0 || size < stateBufferSize()) return 0;
+    std::memcpy(&main_time, src, sizeof(vluint64_t));
+    std::memcpy(dut->getStatePtr(), src + sizeof(vluint64_t), dut->stateSize());
+    return 1;
+  }
   inline void finish() {
     dut->eval();
     _finish(tfp, dut);
   }
-  inline void resetCoverage() { VerilatedCov::zero(); }
+  // only the counters that were hit since the last reset need to be cleared
+  inline void resetCoverage() { dut->resetCovDirty(); }
   inline void writeCoverage(const char* filename) {
     VerilatedCov::write(filename);
   }
   
   inline uint32_t* getCovVector() { return dut->getCovVector(); }
   inline uint32_t covVectorSize() { return dut->covVectorSize(); }
+  // writes one entry `(index << 8) | min(count, cap)` for every counter that was hit since the last reset
+  inline int32_t copyCovSparse(int32_t* dst, int32_t size, int32_t cap) {
+    const uint32_t* cov = dut->getCovVector();
+    const uint32_t* dirty = dut->getCovDirtyVector();
+    const uint32_t count = dut->covDirtyCount();
+    const uint32_t c = cap < 0 ? 0 : (cap > 255 ? 255 : cap);
+    uint32_t n = 0;
+    for(uint32_t i = 0; i < count && n < (uint32_t)size; i++) {
+      const uint32_t idx = dirty[i];
+      const uint32_t v = cov[idx];
+      dst[n++] = (int32_t)((idx << 8) | (v < c ? v : c));
+    }
+    return (int32_t)n;
+  }
   
+  // replaces the coverage counters with `size` entries `(index << 8) | count` as written by copyCovSparse
+  inline void setCovSparse(int32_t* src, int32_t size) {
+    dut->resetCovDirty();
+    for(int32_t i = 0; i < size; i++) {
+      const uint32_t e = (uint32_t)src[i];
+      dut->setCovCount(e >> 8, e & 0xff);
+    }
+  }
+
+  // every frame holds the value of each port in `ids`, big-endian in (width + 7) / 8 bytes;
+  // `assert_id` is an output that is checked before every cycle (-1 for none)
+  inline void set_frame_layout(int32_t* ids, int32_t* widths, int32_t n, int32_t assert_id) {
+    frame_ids.assign(ids, ids + n);
+    frame_widths.assign(widths, widths + n);
+    frame_bytes = 0;
+    for(int32_t p = 0; p < n; p++) frame_bytes += (widths[p] + 7) / 8;
+    frame_assert_id = assert_id;
+  }
+  // pokes the inputs of one frame and steps the clock, for `frames` consecutive frames in `src`;
+  // returns the number of frames executed, bit 32 is set if the assert signal was high before any cycle,
+  // bit 33 if the simulator encountered an unrecoverable error
+  inline int64_t run_frames(uint8_t* src, int32_t frames) {
+    int64_t assert_failed = 0;
+    for(int32_t f = 0; f < frames; f++) {
+      for(size_t p = 0; p < frame_ids.size(); p++) {
+        const int32_t width = frame_widths[p];
+        const int32_t bytes = (width + 7) / 8;
+        if(width <= 64) {
+          uint64_t v = 0;
+          for(int32_t i = 0; i < bytes; i++) v = (v << 8) | src[i];
+          if(width < 64) v &= (((uint64_t)1) << width) - 1;
+          poke(frame_ids[p], (int64_t)v);
+        } else {
+          // 64-bit chunks, starting with the least significant one at the end of the big-endian bytes
+          for(int32_t k = 0; k * 8 < bytes; k++) {
+            const int32_t hi = bytes - 8 * k;
+            const int32_t lo = hi > 8 ? hi - 8 : 0;
+            uint64_t v = 0;
+            for(int32_t i = lo; i < hi; i++) v = (v << 8) | src[i];
+            const int32_t rest = width - 64 * k;
+            if(rest < 64) v &= (((uint64_t)1) << rest) - 1;
+            poke_wide(frame_ids[p], k, (int64_t)v);
+          }
+        }
+        src += bytes;
+      }
+      const int64_t status = _step(tfp, dut, main_time, [&]() {
+        if(frame_assert_id >= 0 && peek(frame_assert_id) == 1) assert_failed = 1;
+      });
+      if(status == 3) {
+        return ((int64_t)(f + 1)) | (assert_failed << 32) | (((int64_t)1) << 33);
+      }
+    }
+    return ((int64_t)frames) | (assert_failed << 32);
+  }
+  // runs `n` inputs back to back, each one from the snapshot with fresh coverage counters;
+  // input `i` are the next `frames[i]` frames in `src`. For every input, the result of run_frames is written to
+  // `status[2 * i]` and the coverage (in the format of copyCovSparse) to the `cov_row` entries at `cov + i * cov_row`,
+  // with the number of entries in `status[2 * i + 1]`.
+  // returns the number of inputs executed, which is less than `n` after an unrecoverable error, -1 without a snapshot
+  inline int32_t run_batch(uint8_t* src, int32_t* frames, int32_t n, int32_t cap, int32_t* cov, int32_t cov_row, int64_t* status) {
+    if(saved_state.empty()) return -1;
+    for(int32_t i = 0; i < n; i++) {
+      restore();
+      dut->resetCovDirty();
+      const int64_t r = run_frames(src, frames[i]);
+      src += frames[i] * frame_bytes;
+      status[2 * i] = r;
+      status[2 * i + 1] = copyCovSparse(cov + (size_t)i * cov_row, cov_row, cap);
+      if((r >> 33) & 1) return i + 1;
+    }
+    return n;
+  }
+
   inline void poke(int32_t id, int64_t value) {
     const uint64_t u = value;
     // std::cout << "poking: " << std::hex << u << std::endl;
@@ -160,12 +316,11 @@ static sim_state* create_sim_state() {
 """)
 
     val jnaCode = JNAUtils.genJNACppCode(codeBuffer.toString())
-    commonCodeGen(toplevel, targetDir, majorVersion, minorVersion, verbose) + jnaCode
+    commonCodeGen(toplevel, majorVersion, minorVersion, verbose) + jnaCode
   }
 
   private def commonCodeGen(
     toplevel:     TopmoduleInfo,
-    targetDir:    os.Path,
     majorVersion: Int,
     minorVersion: Int,
     verbose:      Boolean
@@ -216,6 +371,8 @@ static sim_state* create_sim_state() {
                          |  #define VERILATED_C VerilatedVcdC
                          |#endif
                          |#include <iostream>
+                         |#include <cstring>
+                         |#include <vector>
                          |
                          |
                          |// Override Verilator definition so first $$finish ends simulation
@@ -260,9 +417,12 @@ static sim_state* create_sim_state() {
                          |#endif
                          |}
                          |
-                         |static int64_t _step(VERILATED_C* tfp, TOP_CLASS* top, vluint64_t& main_time) {
+                         |// `at_clock_low` is called once the inputs have been evaluated, before the rising edge of the clock
+                         |template <typename F>
+                         |static int64_t _step(VERILATED_C* tfp, TOP_CLASS* top, vluint64_t& main_time, F at_clock_low) {
                          |    $clockLow
                          |    top->eval();
+                         |    at_clock_low();
                          |#if VM_TRACE
                          |    if (tfp) tfp->dump(main_time);
                          |#endif
@@ -294,9 +454,6 @@ static sim_state* create_sim_state() {
                          |  if (tfp) tfp->close();
                          |  delete tfp;
                          |#endif
-                         |#if VM_COVERAGE
-                         |  VerilatedCov::write("$targetDir/coverage.dat");
-                         |#endif
                          |  top->final();
                          |  // TODO: re-enable!
                          |  // delete top;
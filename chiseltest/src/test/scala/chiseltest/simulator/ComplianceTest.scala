@@ -15,6 +15,10 @@ abstract class ComplianceTest(sim: Simulator, protected val tag: Tag) extends Fl
   def load(src: String, annos: AnnotationSeq = List()): SimulatorContext = {
     sim.createContext(loadFirrtl(src, withTargetDir(annos)))
   }
+
+  def loadN(src: String, n: Int, annos: AnnotationSeq = List()): Seq[SimulatorContext] = {
+    sim.createContexts(loadFirrtl(src, withTargetDir(annos)), n)
+  }
 }
 
 private object ComplianceTest {
@@ -61,6 +61,21 @@ abstract class CoverageCompliance(sim: Simulator, tag: Tag = DefaultTag) extends
         "c.r_one" -> 7, "c.r_zero" -> 5
       ))
     }
+
+    it should "return the coverage of each context started for the same circuit" taggedAs(tag) in {
+      val duts = loadN(testSrc, 2)
+      performDutTest(duts.head)
+      performDutTest(duts.head)
+      performDutTest(duts.last)
+      duts.foreach(_.finish())
+
+      assert(duts.head.getCoverage() == List(
+        "c.r_one" -> 14, "c.r_zero" -> 10
+      ))
+      assert(duts.last.getCoverage() == List(
+        "c.r_one" -> 7, "c.r_zero" -> 5
+      ))
+    }
   }
 
   if(!sim.supportsLiveCoverage) {
@@ -140,6 +155,91 @@ abstract class CoverageCompliance(sim: Simulator, tag: Tag = DefaultTag) extends
       ))
     }
 
+    it should "return to a state saved into a buffer together with its coverage counters" taggedAs(tag) in {
+      val dut = load(testSrc)
+      dut.poke("reset", 1)
+      dut.step()
+      dut.poke("reset", 0)
+      dut.resetCoverage()
+
+      // saving states is optional, like snapshots
+      if (dut.getStateSize() > 0) {
+        dut.poke("io_in", 1)
+        dut.step(3)
+        val state = java.nio.ByteBuffer.allocateDirect(dut.getStateSize())
+        assert(dut.saveState(state))
+        val coverage = java.nio.ByteBuffer.allocateDirect(4 * dut.getFastCoverageSize()).order(java.nio.ByteOrder.nativeOrder())
+        val entries = dut.getSparseFastCoverage(coverage, 255)
+        val saved = dut.getFastCoverage().toSeq
+        assert(saved.exists(_ != 0))
+        val out = dut.peek("io_out")
+
+        dut.poke("io_in", 0)
+        dut.step(4)
+        assert(dut.getFastCoverage().toSeq != saved)
+        assert(dut.loadState(state))
+        dut.setSparseFastCoverage(coverage, entries)
+        assert(dut.peek("io_out") == out)
+        assert(dut.getFastCoverage().toSeq == saved)
+        // a buffer that cannot hold the state is rejected
+        assert(!dut.saveState(java.nio.ByteBuffer.allocateDirect(dut.getStateSize() - 1)))
+      } else {
+        assert(!dut.saveState(java.nio.ByteBuffer.allocateDirect(64)))
+      }
+
+      dut.finish()
+    }
+
+    it should "run a batch of inputs like restoring the snapshot before each input" taggedAs(tag) in {
+      val dut = load(testSrc)
+      dut.poke("reset", 1)
+      dut.step()
+      dut.poke("reset", 0)
+
+      // batches start every input from a snapshot, simulators without snapshots cannot run them
+      if (dut.snapshot()) {
+        val layout = FrameLayout(Seq("reset" -> 1, "io_in" -> 1))
+        val frames = Array(4, 0, 13, 1, 9)
+        val rand = new Random(0)
+        val bytes = Array.fill(frames.sum * layout.frameBytes)(rand.nextInt(256).toByte)
+        // counts above the cap are saturated
+        val cap = 3
+        val size = dut.getFastCoverageSize()
+        def entries(row: java.nio.ByteBuffer, n: Int): Seq[Int] = (0 until n).map(i => row.getInt(4 * i)).sorted
+
+        // the reference runs every input on its own
+        var offset = 0
+        val expected = frames.map { n =>
+          assert(dut.restore())
+          dut.resetCoverage()
+          val src = java.nio.ByteBuffer.allocateDirect(n * layout.frameBytes).put(bytes, offset, n * layout.frameBytes)
+          offset += n * layout.frameBytes
+          val result = dut.runFrames(layout, src, n)
+          val row = java.nio.ByteBuffer.allocateDirect(4 * size).order(java.nio.ByteOrder.nativeOrder())
+          (result, entries(row, dut.getSparseFastCoverage(row, cap)))
+        }
+        assert(expected(2)._2.nonEmpty)
+
+        val buffers = Seq(java.nio.ByteBuffer.wrap(bytes), java.nio.ByteBuffer.allocateDirect(bytes.length).put(bytes))
+        buffers.foreach { src =>
+          // one row more than inputs, which has to stay untouched
+          val results = new BatchResults(frames.length + 1, size)
+          assert(dut.runBatch(layout, src, frames, frames.length, cap, results))
+          expected.zipWithIndex.foreach { case ((result, coverage), i) =>
+            assert(results.cycles(i) == result.cycles, s"input $i")
+            assert(results.assertFailed(i) == result.assertFailed, s"input $i")
+            assert(!results.encounteredFatal(i), s"input $i")
+            assert(entries(results.coverageRow(i), results.coverageEntries(i)) == coverage, s"input $i")
+          }
+          assert(results.cycles(frames.length) == 0 && results.coverageEntries(frames.length) == 0)
+        }
+      } else {
+        val results = new BatchResults(1, 0)
+        assert(!dut.runBatch(FrameLayout(Seq()), java.nio.ByteBuffer.allocate(0), Array(1), 1, 255, results))
+      }
+
+      dut.finish()
+    }
   }
 
 
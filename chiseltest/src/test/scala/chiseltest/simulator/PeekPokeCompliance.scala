@@ -117,4 +117,96 @@ abstract class PeekPokeCompliance(sim: Simulator, tag: Tag = DefaultTag) extends
     }
   }
 
+  it should "poke and peek through signal handles like through signal names" taggedAs(tag) in {
+    val Widths = Seq(1, 7, 63, 64, 65, 128, 129)
+    val lines = Seq("circuit test:", "  module test:", "    input clock: Clock") ++
+      Widths.flatMap(w => Seq(s"    input in$w : SInt<$w>",   s"    output out$w : SInt<$w>")) ++ Seq("") ++
+      Widths.map( w => s"    out$w <= in$w") ++ Seq("")
+    val dut = load(lines.mkString("\n"))
+
+    val rand = new Random(0)
+    Widths.foreach { w =>
+      val in = dut.getHandle(s"in$w")
+      val out = dut.getHandle(s"out$w")
+      // values that fit into the port
+      val values = Seq.fill(20)(rand.nextLong()).map(v => if (w < 64) (v << (64 - w)) >> (64 - w) else v)
+      values.foreach { value =>
+        dut.pokeLong(in, value)
+        dut.step()
+        val expected = dut.peek(s"out$w")
+        assert(dut.peekLong(out) == expected.toLong, s"width = $w")
+        (0 until (w + 63) / 64).foreach { word =>
+          assert(dut.peekWide(out, word) == (expected >> (64 * word)).toLong, s"width = $w")
+        }
+      }
+      if (w > 64) {
+        dut.pokeWide(in, 1, -1L)
+        dut.step()
+        assert(dut.peekWide(out, 1) == -1L, s"width = $w")
+      }
+    }
+    dut.finish()
+  }
+
+  it should "run frames like pokes through signal handles followed by a step" taggedAs(tag) in {
+    val Widths = Seq(1, 13, 64, 100)
+    val lines = Seq("circuit test:", "  module test:", "    input clock: Clock", "    input reset: UInt<1>") ++
+      Widths.flatMap(w => Seq(s"    input in$w : UInt<$w>", s"    output out$w : UInt<$w>", s"    output acc$w : UInt<$w>")) ++
+      Seq("    output assert_failed : UInt<1>", "") ++
+      Widths.flatMap { w =>
+        Seq(s"    reg r$w : UInt<$w>, clock with :", s"      reset => (UInt<1>(0), r$w)", s"    r$w <= in$w",
+          s"    reg a$w : UInt<$w>, clock with :", s"      reset => (reset, UInt<$w>(0))", s"    a$w <= xor(a$w, in$w)",
+          s"    out$w <= r$w", s"    acc$w <= a$w")
+      } ++ Seq("    assert_failed <= in1", "")
+    // the reference pokes every frame by hand, the others run the frames from a heap and from a direct buffer
+    val duts = loadN(lines.mkString("\n"), 3)
+    val Seq(ref, heap, direct) = duts
+    duts.foreach { dut =>
+      dut.poke("reset", 1)
+      dut.step()
+      dut.poke("reset", 0)
+    }
+
+    val layout = FrameLayout(Widths.map(w => s"in$w" -> w), Some("assert_failed"))
+    assert(layout.frameBytes == 1 + 2 + 8 + 13)
+    val frames = 100
+    val rand = new Random(0)
+    // the bits above the width of a port are random as well and have to be ignored
+    val bytes = Array.fill(frames * layout.frameBytes)(rand.nextInt(256).toByte)
+    // in1 is the lowest bit of the first byte of a frame, only frame 20 fails the assertion
+    (0 until frames).foreach { f =>
+      val b = f * layout.frameBytes
+      bytes(b) = (if (f == 20) bytes(b) | 1 else bytes(b) & ~1).toByte
+    }
+
+    val handles = Widths.map(w => ref.getHandle(s"in$w"))
+    def pokeFrame(f: Int): Boolean = {
+      var offset = f * layout.frameBytes
+      Widths.zip(handles).foreach { case (w, in) =>
+        val n = (w + 7) / 8
+        val value = BigInt(1, bytes.slice(offset, offset + n)) & ((BigInt(1) << w) - 1)
+        if (w <= 64) { ref.pokeLong(in, value.toLong) }
+        else { (0 until (w + 63) / 64).foreach(word => ref.pokeWide(in, word, (value >> (64 * word)).toLong)) }
+        offset += n
+      }
+      val assertFailed = ref.peek("assert_failed") == 1
+      ref.step()
+      assertFailed
+    }
+
+    Seq(0 -> 1, 1 -> 14, 14 -> 64, 64 -> frames).foreach { case (start, end) =>
+      val assertFailed = (start until end).map(pokeFrame).reduce(_ || _)
+      val chunk = bytes.slice(start * layout.frameBytes, end * layout.frameBytes)
+      val buffers = Seq(java.nio.ByteBuffer.wrap(chunk), java.nio.ByteBuffer.allocateDirect(chunk.length).put(chunk))
+      Seq(heap, direct).zip(buffers).foreach { case (dut, src) =>
+        assert(dut.runFrames(layout, src, end - start) == FrameResult(end - start, assertFailed), s"frames $start until $end")
+        Widths.foreach { w =>
+          Seq(s"out$w", s"acc$w").foreach { signal =>
+            assert(dut.peek(signal) == ref.peek(signal), s"$signal after frame ${end - 1}")
+          }
+        }
+      }
+    }
+    duts.foreach(_.finish())
+  }
 }
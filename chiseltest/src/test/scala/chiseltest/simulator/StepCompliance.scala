@@ -88,6 +88,89 @@ abstract class StepCompliance(sim: Simulator, tag: Tag = DefaultTag) extends Com
     dut.finish()
   }
 
+  it should "return to the state saved by snapshot" taggedAs(tag) in {
+    val dut = load(CounterGen(List("clock")))
+    dut.poke("reset", 1)
+    dut.step()
+    dut.poke("reset", 0)
+    dut.step(5)
+
+    // snapshots are optional, simulators without support must not pretend to restore
+    if (dut.snapshot()) {
+      dut.step(10)
+      assert(dut.peek("clock_count") == 15)
+      assert(dut.restore())
+      assert(dut.peek("clock_count") == 5)
+      dut.step()
+      assert(dut.peek("clock_count") == 6)
+      assert(dut.restore())
+      assert(dut.peek("clock_count") == 5)
+    } else {
+      assert(!dut.restore())
+    }
+
+    dut.finish()
+  }
+
+  it should "start independent simulations of the same circuit" taggedAs(tag) in {
+    val duts = loadN(CounterGen(List("clock")), 3)
+    assert(duts.size == 3)
+    duts.foreach { dut =>
+      dut.poke("reset", 1)
+      dut.step()
+      dut.poke("reset", 0)
+    }
+    duts.zipWithIndex.foreach { case (dut, i) => dut.step(i + 1) }
+    duts.zipWithIndex.foreach { case (dut, i) => assert(dut.peek("clock_count") == i + 1) }
+    duts.foreach(_.finish())
+  }
+
+  it should "step until a signal has a value" taggedAs(tag) in {
+    val dut = load(CounterGen(List("clock")))
+    dut.poke("reset", 1)
+    dut.step()
+    dut.poke("reset", 0)
+    val count = dut.getHandle("clock_count")
+
+    assert(dut.stepUntil(count, 10, 100) == StepUntilResult(10, timedOut = false))
+    assert(dut.peek("clock_count") == 10)
+    // the signal is checked before the first cycle
+    assert(dut.stepUntil(count, 10, 100) == StepUntilResult(0, timedOut = false))
+    assert(dut.stepUntil(count, 5, 3) == StepUntilResult(3, timedOut = true))
+    assert(dut.peek("clock_count") == 13)
+
+    dut.finish()
+  }
+
+  it should "latch an assert signal while stepping" taggedAs(tag) in {
+    val src =
+      """circuit test:
+        |  module test:
+        |    input clock: Clock
+        |    input in: UInt<1>
+        |    output assert_failed: UInt<1>
+        |
+        |    assert_failed <= in
+        |""".stripMargin
+    val dut = load(src)
+    dut.poke("in", 0)
+
+    // latching is optional, simulators without support leave it to the caller to peek the signal
+    if (dut.setAssertLatch("assert_failed")) {
+      dut.step(3)
+      assert(!dut.takeAssertLatch())
+      dut.poke("in", 1)
+      dut.step()
+      dut.poke("in", 0)
+      dut.step(2)
+      assert(dut.takeAssertLatch())
+      // taking the latch clears it
+      assert(!dut.takeAssertLatch())
+    }
+
+    dut.finish()
+  }
+
 
 }
 
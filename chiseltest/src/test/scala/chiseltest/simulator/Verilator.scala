@@ -2,8 +2,12 @@
 
 package chiseltest.simulator
 
+import chiseltest.simulator.jna.FFMSharedLibInterface
 import chiseltest.utils.CaptureStdout
-import org.scalatest.Tag
+import firrtl.CircuitState
+import firrtl.options.TargetDirAnnotation
+import firrtl.transforms.DontCheckCombLoopsAnnotation
+import org.scalatest.{Assertions, Tag}
 import chiseltest.utils.FlatSpecWithTargetDir
 
 /** To disable tests that require the commercial VCS simulator use the following: `sbt testOnly -- -l RequiresVerilator` */
@@ -17,6 +21,27 @@ class VerilatorCoverageCompliance extends CoverageCompliance(VerilatorSimulator,
 class VerilatorMemoryCompliance extends MemoryCompliance(VerilatorSimulator, RequiresVerilator)
 class VerilatorStopAssertAssumeCompliance extends StopAssertAssumeCompliance(VerilatorSimulator, RequiresVerilator)
 
+/** Verilator called through the Foreign Function & Memory API instead of JNA. Without the API the contexts would
+  * silently fall back to JNA, so tests that load a circuit are canceled on JVMs that do not provide it.
+  */
+private object VerilatorFFMSimulator extends Simulator {
+  override def name: String = "verilator through FFM"
+  override def isAvailable: Boolean = VerilatorSimulator.isAvailable
+  override def supportsCoverage = VerilatorSimulator.supportsCoverage
+  override def supportsLiveCoverage = VerilatorSimulator.supportsLiveCoverage
+  override def waveformFormats = VerilatorSimulator.waveformFormats
+  override def createContext(state: CircuitState): SimulatorContext = createContexts(state, 1).head
+  override def createContexts(state: CircuitState, n: Int): Seq[SimulatorContext] = {
+    Assertions.assume(FFMSharedLibInterface.isAvailable, "the JVM does not provide the Foreign Function & Memory API")
+    VerilatorSimulator.createContexts(state.copy(annotations = state.annotations :+ VerilatorFFMBridge), n)
+  }
+}
+
+class VerilatorFFMStepCompliance extends StepCompliance(VerilatorFFMSimulator, RequiresVerilator)
+class VerilatorFFMPeekPokeCompliance extends PeekPokeCompliance(VerilatorFFMSimulator, RequiresVerilator)
+class VerilatorFFMCoverageCompliance extends CoverageCompliance(VerilatorFFMSimulator, RequiresVerilator)
+class VerilatorFFMStopAssertAssumeCompliance extends StopAssertAssumeCompliance(VerilatorFFMSimulator, RequiresVerilator)
+
 class VerilatorSpecificTests extends FlatSpecWithTargetDir {
   behavior of "verilator"
 
@@ -45,4 +70,91 @@ class VerilatorSpecificTests extends FlatSpecWithTargetDir {
     assert(out.contains("perl"))
     assert(out.contains("make -C"))
   }
+
+  it should "end a batch at the input that encounters an unrecoverable error" taggedAs RequiresVerilator in {
+    // once `en` is 1, x counts up to 250 within a single evaluation, more often than Verilator allows the
+    // model to iterate before it reports that the model did not converge
+    val src =
+      """circuit test:
+        |  module test:
+        |    input clock: Clock
+        |    input en: UInt<1>
+        |    output out: UInt<8>
+        |
+        |    wire x : UInt<8>
+        |    x <= mux(en, mux(lt(x, UInt<8>(250)), tail(add(x, UInt<8>(1)), 1), x), UInt<8>(0))
+        |    out <= x
+        |""".stripMargin
+    val f = ComplianceTest.loadFirrtl(src, withTargetDir(Seq(DontCheckCombLoopsAnnotation)))
+    val dut = sim.createContext(f)
+    dut.poke("en", 0)
+    dut.step()
+    assert(dut.snapshot())
+
+    // input 1 sets `en` in its third frame, input 2 is never run
+    val layout = FrameLayout(Seq("en" -> 1))
+    val frames = Array(2, 5, 3)
+    val bytes = Array[Byte](0, 0, 0, 0, 1, 0, 0, 0, 0, 0)
+    val batch = java.nio.ByteBuffer.allocateDirect(bytes.length).put(bytes)
+    val results = new BatchResults(frames.length, dut.getFastCoverageSize())
+    val e = intercept[RuntimeException] {
+      dut.runBatch(layout, batch, frames, frames.length, 255, results)
+    }
+    assert(e.getMessage.contains("unrecoverable error"))
+    assert(results.cycles(0) == 2 && !results.encounteredFatal(0))
+    assert(results.cycles(1) == 3 && results.encounteredFatal(1))
+    assert(results.cycles(2) == 0)
+    dut.finish()
+  }
+
+  it should "not snapshot a multithreaded model" taggedAs RequiresVerilator in {
+    // the mtask counters of a multithreaded model are part of its state, the even-cycle flags they are
+    // checked against are not, so restoring after an odd number of evaluations would deadlock the threads
+    val lines = Seq("circuit test:", "  module test:", "    input clock: Clock", "    input in: UInt<64>") ++
+      (0 until 8).flatMap(i => Seq(s"    output out$i: UInt<64>", s"    reg r$i : UInt<64>, clock with :",
+        s"      reset => (UInt<1>(0), r$i)", s"    r$i <= tail(add(xor(r$i, in), UInt<64>($i)), 1)", s"    out$i <= r$i")) ++
+      Seq("")
+    val f = ComplianceTest.loadFirrtl(lines.mkString("\n"), withTargetDir(Seq(VerilatorThreads(2))))
+    val dut = sim.createContext(f)
+    dut.poke("in", 3)
+    dut.step(3)
+    assert(!dut.snapshot())
+    assert(dut.getStateSize() == 0)
+    assert(!dut.restore())
+    dut.step()
+    dut.finish()
+  }
+
+  it should "write the coverage of a simulation from the simulation cache into its own target directory" taggedAs RequiresVerilator in {
+    val src =
+      """circuit test:
+        |  module test:
+        |    input clock: Clock
+        |    input reset: UInt<1>
+        |    input in: UInt<1>
+        |
+        |    cover(clock, in, UInt(1), "") : in_one
+        |""".stripMargin
+    val cache = SimulationCacheAnnotation((targetDir / "cache").toString())
+    def run(dir: os.Path, hits: Int): (List[(String, Long)], String) = CaptureStdout {
+      val annos = Seq(cache, CachingDebugAnnotation, TargetDirAnnotation(dir.toString()))
+      val dut = sim.createContext(ComplianceTest.loadFirrtl(src, annos))
+      dut.poke("in", 1)
+      dut.step(hits)
+      dut.finish()
+      dut.getCoverage()
+    }
+
+    val first = targetDir / "first"
+    val (firstCoverage, _) = run(first, 3)
+    assert(firstCoverage.map(_._2) == List(3L))
+    val firstFile = os.read(first / "coverage.dat")
+
+    val second = targetDir / "second"
+    val (secondCoverage, out) = run(second, 5)
+    assert(out.contains("from the simulation cache"))
+    assert(secondCoverage.map(_._2) == List(5L))
+    // the library was built for the first directory, which must not be touched
+    assert(os.read(first / "coverage.dat") == firstFile)
+  }
 }
@@ -0,0 +1,105 @@
+package fuzzing.fast;
+
+import java.util.Arrays;
+import java.util.List;
+
+import org.eclipse.collections.impl.list.mutable.primitive.IntArrayList;
+
+import fuzzing.fast.FuzzGuidance.Input;
+import fuzzing.fast.util.Coverage;
+
+/**
+ * A small subset of the saved inputs that covers every point that any of them covers,
+ * computed greedily in the way of AFL's <code>cull_queue</code>.
+ *
+ * <p>Every point is first rated to the cheapest input that covers it, where inputs that
+ * simulate fewer cycles are cheaper (ties go to the older input). Then the points are walked
+ * in order and the top-rated input of every point that is not covered yet is kept, together
+ * with all points it covers. Kept inputs whose points are all covered by other kept inputs are
+ * dropped again, starting with the most expensive one. The inputs that were not kept only cover
+ * points that kept inputs cover as well.</p>
+ *
+ * <p>Saved inputs are never modified, so the pass runs on a snapshot of the saved inputs
+ * without holding the guidance lock.</p>
+ */
+public final class CorpusCull {
+    /** The saved inputs at the time of the pass, the index of an input is its id. */
+    final List<Input> inputs;
+
+    /** For every point, the index of the kept input that is responsible for it, -1 if no input covers it. */
+    final int[] responsible;
+
+    final int numKept;
+
+    private CorpusCull(List<Input> inputs, int[] responsible, int numKept) {
+        this.inputs = inputs;
+        this.responsible = responsible;
+        this.numKept = numKept;
+    }
+
+    public static CorpusCull compute(List<Input> inputs) {
+        int covSize = 0;
+        long[] costs = new long[inputs.size()];
+        for (int i = 0; i < inputs.size(); i++) {
+            Input input = inputs.get(i);
+            if (input.coverage != null) {
+                covSize = Math.max(covSize, input.coverage.size());
+            }
+            // the cycles are unknown if the target does not report them, fall back to the input size
+            costs[i] = input.cycles > 0 ? input.cycles : input.size();
+        }
+
+        int[] topRated = new int[covSize];
+        Arrays.fill(topRated, -1);
+        for (int i = 0; i < inputs.size(); i++) {
+            Input input = inputs.get(i);
+            if (input.coverage == null) {
+                continue;
+            }
+            final int idx = i;
+            input.coverage.forEachNonZero(p -> {
+                if (topRated[p] < 0 || costs[idx] < costs[topRated[p]]) {
+                    topRated[p] = idx;
+                }
+            });
+        }
+
+        // Walk the points and keep the top-rated input of every point that is not covered yet
+        int[] keptCover = new int[covSize];
+        IntArrayList kept = new IntArrayList();
+        for (int p = 0; p < covSize; p++) {
+            if (topRated[p] < 0 || keptCover[p] > 0) {
+                continue;
+            }
+            kept.add(topRated[p]);
+            inputs.get(topRated[p]).coverage.forEachNonZero(q -> keptCover[q]++);
+        }
+
+        // An input kept early can be made redundant by inputs kept later, drop those (most expensive first)
+        kept.sortThis((a, b) -> Long.compare(costs[a], costs[b]) != 0 ? Long.compare(costs[a], costs[b]) : Integer.compare(a, b));
+        IntArrayList cover = new IntArrayList();
+        for (int k = kept.size() - 1; k >= 0; k--) {
+            Coverage coverage = inputs.get(kept.get(k)).coverage;
+            boolean[] redundant = {true};
+            coverage.forEachNonZero(q -> redundant[0] &= keptCover[q] > 1);
+            if (redundant[0]) {
+                coverage.forEachNonZero(q -> keptCover[q]--);
+            } else {
+                cover.add(kept.get(k));
+            }
+        }
+
+        // The cheapest input of the cover is responsible for a point
+        int[] responsible = new int[covSize];
+        Arrays.fill(responsible, -1);
+        for (int k = cover.size() - 1; k >= 0; k--) {
+            final int idx = cover.get(k);
+            inputs.get(idx).coverage.forEachNonZero(q -> {
+                if (responsible[q] < 0) {
+                    responsible[q] = idx;
+                }
+            });
+        }
+        return new CorpusCull(inputs, responsible, cover.size());
+    }
+}
@@ -29,16 +29,17 @@
 
 package fuzzing.fast
 
-import fuzzing.targets.{FIRRTLHandler, FuzzTarget}
+import fuzzing.targets.{FIRRTLHandler, FuzzTarget, TLULTemplates}
 import java.io.{File, InputStream, OutputStream, PrintWriter}
 import java.io.ByteArrayInputStream
-import java.util.concurrent.{Executors, Future, Callable}
+import java.util.concurrent.{ArrayBlockingQueue, Executors, Future, Callable, TimeUnit}
 import java.io.File
 import java.time.Duration
 import scala.util.Random
 import scala.collection.JavaConverters
 import java.util.concurrent.ConcurrentLinkedQueue
 import java.util.concurrent.ForkJoinPool
+import java.util.concurrent.atomic.AtomicInteger
 
 import fuzzing.fast.util.GuidanceException
 import fuzzing.fast.util.IOUtils
@@ -65,22 +66,62 @@ object FastDriver extends App {
     val outputFolder_str = argAnnos.collectFirst {case OutputFolder(i) => i}.getOrElse("")
     val seedInputFolder_str = argAnnos.collectFirst {case SeedInputFolder(i) => i}.getOrElse("")
     val threadNum = argAnnos.collectFirst {case ThreadNum(i) => i}.getOrElse(2)
+    val mode = argAnnos.collectFirst {case FuzzMode(i) => i}.getOrElse("pipeline")
+    val batchSize = argAnnos.collectFirst {case BatchSize(i) => i}.getOrElse(16)
+    val scheduler = argAnnos.collectFirst {case ParentSchedule(s) => s}.getOrElse("roundrobin")
+    val trimExecs = argAnnos.collectFirst {case TrimExecs(i) => i}.getOrElse(128)
+    val byteMutations = argAnnos.contains(ByteMutations)
+    val seedTemplates = argAnnos.collectFirst {case SeedTemplates(s) => s}
+    val syncDir_str = argAnnos.collectFirst {case SyncDir(i) => i}.getOrElse("")
+    val syncId = argAnnos.collectFirst {case SyncId(i) => i}.getOrElse(ProcessHandle.current().pid().toString)
+    // Processes of one campaign must not share build directories or output folders
+    val instanceSuffix = if (syncDir_str.nonEmpty) "_" + syncId else ""
+    require(FastFuzz.Modes.contains(mode), s"Unknown mode $mode, expected one of ${FastFuzz.Modes.mkString(", ")}")
+    require(batchSize > 0, s"The batch size needs to be positive, not $batchSize")
   
-    val targets: Array[FuzzTarget] = (for(i <- 1 to threadNum) yield {
-    	FIRRTLHandler.firrtlToTarget(targetKind, "test_run_dir/fast_fuzz_" + targetKind + "_" + i, argAnnos)
-    }).toArray
+    // the design is compiled once, every fuzzing thread gets its own instance of the simulation library;
+    // with multithreaded models there are fewer instances than threads
+    val targets: Array[FuzzTarget] =
+        FIRRTLHandler.firrtlToTargetsOnCores(targetKind, "test_run_dir/fast_fuzz_" + targetKind + instanceSuffix, threadNum, argAnnos).toArray
 
     val testName = "test_run_dir/fast_fuzz_" + targetKind
     val duration: Duration = Duration.ofHours(1)  // or null for unlimited time
     val trials: Long = 100L  // or null for unlimited trials
-    val outputDir: File = new File(outputFolder_str)
+    val outputDir: File = if (syncDir_str.nonEmpty) new File(syncDir_str, syncId) else new File(outputFolder_str)
     val seedInputDir: File = new File(seedInputFolder_str)
 
     val fuzzGuidance = new FuzzGuidance(testName, duration, trials, outputDir, seedInputDir)
+    fuzzGuidance.setScheduler(scheduler)
+    // mutate whole cycles and port values if the target reads the input in frames of the same layout
+    if (!byteMutations && targets.head.frameFieldWidths.nonEmpty) {
+        fuzzGuidance.setFrameLayout(targets.head.frameFieldWidths.toArray)
+    }
+    // mutate opcodes, addresses and data of whole instructions if the target reads TileLink instructions
+    if (!byteMutations) {
+        targets.head.instructionAddresses.foreach { addresses =>
+            println(s"Mutating TileLink instructions with ${addresses.size} register addresses")
+            fuzzGuidance.setInstructionLayout(addresses.toArray)
+        }
+    }
+    // values that the design compares its inputs with are inserted into inputs and written over them
+    val dictionary = targets.head.dictionary
+    if (dictionary.nonEmpty) {
+        println(s"Loaded a dictionary of ${dictionary.size} values that the design compares its inputs with")
+        fuzzGuidance.setDictionary(dictionary.map(_._1).toArray, dictionary.map(_._2).toArray)
+    }
+    seedTemplates.foreach { path =>
+        for ((name, seed) <- TLULTemplates.seeds(new File(path))) {
+            fuzzGuidance.addSeedInput(seed, name)
+        }
+    }
+    if (syncDir_str.nonEmpty) {
+        fuzzGuidance.enableSync(new File(syncDir_str))
+        FastFuzz.logFileName = new File(outputDir, "cov.log").getPath
+    }
 
     println("\nReady to fast fuzz! ")
 
-    FastFuzz.fuzz(targets, fuzzGuidance, feedbackCap)
+    FastFuzz.fuzz(targets, fuzzGuidance, feedbackCap, mode, batchSize, trimExecs)
 }
 
 object FastFuzz {
@@ -92,18 +133,36 @@ object FastFuzz {
     var totalGetTime = 0: Long
     var totalUpdTime = 0: Long
     var totalSyncTime= 0: Long
-    val logFile = new PrintWriter(new File("cov.log"))
+    var totalIdleTime= 0: Long
+    var logFileName = "cov.log"
+    lazy val logFile = new PrintWriter(new File(logFileName))
+
+    /** sync: all threads run one input, then the corpus is updated (barrier per iteration)
+     *  pipeline: inputs of the next iteration are prepared while the current one runs (ping-pong buffer)
+     *  async: workers run inputs continuously, a single guidance thread consumes their results (no barrier)
+     *  concurrent: every worker runs its own get/run/update loop on the thread-safe guidance methods
+     *  batch: like concurrent, but every worker hands `batchSize` inputs at a time to the simulator in a single call
+     *  In the concurrent and batch modes, workers also trim newly saved inputs (with up to `trimExecs` runs per input).
+     */
+    val Modes = Seq("sync", "pipeline", "async", "concurrent", "batch")
+
+    /** Result of one simulation, handed from a worker to the guidance thread in async mode */
+    private case class ExecResult(worker: Int, input: FuzzGuidance.Input[_], cycleNum: Long, simTime: Long, error: Throwable)
 
     // The Fuzz Loop
-    def fuzz(targets: Array[FuzzTarget], fuzzGuidance: FuzzGuidance, feedbackCap: Int) : Unit = {
+    def fuzz(targets: Array[FuzzTarget], fuzzGuidance: FuzzGuidance, feedbackCap: Int, mode: String = "pipeline", batchSize: Int = 16, trimExecs: Int = 0) : Unit = {
         val threadNum = targets.length
-        val pipeline = true
-        // val pipeline = false
+        val pipeline = mode == "pipeline"
         val iterNum = 100000    // draft version, set iteration time manually
         // val iterNum = 1 //debug
         val startTime = System.nanoTime()
-        // /*
-        if(threadNum == 1) {
+        if(mode == "async") {
+            fuzzAsync(targets, fuzzGuidance, feedbackCap, iterNum * threadNum, startTime)
+        } else if(mode == "concurrent") {
+            fuzzConcurrent(targets, fuzzGuidance, feedbackCap, iterNum * threadNum, 1, trimExecs, startTime)
+        } else if(mode == "batch") {
+            fuzzConcurrent(targets, fuzzGuidance, feedbackCap, iterNum * threadNum, batchSize, trimExecs, startTime)
+        } else if(threadNum == 1) {
             for(iter <- 1 to iterNum) { //iteration
                 // 1. Get input
                 val get_t1 = System.nanoTime()
@@ -115,23 +174,23 @@ object FastFuzz {
             	// 2. Run simulation
             	//feedbackCap：limite the max value of coverPoints hit count to 255
                 val sim_t1 = System.nanoTime()
-            	val (coverage0, isValid, cycleNum) = targets(0).run(in_stream, feedbackCap)
+            	val (runCov, isValid, cycleNum) = targets(0).run(in_stream, feedbackCap)
                 val sim_t2 = System.nanoTime()
 
             	in_stream.close()
                 
                 // 3. Update seed corpus
                 val upd_t1 = System.nanoTime()
-                val runCov = new Coverage(coverage0.toArray) //get the byte sequence
             	input.coverage = runCov
                 input.isValid = isValid
+                input.cycles = cycleNum - cycleSum
                 fuzzGuidance.updateSeedCorpus(input) //little time used
 
             	// 4. Count stastics
             	cycleSum = cycleNum
                 totalSimTime += (sim_t2 - sim_t1) / 1000
                 if(coverPointsNum == 0)
-                	coverPointsNum = coverage0.size
+                	coverPointsNum = runCov.size()
             	// overallCoverage = overallCoverage.union(coverage0.zipWithIndex.filter(_._1 != 0).map(_._2).toSet)
                 // if(overallCoverage.size != fuzzGuidance.getMaxCoverage()) {
                 //     println("Error") // debug
@@ -177,15 +236,15 @@ object FastFuzz {
                             val in_stream = fuzzGuidance.createParameterStream(input)
                   		    // 2. Run simulation
                             val sim_t1 = System.nanoTime()
-                  		    val (coverage0, isValid, cycleNum) = target.run(in_stream, feedbackCap)
+                  		    val (runCov, isValid, cycleNum) = target.run(in_stream, feedbackCap)
                             val sim_t2 = System.nanoTime()
 
                   		    in_stream.close()
 
                             // 3. Update seed corpus(1)
-                            val runCov = new Coverage(coverage0.toArray)
                   		    input.coverage = runCov
                             input.isValid = isValid
+                            input.cycles = cycleNum - cycleNums(tag^1)(idx)
 
                             // 4. Count Stastics(1)
                             cycleNums(tag)(idx) = cycleNum
@@ -208,8 +267,7 @@ object FastFuzz {
                             totalSimTime += simTimes(tag^1)(idx)
                         }
                         if(coverPointsNum == 0) {
-                            val coverage = inputs(tag^1)(0).coverage.getCoverPoints()
-                            coverPointsNum = coverage.size
+                            coverPointsNum = inputs(tag^1)(0).coverage.size()
                         }
                         // for(idx <- 0 until threadNum) {
                         //     val coverage = inputs(tag^1)(idx).coverage.getCoverPoints()
@@ -262,8 +320,7 @@ object FastFuzz {
                             totalSimTime += simTimes(tag)(idx)
                         }
                         if(coverPointsNum == 0) {
-                            val coverage = inputs(tag)(0).coverage.getCoverPoints()
-                            coverPointsNum = coverage.size
+                            coverPointsNum = inputs(tag)(0).coverage.size()
                         }
                         // for(idx <- 0 until threadNum) {
                         //     val coverage = inputs(tag)(idx).coverage.getCoverPoints()
@@ -311,15 +368,15 @@ object FastFuzz {
                             val in_stream = fuzzGuidance.createParameterStream(input)
                   		    // 2. Run simulation
                             val sim_t1 = System.nanoTime()
-                  		    val (coverage0, isValid, cycleNum) = target.run(in_stream, feedbackCap)
+                  		    val (runCov, isValid, cycleNum) = target.run(in_stream, feedbackCap)
                             val sim_t2 = System.nanoTime()
 
                   		    in_stream.close()
 
                             // 3. Update seed corpus(1)
-                            val runCov = new Coverage(coverage0.toArray)
                   		    input.coverage = runCov
                             input.isValid = isValid
+                            input.cycles = cycleNum - cycleNums(idx)
 
                             // 4. Count Stastics(1)
                             cycleNums(idx) = cycleNum
@@ -347,8 +404,7 @@ object FastFuzz {
                         totalSimTime += simTimes(idx)
                     }
                     if(coverPointsNum == 0) {
-                        val coverage = inputs(0)(0).coverage.getCoverPoints()
-                        coverPointsNum = coverage.size
+                        coverPointsNum = inputs(0)(0).coverage.size()
                     }
                     val thisCoverage = fuzzGuidance.getMaxCoverage().toDouble / coverPointsNum
                     if(thisCoverage > cumulativeCoverage) {                                            
@@ -374,12 +430,215 @@ object FastFuzz {
         println(s"Avg GetTime: ${totalGetTime / iterNum}vs")
         println(s"Avg UpdTime: ${totalUpdTime / iterNum}vs")
         println(s"Avg SyncTime:${totalSyncTime/ iterNum}vs")
+        if(mode == "async") {
+            println(s"Avg IdleTime:${totalIdleTime / threadNum / iterNum}vs")
+        }
         
         fuzzGuidance.displayStats(true)
         targets.foreach(_.finish(verbose = false))
         logFile.println(s"coverPointsNum: $coverPointsNum") //debug
         logFile.close()
     }
+
+    // Barrier-free execution: every worker takes the next input as soon as it is done with the previous one
+    // and pushes its result into a bounded queue that is drained by the calling (guidance) thread.
+    // Both queues are bounded, so the guidance thread runs at most `queueDepth` inputs ahead of the workers
+    // and workers block when the guidance thread falls behind on results.
+    // SyncTime: guidance thread waiting for results, IdleTime: workers waiting for inputs
+    private def fuzzAsync(targets: Array[FuzzTarget], fuzzGuidance: FuzzGuidance, feedbackCap: Int, execNum: Int, startTime: Long): Unit = {
+        val threadNum = targets.length
+        val queueDepth = 2 * threadNum
+        val inputQueue  = new ArrayBlockingQueue[FuzzGuidance.Input[_]](queueDepth)
+        val resultQueue = new ArrayBlockingQueue[ExecResult](queueDepth)
+        val idleTimes   = new Array[Long](threadNum)
+        val cycleNums   = new Array[Long](threadNum)
+        val executor = Executors.newFixedThreadPool(threadNum)
+        targets.zipWithIndex.foreach { case (target, idx) =>
+            executor.submit(new Runnable {
+                def run() {
+                    var lastCycleNum = 0L
+                    try {
+                        while(true) {
+                            val idle_t1 = System.nanoTime()
+                            val input = inputQueue.take()
+                            val sim_t1 = System.nanoTime()
+                            idleTimes(idx) += (sim_t1 - idle_t1) / 1000
+                            val result = try {
+                                // 2. Run simulation
+                                val in_stream = fuzzGuidance.createParameterStream(input)
+                                val (runCov, isValid, cycleNum) = target.run(in_stream, feedbackCap)
+                                in_stream.close()
+                                input.coverage = runCov
+                                input.isValid = isValid
+                                input.cycles = cycleNum - lastCycleNum
+                                lastCycleNum = cycleNum
+                                ExecResult(idx, input, cycleNum, (System.nanoTime() - sim_t1) / 1000, null)
+                            } catch {
+                                case e: Exception => ExecResult(idx, input, 0, 0, e)
+                            }
+                            resultQueue.put(result)
+                        }
+                    } catch {
+                        case _: InterruptedException => // stopped by the guidance thread
+                    }
+                }
+            })
+        }
+
+        var issued = 0
+        var completed = 0
+        try {
+            while(completed < execNum) {
+                // 1. Get inputs until the input queue is full (we are the only producer, so put never blocks)
+                val get_t1 = System.nanoTime()
+                while(issued < execNum && inputQueue.remainingCapacity() > 0) {
+                    inputQueue.put(fuzzGuidance.getInput())
+                    issued += 1
+                }
+                val get_t2 = System.nanoTime()
+                totalGetTime += (get_t2 - get_t1) / 1000
+
+                // Wait for at least one result, there is always an input in flight at this point
+                val sync_t1 = System.nanoTime()
+                var result = resultQueue.take()
+                val sync_t2 = System.nanoTime()
+                totalSyncTime += (sync_t2 - sync_t1) / 1000
+
+                // 3. Update seed corpus with all results that are ready
+                val upd_t1 = System.nanoTime()
+                while(result != null) {
+                    if(result.error != null) {
+                        throw result.error
+                    }
+                    fuzzGuidance.updateSeedCorpus(result.input)
+                    // 4. Count stastics
+                    cycleNums(result.worker) = result.cycleNum
+                    totalSimTime += result.simTime
+                    if(coverPointsNum == 0) {
+                        coverPointsNum = result.input.coverage.size()
+                    }
+                    completed += 1
+                    result = resultQueue.poll()
+                }
+                cycleSum = cycleNums.sum
+                val thisCoverage = fuzzGuidance.getMaxCoverage().toDouble / coverPointsNum
+                if(thisCoverage > cumulativeCoverage) {
+                    cumulativeCoverage = thisCoverage //update coverage
+                    val time = (System.nanoTime()-startTime) / 1000 / 1000 / 1000
+                    logFile.println(s"$cumulativeCoverage, $cycleSum, $time")
+                }
+                val upd_t2 = System.nanoTime()
+                totalUpdTime += (upd_t2 - upd_t1) / 1000
+            }
+            val time = (System.nanoTime()-startTime) / 1000 / 1000 / 1000
+            logFile.println(s"$cumulativeCoverage, $cycleSum, $time")
+        } finally {
+            executor.shutdownNow()
+            executor.awaitTermination(1, TimeUnit.MINUTES)
+        }
+        totalIdleTime += idleTimes.sum
+    }
+
+    // Every worker gets (and mutates) its own inputs, runs them and updates the corpus itself.
+    // Coverage is merged into the global maps atomically, only inputs that are saved take the guidance lock.
+    // The calling thread just logs the coverage progress. Get/Upd times are per worker, averaged over the workers.
+    // With a `batchSize` above 1, workers get that many inputs before they run them with one `runBatch` call,
+    // so mutants of the same batch do not see the corpus updates of their siblings.
+    // Before every batch, a worker trims the next saved input that is waiting for it (if `trimExecs` is positive);
+    // the runs of the trimmer do not count towards `execNum`.
+    private def fuzzConcurrent(targets: Array[FuzzTarget], fuzzGuidance: FuzzGuidance, feedbackCap: Int, execNum: Int, batchSize: Int, trimExecs: Int, startTime: Long): Unit = {
+        val threadNum = targets.length
+        if(trimExecs > 0) {
+            fuzzGuidance.enableTrimming()
+        }
+        val trimmers = targets.map(new InputTrimmer(_, feedbackCap, trimExecs))
+        val remaining = new AtomicInteger(execNum)
+        val getTimes  = new Array[Long](threadNum)
+        val simTimes  = new Array[Long](threadNum)
+        val updTimes  = new Array[Long](threadNum)
+        val cycleNums = new Array[Long](threadNum)
+        val coverSizes = new Array[Int](threadNum)
+        val executor = Executors.newFixedThreadPool(threadNum)
+        val futures: Array[Future[_]] = targets.zipWithIndex.map { case (target, idx) =>
+            executor.submit(new Runnable {
+                def run() {
+                    var batch = math.min(batchSize, remaining.getAndAdd(-batchSize))
+                    while(batch > 0) {
+                        // 0. Trim a saved input
+                        val trimJob = if(trimExecs > 0) fuzzGuidance.pollTrimJob() else null
+                        if(trimJob != null) {
+                            val job = trimJob.asInstanceOf[FuzzGuidance#LinearInput]
+                            val (trimmed, cycleNum) = trimmers(idx).trim(job.toByteArray, job.isValid, job.coverage, cycleNums(idx))
+                            trimmed.foreach(t => fuzzGuidance.trimmed(job, t.bytes, t.coverage, t.cycles))
+                            cycleNums(idx) = cycleNum
+                        }
+                        // 1. Get inputs
+                        val get_t1 = System.nanoTime()
+                        val inputs = Seq.fill(batch)(fuzzGuidance.getInputConcurrent())
+                        val in_streams = inputs.map(fuzzGuidance.createParameterStream(_))
+                        // 2. Run simulation
+                        val sim_t1 = System.nanoTime()
+                        val results =
+                            if(batchSize == 1) Seq(target.run(in_streams.head, feedbackCap))
+                            else target.runBatch(in_streams, feedbackCap)
+                        val sim_t2 = System.nanoTime()
+                        in_streams.foreach(_.close())
+                        // 3. Update seed corpus
+                        var lastCycleNum = cycleNums(idx)
+                        inputs.zip(results).foreach { case (input, (runCov, isValid, cycleNum)) =>
+                            input.coverage = runCov
+                            input.isValid = isValid
+                            input.cycles = cycleNum - lastCycleNum
+                            lastCycleNum = cycleNum
+                            fuzzGuidance.updateSeedCorpusConcurrent(input)
+                        }
+                        val upd_t2 = System.nanoTime()
+                        // 4. Count stastics
+                        getTimes(idx) += (sim_t1 - get_t1) / 1000
+                        simTimes(idx) += (sim_t2 - sim_t1) / 1000
+                        updTimes(idx) += (upd_t2 - sim_t2) / 1000
+                        cycleNums(idx) = results.last._3
+                        coverSizes(idx) = results.last._1.size()
+                        batch = math.min(batchSize, remaining.getAndAdd(-batchSize))
+                    }
+                }
+            })
+        }
+
+        def logCoverage(): Unit = {
+            cycleSum = cycleNums.sum
+            if(coverPointsNum == 0) {
+                coverPointsNum = coverSizes.max
+            }
+            if(coverPointsNum != 0) {
+                val thisCoverage = fuzzGuidance.getMaxCoverage().toDouble / coverPointsNum
+                if(thisCoverage > cumulativeCoverage) {
+                    cumulativeCoverage = thisCoverage //update coverage
+                    val time = (System.nanoTime()-startTime) / 1000 / 1000 / 1000
+                    logFile.println(s"$cumulativeCoverage, $cycleSum, $time")
+                }
+            }
+        }
+
+        try {
+            while(!futures.forall(_.isDone)) {
+                logCoverage()
+                Thread.sleep(100)
+            }
+            futures.foreach(_.get()) // rethrow worker exceptions
+            logCoverage()
+            val time = (System.nanoTime()-startTime) / 1000 / 1000 / 1000
+            logFile.println(s"$cumulativeCoverage, $cycleSum, $time")
+        } finally {
+            executor.shutdownNow()
+        }
+        totalGetTime += getTimes.sum / threadNum
+        totalSimTime += simTimes.sum
+        totalUpdTime += updTimes.sum / threadNum
+        if(trimExecs > 0) {
+            println(s"Trimmed ${trimmers.map(_.trimmedInputs).sum} inputs by ${trimmers.map(_.removedBytes).sum} bytes")
+        }
+    }
 }
 
 //Multi Process
@@ -396,10 +655,9 @@ object FastFuzz {
                   		val in_stream = fuzzGuidance.createParameterStream(input)
                   		// Run simulation
                         val t3 = System.nanoTime()
-                  		val (coverage0, isValid, cycleNum) = target.run(in_stream, feedbackCap)
+                  		val (runCov, isValid, cycleNum) = target.run(in_stream, feedbackCap)
                   		in_stream.close()
                         val t4 = System.nanoTime()
-                        val runCov = new Coverage(coverage0.toArray)
                   		input.coverage = runCov
                         input.isValid = isValid
                         cycleNums(idx) = cycleNum
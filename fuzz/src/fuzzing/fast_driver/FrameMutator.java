@@ -0,0 +1,280 @@
+package fuzzing.fast;
+
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Mutations for inputs that are a sequence of cycle frames with the same layout.
+ *
+ * <p>A frame holds the value of every input port, in order and big-endian in
+ * <code>(width + 7) / 8</code> bytes (see <code>chiseltest.simulator.FrameLayout</code>).
+ * Field mutations only touch the <code>width</code> bits of a port that the target reads, and
+ * frames are only inserted, removed, repeated or swapped as a whole, so all later frames stay aligned.
+ * Values of a dictionary are written into the field they belong to.
+ * Bytes after the last complete frame are kept as they are.</p>
+ */
+public class FrameMutator {
+    /** Maximum number of frames that are removed or repeated by one mutation. */
+    protected static final int MAX_BLOCK_FRAMES = 8;
+
+    private final int frameBytes;
+    private final int maxBytes;
+    private final int[] fieldOffsets;
+    private final int[] fieldWidths;
+
+    /** Values of single fields that the design compares inputs with, see {@link #setDictionary(int[], byte[][])}. */
+    private int[] dictionaryFields = new int[0];
+    private byte[][] dictionaryValues = new byte[0][];
+
+    /**
+     * @param fieldWidths the width in bits of every port of a frame
+     * @param maxBytes    inputs do not grow beyond this size
+     */
+    public FrameMutator(int[] fieldWidths, int maxBytes) {
+        this.fieldWidths = fieldWidths.clone();
+        this.fieldOffsets = new int[fieldWidths.length];
+        int offset = 0;
+        for (int i = 0; i < fieldWidths.length; i++) {
+            fieldOffsets[i] = offset;
+            offset += (fieldWidths[i] + 7) / 8;
+        }
+        this.frameBytes = offset;
+        this.maxBytes = maxBytes;
+    }
+
+    public int getFrameBytes() {
+        return frameBytes;
+    }
+
+    /**
+     * Sets the values that the dictionary mutations write into fields.
+     *
+     * @param fields the field of every token, tokens with a negative field or a size other than the field are ignored
+     * @param tokens the big-endian bytes of the values
+     */
+    public void setDictionary(int[] fields, byte[][] tokens) {
+        int n = 0;
+        int[] validFields = new int[fields.length];
+        byte[][] validTokens = new byte[fields.length][];
+        for (int i = 0; i < fields.length; i++) {
+            int field = fields[i];
+            if (field >= 0 && field < fieldWidths.length && tokens[i].length == (fieldWidths[field] + 7) / 8) {
+                validFields[n] = field;
+                validTokens[n] = tokens[i];
+                n++;
+            }
+        }
+        dictionaryFields = Arrays.copyOf(validFields, n);
+        dictionaryValues = Arrays.copyOf(validTokens, n);
+    }
+
+    /** The bytes of a mutated input. */
+    public static class Result {
+        public byte[] data;
+        public int length;
+        /** Offset of the first byte that differs from the parent. */
+        public int firstMutated;
+        public String desc = "";
+
+        Result(byte[] data, int length) {
+            this.data = data;
+            this.length = length;
+            this.firstMutated = length;
+        }
+    }
+
+    /**
+     * Applies <code>numMutations</code> random mutations to a copy of the first <code>length</code> bytes
+     * of <code>values</code>, which hold at least one complete frame.
+     */
+    public Result havoc(byte[] values, int length, Random random, int numMutations) {
+        Result r = new Result(Arrays.copyOf(values, length), length);
+        for (int mutation = 0; mutation < numMutations; mutation++) {
+            int frames = r.length / frameBytes;
+            int frame = random.nextInt(frames);
+            switch (random.nextInt(9)) {
+                case 0:
+                case 1:
+                case 2:
+                    flipBit(r, frame, random);
+                    break;
+                case 3:
+                case 4:
+                    setField(r, frame, random);
+                    break;
+                case 5:
+                    if (frames > 1) {
+                        removeFrames(r, frame, 1 + random.nextInt(Math.min(MAX_BLOCK_FRAMES, frames - 1)));
+                    } else {
+                        setField(r, frame, random);
+                    }
+                    break;
+                case 6:
+                    if (random.nextBoolean()) {
+                        repeatFrames(r, frame, random);
+                    } else {
+                        insertFrame(r, random.nextInt(frames + 1), random);
+                    }
+                    break;
+                case 7:
+                    swapFrames(r, frame, random.nextInt(frames));
+                    break;
+                default:
+                    if (dictionaryFields.length == 0) {
+                        setField(r, frame, random);
+                    } else if (random.nextBoolean()) {
+                        writeToken(r, frame, random);
+                    } else {
+                        insertToken(r, frame, random);
+                    }
+                    break;
+            }
+        }
+        return r;
+    }
+
+    /**
+     * Returns the first <code>frames1</code> frames of one input followed by the frames of another one,
+     * starting at its frame <code>frame2</code>.
+     */
+    public Result splice(byte[] values1, int frames1, byte[] values2, int length2, int frame2) {
+        int suffix = Math.max(0, length2 - frame2 * frameBytes);
+        int prefix = frames1 * frameBytes;
+        suffix = Math.min(suffix, Math.max(0, maxBytes - prefix));
+        byte[] data = new byte[prefix + suffix];
+        System.arraycopy(values1, 0, data, 0, prefix);
+        System.arraycopy(values2, frame2 * frameBytes, data, prefix, suffix);
+        Result r = new Result(data, data.length);
+        r.firstMutated = prefix;
+        r.desc = "splice@" + frames1 + "/" + frame2;
+        return r;
+    }
+
+    private void flipBit(Result r, int frame, Random random) {
+        int field = random.nextInt(fieldWidths.length);
+        int bit = random.nextInt(fieldWidths[field]);
+        // fields are big-endian, bit 0 is the least significant bit of the last byte
+        int offset = frame * frameBytes + fieldOffsets[field] + (fieldWidths[field] + 7) / 8 - 1 - bit / 8;
+        r.data[offset] ^= (byte) (1 << (bit % 8));
+        mutated(r, offset, "flip");
+    }
+
+    /** Sets a field to zero, all ones, one or a random value. */
+    private void setField(Result r, int frame, Random random) {
+        int field = random.nextInt(fieldWidths.length);
+        int bytes = (fieldWidths[field] + 7) / 8;
+        int offset = frame * frameBytes + fieldOffsets[field];
+        int kind = random.nextInt(4);
+        for (int i = 0; i < bytes; i++) {
+            byte value;
+            if (kind == 0) {
+                value = 0;
+            } else if (kind == 1) {
+                value = (byte) 0xff;
+            } else if (kind == 2) {
+                value = (byte) (i == bytes - 1 ? 1 : 0);
+            } else {
+                value = (byte) random.nextInt(256);
+            }
+            r.data[offset + i] = value;
+        }
+        // the unused high bits of the first byte do not matter, but keep them clear
+        int topBits = fieldWidths[field] - 8 * (bytes - 1);
+        r.data[offset] &= (byte) ((1 << topBits) - 1);
+        mutated(r, offset, "field");
+    }
+
+    /** Writes a dictionary value into its field. */
+    private void writeToken(Result r, int frame, Random random) {
+        int token = random.nextInt(dictionaryFields.length);
+        int offset = frame * frameBytes + fieldOffsets[dictionaryFields[token]];
+        System.arraycopy(dictionaryValues[token], 0, r.data, offset, dictionaryValues[token].length);
+        mutated(r, offset, "dict");
+    }
+
+    /** Inserts a copy of a frame with a dictionary value in one of its fields after the frame. */
+    private void insertToken(Result r, int frame, Random random) {
+        int start = (frame + 1) * frameBytes;
+        if (!makeRoom(r, start, frameBytes)) {
+            return;
+        }
+        System.arraycopy(r.data, frame * frameBytes, r.data, start, frameBytes);
+        int token = random.nextInt(dictionaryFields.length);
+        int offset = start + fieldOffsets[dictionaryFields[token]];
+        System.arraycopy(dictionaryValues[token], 0, r.data, offset, dictionaryValues[token].length);
+        mutated(r, start, "dictins");
+    }
+
+    private void removeFrames(Result r, int frame, int count) {
+        count = Math.min(count, r.length / frameBytes - frame);
+        int start = frame * frameBytes;
+        int end = start + count * frameBytes;
+        System.arraycopy(r.data, end, r.data, start, r.length - end);
+        r.length -= end - start;
+        mutated(r, start, "del");
+    }
+
+    private void insertFrame(Result r, int frame, Random random) {
+        int start = frame * frameBytes;
+        if (!makeRoom(r, start, frameBytes)) {
+            return;
+        }
+        for (int i = start; i < start + frameBytes; i++) {
+            r.data[i] = (byte) random.nextInt(256);
+        }
+        for (int field = 0; field < fieldWidths.length; field++) {
+            int topBits = fieldWidths[field] - 8 * ((fieldWidths[field] + 7) / 8 - 1);
+            r.data[start + fieldOffsets[field]] &= (byte) ((1 << topBits) - 1);
+        }
+        mutated(r, start, "ins");
+    }
+
+    /** Repeats a block of frames, i.e. holds the inputs of those cycles for longer. */
+    private void repeatFrames(Result r, int frame, Random random) {
+        int count = 1 + random.nextInt(Math.min(MAX_BLOCK_FRAMES, r.length / frameBytes - frame));
+        int times = 1 + random.nextInt(MAX_BLOCK_FRAMES);
+        int start = frame * frameBytes;
+        int block = count * frameBytes;
+        int end = start + block;
+        times = Math.min(times, (maxBytes - r.length) / block);
+        if (times <= 0 || !makeRoom(r, end, times * block)) {
+            return;
+        }
+        for (int t = 0; t < times; t++) {
+            System.arraycopy(r.data, start, r.data, end + t * block, block);
+        }
+        mutated(r, end, "rep");
+    }
+
+    private void swapFrames(Result r, int frame1, int frame2) {
+        if (frame1 == frame2) {
+            return;
+        }
+        int a = frame1 * frameBytes;
+        int b = frame2 * frameBytes;
+        for (int i = 0; i < frameBytes; i++) {
+            byte tmp = r.data[a + i];
+            r.data[a + i] = r.data[b + i];
+            r.data[b + i] = tmp;
+        }
+        mutated(r, Math.min(a, b), "swap");
+    }
+
+    /** Moves the bytes from <code>offset</code> on by <code>n</code> bytes, unless the input would grow too large. */
+    private boolean makeRoom(Result r, int offset, int n) {
+        if (r.length + n > maxBytes) {
+            return false;
+        }
+        if (r.length + n > r.data.length) {
+            r.data = Arrays.copyOf(r.data, Math.max(r.length + n, 2 * r.data.length));
+        }
+        System.arraycopy(r.data, offset, r.data, offset + n, r.length - offset);
+        r.length += n;
+        return true;
+    }
+
+    private static void mutated(Result r, int offset, String op) {
+        r.firstMutated = Math.min(r.firstMutated, offset);
+        r.desc += r.desc.isEmpty() ? op : ":" + op;
+    }
+}
@@ -1,7 +1,6 @@
 package fuzzing.fast;
 
 import java.io.BufferedInputStream;
-import java.io.BufferedOutputStream;
 import java.io.Console;
 import java.io.File;
 import java.io.FileInputStream;
@@ -10,7 +9,12 @@ import java.io.FileOutputStream;
 import java.io.FileWriter;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
 import java.io.PrintWriter;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.time.Duration;
@@ -26,12 +30,15 @@ import java.util.List;
 import java.util.Map;
 import java.util.Random;
 import java.util.Set;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
 import java.util.concurrent.TimeUnit;
 import java.util.function.Consumer;
 import java.util.concurrent.atomic.AtomicReference;
 
 import org.eclipse.collections.api.iterator.IntIterator;
-import org.eclipse.collections.api.list.primitive.IntList;
+import org.eclipse.collections.impl.map.mutable.primitive.IntObjectHashMap;
 import org.eclipse.collections.impl.set.mutable.primitive.IntHashSet;
 
 import static java.lang.Math.ceil;
@@ -40,6 +47,7 @@ import static java.lang.Math.log;
 import fuzzing.fast.util.GuidanceException;
 import fuzzing.fast.util.IOUtils;
 import fuzzing.fast.util.Coverage;
+import fuzzing.fast.util.SharedCoverage;
 
 
 public class FuzzGuidance {
@@ -90,9 +98,12 @@ public class FuzzGuidance {
     protected int numChildrenGeneratedForCurrentParentInput = 0;
 
 
-    /** Number of cycles completed (i.e. how many times we've reset currentParentInputIdx to 0. */
+    /** Number of cycles completed, as counted by the {@link #scheduler}. */
     protected int cyclesCompleted = 0;
 
+    /** Picks the saved input that the next child is mutated from. */
+    protected ParentScheduler scheduler = new RoundRobinScheduler(this::getTargetChildrenForParent, this::completeCycle);
+
     /** Number of favored inputs in the last cycle. */
     protected int numFavoredLastCycle = 0;
 
@@ -116,10 +127,10 @@ public class FuzzGuidance {
 
 
     /** The maximum number of keys covered by any single input found so far. */
-    protected int maxCoverage = 0;
+    protected volatile int maxCoverage = 0;
 
     /** A mapping of coverage keys to inputs that are responsible for them. */
-    protected Map<Object, Input> responsibleInputs = new HashMap<>(totalCoverage.size());
+    protected IntObjectHashMap<Input> responsibleInputs = new IntObjectHashMap<>(totalCoverage.size());
 
     // ---------- LOGGING / STATS OUTPUT ------------
 
@@ -169,6 +180,68 @@ public class FuzzGuidance {
     /** Whether the application has more than one thread running coverage-instrumented code */
     protected boolean multiThreaded = true;
 
+    /** Counters that are incremented without holding the lock by {@link #updateSeedCorpusConcurrent(Input)}. */
+    private static final VarHandle NUM_TRIALS;
+    private static final VarHandle NUM_VALID;
+    static {
+        try {
+            MethodHandles.Lookup lookup = MethodHandles.lookup();
+            NUM_TRIALS = lookup.findVarHandle(FuzzGuidance.class, "numTrials", long.class);
+            NUM_VALID = lookup.findVarHandle(FuzzGuidance.class, "numValid", long.class);
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+
+    // ------------- CAMPAIGN SYNC ------------
+
+    /** The directory holding the output directories of all instances of a campaign (null if not syncing). */
+    protected File syncDirectory = null;
+
+    /** Coverage of all instances of the campaign, merged through a memory-mapped file. */
+    protected SharedCoverage sharedCoverage = null;
+
+    /** Corpus files of other instances that were already imported, as "instance/file". */
+    protected Set<String> syncedInputNames = new HashSet<>();
+
+    /** Minimum amount of time (in millis) between two scans of the other instances' corpus. */
+    protected final long SYNC_TIME_PERIOD = 2000;
+
+    /** Time at last corpus scan. */
+    protected long lastSyncTime = 0;
+
+    /** Suffix of saved files that came from another instance; those are not imported again. */
+    protected static final String SYNCED_SUFFIX = ",sync";
+
+
+    // ------------- CORPUS CULLING ------------
+
+    /** Runs the culling passes that are started at the end of a cycle, off the fuzzing threads. */
+    protected final Executor cullExecutor = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "corpus-cull");
+        t.setDaemon(true);
+        return t;
+    });
+
+    /** Whether a culling pass was started whose result was not applied yet. */
+    protected boolean cullInProgress = false;
+
+    /** Number of saved inputs at the start of the last culling pass. */
+    protected int lastCullSize = 0;
+
+    /** The result of a finished culling pass, applied by the next {@link #nextParentInput(Random)}. */
+    protected volatile CorpusCull pendingCull = null;
+
+
+    // ------------- INPUT TRIMMING ------------
+
+    /** Whether saved inputs are queued for trimming, see {@link #enableTrimming()}. */
+    protected boolean trimInputs = false;
+
+    /** Saved inputs that wait for a worker to trim them. */
+    protected Deque<Input> trimQueue = new ArrayDeque<>();
+
 
     // ------------- FUZZING HEURISTICS ------------
     /** Whether to save only valid inputs **/
@@ -197,6 +270,30 @@ public class FuzzGuidance {
 
     protected final boolean CONSTANT_MUTATION_SIZE = true;
 
+    /** Capacity of the byte array that is allocated the first time bytes are appended to an empty input. */
+    protected static final int INITIAL_CAPACITY = 64;
+
+    /** Mutations for inputs made of cycle frames, or null to mutate inputs byte by byte. */
+    protected FrameMutator frameMutator = null;
+
+    /** Mutations for inputs made of TileLink instructions, or null if the target does not read instructions. */
+    protected TLULMutator instructionMutator = null;
+
+    /** Number of instructions of an input that is generated from thin air with {@link #instructionMutator}. */
+    protected static final int FRESH_INSTRUCTIONS = 32;
+
+    /** Tokens that byte mutations insert into inputs or write over them, or null if there is no dictionary. */
+    protected byte[][] dictionary = null;
+
+    /** The frame field of every dictionary token, -1 for tokens that can appear anywhere. */
+    protected int[] dictionaryFields = null;
+
+    /** Probability that a child of byte mutations also gets a dictionary token. */
+    protected final double DICTIONARY_PROBABILITY = 0.25;
+
+    /** Shared backing array of inputs that do not hold any bytes yet. */
+    protected static final byte[] EMPTY_VALUES = new byte[0];
+
 
     /** Whether to save inputs that only add new coverage bits (but no new responsibilities). */
     protected final boolean DISABLE_SAVE_NEW_COUNTS = false;
@@ -267,6 +364,200 @@ public class FuzzGuidance {
         }
     }
     
+    /**
+     * Makes this instance part of a campaign of several fuzzer processes.
+     *
+     * <p>Every instance has its own output directory inside <code>syncDirectory</code>.
+     * The saved inputs of the other instances are periodically imported from their
+     * <code>corpus</code> directories, and the coverage of saved inputs is merged into
+     * a coverage map that is shared through a memory-mapped file. Imported inputs that
+     * add nothing to that map are queued without copying them into the own corpus.</p>
+     *
+     * @param syncDirectory the directory shared by all instances
+     * @throws IOException if the shared coverage map could not be opened
+     */
+    public void enableSync(File syncDirectory) throws IOException {
+        this.syncDirectory = IOUtils.createDirectory(syncDirectory);
+        this.sharedCoverage = new SharedCoverage(new File(syncDirectory, "coverage_map"));
+    }
+
+    /**
+     * Queues every input that is saved from now on for trimming. Workers take the inputs with
+     * {@link #pollTrimJob()}, remove frames that do not change the covered points and hand the
+     * result back with {@link #trimmed(Input, byte[], Coverage, long)}.
+     */
+    public void enableTrimming() {
+        trimInputs = true;
+    }
+
+    /**
+     * Returns the next saved input to trim, or null if there is none.
+     */
+    public synchronized Input pollTrimJob() {
+        return trimQueue.pollFirst();
+    }
+
+    /**
+     * Replaces a saved input by a trimmed version that covers the same points.
+     *
+     * <p>Saved inputs are never modified, since other threads may be mutating them and
+     * checkpoints refer to their bytes. The trimmed input is saved as a new input that takes
+     * over the responsibilities of the original, which is culled.</p>
+     *
+     * @param original the input returned by {@link #pollTrimJob()}
+     * @param bytes    the trimmed bytes
+     * @param coverage the coverage of a run of the trimmed bytes
+     * @param cycles   the cycles of a run of the trimmed bytes
+     */
+    public synchronized void trimmed(Input original, byte[] bytes, Coverage coverage, long cycles) throws GuidanceException {
+        if (bytes.length >= original.size()) {
+            return;
+        }
+        LinearInput input = new LinearInput(bytes, bytes.length);
+        input.desc = String.format("src:%06d,trim:%d", original.id, bytes.length);
+        input.coverage = coverage;
+        input.isValid = original.isValid;
+        input.cycles = cycles;
+        input.trimmed = true;
+        IntHashSet responsibilities = new IntHashSet(original.responsibilities);
+        infoLog("Trimmed input %d from %d to %d bytes", original.id, original.size(), bytes.length);
+        GuidanceException.wrap(() -> saveCurrentInput(input, responsibilities, "trim", coverage));
+        if (!original.culled) {
+            original.favored = false;
+            original.culled = true;
+            scheduler.inputCulled(original.id);
+        }
+    }
+
+    /**
+     * Mutates inputs as a sequence of cycle frames instead of byte by byte, see {@link FrameMutator}.
+     *
+     * @param fieldWidths the width in bits of every port that a frame holds a value for
+     */
+    public void setFrameLayout(int[] fieldWidths) {
+        frameMutator = new FrameMutator(fieldWidths, MAX_INPUT_SIZE);
+        if (dictionary != null) {
+            frameMutator.setDictionary(dictionaryFields, dictionary);
+        }
+    }
+
+    /**
+     * Mutates inputs as a sequence of TileLink instructions instead of byte by byte, see {@link TLULMutator}.
+     *
+     * @param registerAddresses the addresses of the registers of the design
+     */
+    public void setInstructionLayout(long[] registerAddresses) {
+        instructionMutator = new TLULMutator(registerAddresses, MAX_INPUT_SIZE);
+        if (dictionary != null) {
+            instructionMutator.setDictionary(dictionary);
+        }
+    }
+
+    /**
+     * Adds mutations that insert values which the design compares its inputs with into inputs,
+     * or write them over the bytes of an input, like the dictionary of AFL.
+     * Frame and instruction mutations write the tokens into the fields they belong to.
+     *
+     * @param fields the frame field of every token (see {@link #setFrameLayout(int[])}), -1 for tokens that can appear anywhere
+     * @param tokens the tokens, encoded like the target reads them
+     */
+    public void setDictionary(int[] fields, byte[][] tokens) {
+        if (tokens.length == 0) {
+            return;
+        }
+        dictionary = tokens.clone();
+        dictionaryFields = fields.clone();
+        if (frameMutator != null) {
+            frameMutator.setDictionary(dictionaryFields, dictionary);
+        }
+        if (instructionMutator != null) {
+            instructionMutator.setDictionary(dictionary);
+        }
+    }
+
+    /**
+     * Adds an input that is executed before the inputs of the seed folder are mutated,
+     * e.g. one generated from a template.
+     *
+     * @param bytes the bytes of the input
+     * @param name  the name of the input in the description of the saved input
+     */
+    public synchronized void addSeedInput(byte[] bytes, String name) {
+        LinearInput input = new LinearInput(bytes, Math.min(bytes.length, MAX_INPUT_SIZE));
+        input.desc = "seed:" + name;
+        seedInputs.add(input);
+    }
+
+    /**
+     * Selects how parents are picked from the saved inputs.
+     *
+     * @param name <code>roundrobin</code> walks the saved inputs in order (the default),
+     *             <code>rarity</code> picks them by the rarity of their coverage per simulated cycle
+     *             (see {@link RarityScheduler})
+     */
+    public void setScheduler(String name) {
+        switch (name) {
+            case "roundrobin":
+                scheduler = new RoundRobinScheduler(this::getTargetChildrenForParent, this::completeCycle);
+                break;
+            case "rarity":
+                scheduler = new RarityScheduler(this::completeCycle);
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown scheduler " + name + ", expected roundrobin or rarity");
+        }
+        for (int i = 0; i < savedInputs.size(); i++) {
+            scheduler.inputSaved(i, savedInputs.get(i));
+        }
+    }
+
+    /**
+     * Queues the inputs that other instances saved since the last scan. They are
+     * run like fresh inputs and only saved here if they add local coverage.
+     */
+    protected void syncCorpus() {
+        long now = System.currentTimeMillis();
+        if (syncDirectory == null || now - lastSyncTime < SYNC_TIME_PERIOD) {
+            return;
+        }
+        lastSyncTime = now;
+        File[] instances = syncDirectory.listFiles(File::isDirectory);
+        if (instances == null) {
+            return;
+        }
+        int imported = 0;
+        for (File instance : instances) {
+            if (instance.getAbsoluteFile().equals(outputDirectory.getAbsoluteFile())) {
+                continue;
+            }
+            File[] files = new File(instance, "corpus").listFiles();
+            if (files == null) {
+                continue;
+            }
+            Arrays.sort(files);
+            for (File file : files) {
+                String name = file.getName();
+                // Skip files that are still being written and files this instance may have exported itself
+                if (name.startsWith(".") || name.endsWith(SYNCED_SUFFIX)) {
+                    continue;
+                }
+                String syncName = instance.getName() + "/" + name;
+                if (!syncedInputNames.add(syncName)) {
+                    continue;
+                }
+                try {
+                    seedInputs.add(new SyncedInput(file, syncName));
+                    imported++;
+                } catch (IOException e) {
+                    infoLog("Could not import %s: %s", file.getPath(), e.getMessage());
+                }
+            }
+        }
+        if (imported > 0) {
+            infoLog("Imported %d inputs from other instances", imported);
+        }
+    }
+
     /* Writes a line of text to a given log file. */
     protected void appendLineToFile(File file, String line) throws GuidanceException {
         try (PrintWriter out = new PrintWriter(new FileWriter(file, true))) {
@@ -332,8 +623,7 @@ public class FuzzGuidance {
             Input currentParentInput = savedInputs.get(currentParentInputIdx);
             currentParentInputDesc = currentParentInputIdx + " ";
             currentParentInputDesc += currentParentInput.isFavored() ? "(favored)" : "(not favored)";
-            currentParentInputDesc += " {" + numChildrenGeneratedForCurrentParentInput +
-                    "/" + getTargetChildrenForParent(currentParentInput) + " mutations}";
+            currentParentInputDesc += " {" + numChildrenGeneratedForCurrentParentInput + " mutations}";
         }
 
         int nonZeroCount = totalCoverage.getNonZeroCount();
@@ -343,7 +633,12 @@ public class FuzzGuidance {
 
         
         if (LIBFUZZER_COMPAT_OUTPUT) {
-            System.out.printf("#%,d\tNEW\tcov: %,d exec/s: %,d L: %,d\n", numTrials, nonZeroCount, intervalExecsPerSec, currentInput.size());
+            if (sharedCoverage != null) {
+                System.out.printf("#%,d\tNEW\tcov: %,d campaign: %,d exec/s: %,d L: %,d\n", numTrials, nonZeroCount,
+                        sharedCoverage.getNonZeroCount(), intervalExecsPerSec, currentInput.size());
+            } else {
+                System.out.printf("#%,d\tNEW\tcov: %,d exec/s: %,d L: %,d\n", numTrials, nonZeroCount, intervalExecsPerSec, currentInput.size());
+            }
         } else if (!QUIET_MODE) {
             System.out.printf("\033[2J");
             System.out.printf("\033[H");
@@ -362,6 +657,9 @@ public class FuzzGuidance {
             System.out.printf("Current parent input: %s\n", currentParentInputDesc);
             System.out.printf("Execution speed:      %,d/sec now | %,d/sec overall\n", intervalExecsPerSec, execsPerSec);
             System.out.printf("Total coverage:       %,d branches (%.2f%% of map)\n", nonZeroCount, nonZeroFraction);
+            if (sharedCoverage != null) {
+                System.out.printf("Campaign coverage:    %,d branches\n", sharedCoverage.getNonZeroCount());
+            }
         }
         
 
@@ -437,16 +735,76 @@ public class FuzzGuidance {
             }
         }
 
+        // Look for inputs that the others make redundant
+        startCull();
+
         // Break log after cycle
         infoLog("\n\n\n");
     }
 
+    /**
+     * Starts a culling pass on the saved inputs in the background, unless one is still pending
+     * or no input was saved since the last one.
+     */
+    protected void startCull() {
+        if (cullInProgress || savedInputs.size() == lastCullSize) {
+            return;
+        }
+        cullInProgress = true;
+        lastCullSize = savedInputs.size();
+        List<Input> snapshot = new ArrayList<>(savedInputs);
+        cullExecutor.execute(() -> pendingCull = CorpusCull.compute(snapshot));
+    }
+
+    /**
+     * Hands the responsibilities of the inputs in a culling pass to the inputs it kept.
+     * Inputs that are left without responsibilities are no longer favored and are culled
+     * from the queue of the scheduler. Keys that inputs saved after the pass took over stay with them.
+     */
+    protected void applyCull(CorpusCull cull) {
+        if (cull.numKept == 0) {
+            return;
+        }
+        int snapshotSize = cull.inputs.size();
+        for (int b = 0; b < cull.responsible.length; b++) {
+            if (cull.responsible[b] < 0) {
+                continue;
+            }
+            Input owner = cull.inputs.get(cull.responsible[b]);
+            Input oldResponsible = responsibleInputs.get(b);
+            if (oldResponsible == owner || (oldResponsible != null && oldResponsible.id >= snapshotSize)) {
+                continue;
+            }
+            if (oldResponsible != null) {
+                oldResponsible.responsibilities.remove(b);
+            }
+            owner.responsibilities.add(b);
+            responsibleInputs.put(b, owner);
+        }
+        int numCulled = 0;
+        for (Input input : cull.inputs) {
+            input.favored = !input.responsibilities.isEmpty();
+            input.culled = !input.favored;
+            if (input.culled) {
+                numCulled++;
+            }
+        }
+        scheduler.corpusCulled();
+        infoLog("Culled %d of %d saved inputs", numCulled, snapshotSize);
+    }
+
     /**
      * Spawns a new input from thin air (i.e., actually random)
      *
      * @return a fresh input
      */
     protected Input<?> createFreshInput() {
+        if (instructionMutator != null) {
+            byte[] bytes = instructionMutator.generate(random, FRESH_INSTRUCTIONS);
+            LinearInput input = new LinearInput(bytes, bytes.length);
+            input.desc = "fresh:instructions";
+            return input;
+        }
         return new LinearInput();
     }
 
@@ -459,25 +817,88 @@ public class FuzzGuidance {
      * @return an InputStream that delivers parameters to the generators
      */
     public InputStream createParameterStream(Input input) {
+        assert input instanceof LinearInput : "FuzzGuidance should only mutate LinearInput(s)";
         // Return an input stream that reads bytes from a linear array
-        return new InputStream() {
-            // For linear inputs, get with key = bytesRead (which is then incremented)
-            Input input_this = input;
-            // LinearInput input_this = new LinearInput((LinearInput)input);
-            int bytesRead = 0;
-
-            @Override
-            public int read() throws IOException {
-                assert input_this instanceof LinearInput : "FuzzGuidance should only mutate LinearInput(s)";
-                
-                // For linear inputs, get with key = bytesRead (which is then incremented)
-                LinearInput linearInput = (LinearInput) input_this;
-                // Attempt to get a value from the list, or else generate a random value
-                int ret = linearInput.getOrGenerateFresh(bytesRead++, random);
-                // infoLog("read(%d) = %d", bytesRead, ret);
-                return ret;
+        return new LinearInputStream((LinearInput) input);
+    }
+
+    /**
+     * A stream over the bytes of a {@link LinearInput}.
+     *
+     * <p>Besides the single byte <code>read()</code>, whole cycle frames can be
+     * copied out of the input with one <code>read(byte[], int, int)</code> call.
+     * Both paths advance the <code>requested</code> counter of the input, which
+     * {@link LinearInput#gc()} relies on.</p>
+     */
+    public class LinearInputStream extends InputStream {
+        // For linear inputs, get with key = bytesRead (which is then incremented)
+        protected final LinearInput input;
+        protected int bytesRead = 0;
+
+        public LinearInputStream(LinearInput input) {
+            this.input = input;
+        }
+
+        @Override
+        public int read() throws IOException {
+            // Attempt to get a value from the list, or else generate a random value
+            int ret = input.getOrGenerateFresh(bytesRead++, random);
+            // infoLog("read(%d) = %d", bytesRead, ret);
+            return ret;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (off < 0 || len < 0 || len > b.length - off) {
+                throw new IndexOutOfBoundsException();
             }
-        };
+            if (len == 0) {
+                return 0;
+            }
+            int n = input.read(bytesRead, b, off, len, random);
+            if (n > 0) {
+                bytesRead += n;
+            }
+            return n;
+        }
+
+        @Override
+        public int available() {
+            return Math.max(0, Math.min(input.size(), MAX_INPUT_SIZE) - bytesRead);
+        }
+
+        /** Returns the ID of the saved input the input was mutated from, or -1. */
+        public int getParentId() {
+            return input.parentId;
+        }
+
+        /** Returns whether the parent input was favored. */
+        public boolean isParentFavored() {
+            return input.parentFavored;
+        }
+
+        /** Returns the number of leading bytes that the input shares with its parent. */
+        public int getSharedPrefixLength() {
+            return input.parentId < 0 ? 0 : Math.min(input.firstMutatedOffset, input.size());
+        }
+
+        /** Returns the number of bytes read so far. */
+        public int getPosition() {
+            return bytesRead;
+        }
+
+        /**
+         * Skips the first `n` bytes, for targets that resume from a checkpoint that
+         * was taken after the same bytes had been read.
+         */
+        public void skipPrefix(int n) {
+            if (bytesRead != 0 || input.requested != 0 || n > getSharedPrefixLength()) {
+                throw new IllegalStateException(String.format("Cannot skip %d bytes at position %d", n, bytesRead));
+            }
+            // The skipped bytes count as requested, so that gc() keeps them
+            input.requested = n;
+            bytesRead = n;
+        }
     }
 
     public Input[][] getInputs(int dim, int threadNum) {
@@ -503,6 +924,9 @@ public class FuzzGuidance {
             // // Clear coverage stats for this run
         // var inputs = new Input[inputNum];
         // for (int i = 0; i < inputNum; i++) {
+            // Pick up what the other instances of the campaign found
+            syncCorpus();
+
             // Choose an input to execute based on state of queues
             if (!seedInputs.isEmpty()) { //get from seedInputs first
                 // System.out.println("Get seed input");
@@ -527,35 +951,17 @@ public class FuzzGuidance {
             } else { //use savedInputs
                 // System.out.println("mutate from old saved inputs");
 
-                // The number of children to produce is determined by how much of the coverage
-                // pool this parent input hits
-                Input currentParentInput = savedInputs.get(currentParentInputIdx);
-                int targetNumChildren = getTargetChildrenForParent(currentParentInput);
-                //每个savedInputs都作为parent，能够产生targetNumChildren个子Input
-                if (numChildrenGeneratedForCurrentParentInput >= targetNumChildren) {
-                    // Select the next saved input to fuzz
-                    currentParentInputIdx = (currentParentInputIdx + 1) % savedInputs.size();
-
-                    // Count cycles
-                    if (currentParentInputIdx == 0) {
-                        completeCycle();
-                    }
-
-                    numChildrenGeneratedForCurrentParentInput = 0;
-                }
-                Input parent = savedInputs.get(currentParentInputIdx);
+                Input parent = nextParentInput(random);
 
                 double rd = random.nextDouble(); //generate a random number to decide whether use splice
                 // Splice two children to get a new input
                 if(rd<SPLICE_POSSIBILITY) {
                     int ri = random.nextInt(savedInputs.size());
                     currentInput = parent.splice(random, savedInputs.get(ri));
-                    numChildrenGeneratedForCurrentParentInput++;
                 } 
                 // Havoc one children to get a new input
                 else { //only use Havoc
                     currentInput = parent.havoc(random);
-                    numChildrenGeneratedForCurrentParentInput++;
                 }
 
                 // // Write it to disk for debugging
@@ -585,6 +991,117 @@ public class FuzzGuidance {
         // return inputs;
     }
 
+    /**
+     * Returns the saved input to mutate next and counts the child that is about to be generated from it.
+     */
+    protected Input nextParentInput(Random random) {
+        CorpusCull cull = pendingCull;
+        if (cull != null) {
+            pendingCull = null;
+            cullInProgress = false;
+            applyCull(cull);
+        }
+        int idx = scheduler.nextParent(random);
+        if (idx != currentParentInputIdx) {
+            currentParentInputIdx = idx;
+            numChildrenGeneratedForCurrentParentInput = 0;
+        }
+        numChildrenGeneratedForCurrentParentInput++;
+        return savedInputs.get(idx);
+    }
+
+    /**
+     * Thread-safe version of {@link #getInput()} for workers that run their own
+     * get/run/update loop.
+     *
+     * <p>Only the choice of the parent (and splice partner) is made under the lock;
+     * the mutation itself runs on the calling thread with a thread-local PRNG. This
+     * is safe because saved inputs are never modified after they are saved.</p>
+     */
+    public Input getInputConcurrent() throws GuidanceException {
+        Input parent;
+        Input spliceInput = null;
+        Random rnd = ThreadLocalRandom.current();
+        synchronized (this) {
+            syncCorpus();
+            if (!seedInputs.isEmpty()) {
+                return seedInputs.removeFirst();
+            } else if (savedInputs.isEmpty()) {
+                return createFreshInput();
+            }
+            parent = nextParentInput(rnd);
+            if (rnd.nextDouble() < SPLICE_POSSIBILITY) {
+                spliceInput = savedInputs.get(rnd.nextInt(savedInputs.size()));
+            }
+        }
+        if (spliceInput != null) {
+            return parent.splice(rnd, spliceInput);
+        } else {
+            return parent.havoc(rnd);
+        }
+    }
+
+    /**
+     * Thread-safe version of {@link #updateSeedCorpus(Input)}.
+     *
+     * <p>The coverage of the run is merged into the global maps with atomic
+     * operations, so that only inputs which are going to be saved take the lock
+     * to update <code>savedInputs</code> and <code>responsibleInputs</code>.</p>
+     */
+    public void updateSeedCorpusConcurrent(Input input) throws GuidanceException {
+        Coverage runCov = input.coverage;
+        boolean valid = input.isValid;
+        if (!valid && input instanceof SeedInput) {
+            // seeds are always saved, take the sequential path
+            synchronized (this) {
+                updateSeedCorpus(input);
+            }
+            return;
+        }
+        NUM_TRIALS.getAndAdd(this, 1L);
+
+        if (valid) {
+            NUM_VALID.getAndAdd(this, 1L);
+        }
+
+        if (valid || (!valid && !SAVE_ONLY_VALID)) {
+            IntHashSet responsibilities = new IntHashSet();
+            int totalUpdate = totalCoverage.updateBitsAtomic(runCov, responsibilities);
+            int validUpdate = 0;
+            if (valid) {
+                validUpdate = validCoverage.updateBitsAtomic(runCov, responsibilities);
+            } else {
+                runCov.collectNewCoverage(validCoverage, responsibilities);
+            }
+            List<String> savingCriteriaSatisfied = getSavingReasons(totalUpdate, validUpdate);
+            if (savingCriteriaSatisfied.isEmpty()) {
+                return;
+            }
+
+            String why = String.join(" ", savingCriteriaSatisfied);
+            // Trim input (remove unused keys)
+            input.gc();
+            assert (input.size() > 0) : String.format("Empty input: %s", input.desc);
+            synchronized (this) {
+                maxCoverage = Math.max(maxCoverage, totalCoverage.getNonZeroCount());
+                currentInput = input;
+                if (LIBFUZZER_COMPAT_OUTPUT) {
+                    displayStats(false);
+                }
+                infoLog("Saving new input (at run %d): " +
+                                "input #%d " +
+                                "of size %d; " +
+                                "reason = %s",
+                        numTrials,
+                        savedInputs.size(),
+                        input.size(),
+                        why);
+                GuidanceException.wrap(() -> saveCurrentInput(input, responsibilities, why, runCov));
+                updateCoverageFile();
+            }
+        }
+    }
+
     //here
     // public void updateSeedCorpus(Input input, byte[] cov, Boolean valid) throws GuidanceException {
     // public void updateSeedCorpus(Input[] inputs) throws GuidanceException {
@@ -592,8 +1109,8 @@ public class FuzzGuidance {
         // conditionallySynchronize(multiThreaded, () -> { 
             // Coverage runCov = new Coverage(cov);
         // for (Input input : inputs) {
-            // Increment run count
-            this.numTrials++;
+            // Increment run count (atomically, updateSeedCorpusConcurrent may run at the same time)
+            NUM_TRIALS.getAndAdd(this, 1L);
             var runCov = input.coverage;
             var valid = input.isValid;
             // store the seed input whatever
@@ -615,16 +1132,15 @@ public class FuzzGuidance {
             }
 
             if (valid) {
-                numValid++;
+                NUM_VALID.getAndAdd(this, 1L);
             }
 
             if (valid || (!valid && !SAVE_ONLY_VALID)) {
                 // long t3 = System.nanoTime();
-                // Compute a list of keys for which this input can assume responsibility.
-                // Newly covered branches are always included.
-                IntHashSet responsibilities = computeResponsibilities(true, runCov);
-                // Determine if this input should be saved
-                List<String> savingCriteriaSatisfied = checkSavingCriteriaSatisfied(valid, runCov);
+                // Compute a list of keys for which this input can assume responsibility
+                // (newly covered branches are always included) and determine if this input should be saved
+                IntHashSet responsibilities = new IntHashSet();
+                List<String> savingCriteriaSatisfied = checkSavingCriteriaSatisfied(valid, runCov, responsibilities);
                 boolean toSave = savingCriteriaSatisfied.size() > 0;
                 // long t4 = System.nanoTime();
                 // System.out.println("Time for compute tosave: " + (t4 - t3) / 1e9d + " seconds");
@@ -681,57 +1197,55 @@ public class FuzzGuidance {
         IntHashSet result = new IntHashSet();
 
         // This input is responsible for all new coverage
-        IntList newCoverage = runCov.computeNewCoverage(totalCoverage);
-        if (newCoverage.size() > 0) {
-            result.addAll(newCoverage);
-        }
+        runCov.collectNewCoverage(totalCoverage, result);
 
         // If valid, this input is responsible for all new valid coverage
         if (valid) {
-            IntList newValidCoverage = runCov.computeNewCoverage(validCoverage);
-            if (newValidCoverage.size() > 0) {
-                result.addAll(newValidCoverage);
-            }
+            runCov.collectNewCoverage(validCoverage, result);
         }
 
         return result;
     }
 
-    // Return a list of saving criteria that have been satisfied for a non-failure input
-    protected List<String> checkSavingCriteriaSatisfied(Boolean valid, Coverage runCov) {
-        // Coverage before
-        int nonZeroBefore = totalCoverage.getNonZeroCount();
-        int validNonZeroBefore = validCoverage.getNonZeroCount();
-
+    // Return a list of saving criteria that have been satisfied for a non-failure input.
+    // Keys that `runCov` newly covers (in total or valid coverage) are added to `responsibilities`
+    // in the same pass that merges `runCov` into the coverage maps.
+    protected List<String> checkSavingCriteriaSatisfied(Boolean valid, Coverage runCov, IntHashSet responsibilities) {
         // Update total coverage
-        boolean coverageBitsUpdated = totalCoverage.updateBits(runCov);
+        int totalUpdate = totalCoverage.updateBits(runCov, responsibilities);
+        int validUpdate = 0;
         if (valid == true) {
-            validCoverage.updateBits(runCov);
+            validUpdate = validCoverage.updateBits(runCov, responsibilities);
+        } else {
+            runCov.collectNewCoverage(validCoverage, responsibilities);
         }
 
-
         // Coverage after
         int nonZeroAfter = totalCoverage.getNonZeroCount();
         if (nonZeroAfter > maxCoverage) {
             maxCoverage = nonZeroAfter;
         }
-        int validNonZeroAfter = validCoverage.getNonZeroCount();
 
+        return getSavingReasons(totalUpdate, validUpdate);
+    }
+
+    // Return the saving criteria satisfied by the flags that updating the total and valid coverage returned
+    protected List<String> getSavingReasons(int totalUpdate, int validUpdate) {
         // Possibly save input
         List<String> reasonsToSave = new ArrayList<>();
 
 
-        if (!DISABLE_SAVE_NEW_COUNTS && coverageBitsUpdated) {
+        if (!DISABLE_SAVE_NEW_COUNTS && (totalUpdate & Coverage.NEW_COUNTS) != 0) {
             reasonsToSave.add("+count");
         }
 
         // Save if new total coverage found
-        if (nonZeroAfter > nonZeroBefore) {
+        if ((totalUpdate & Coverage.NEW_COVERAGE) != 0) {
             reasonsToSave.add("+cov");
         }
 
         // Save if new valid coverage is found
-        if (this.validityFuzzing && validNonZeroAfter > validNonZeroBefore) {
+        if (this.validityFuzzing && (validUpdate & Coverage.NEW_COVERAGE) != 0) {
             reasonsToSave.add("+valid");
         }
 
@@ -739,25 +1253,37 @@ public class FuzzGuidance {
     }
     
     protected void writeCurrentInputToFile(Input input, File saveFile) throws IOException {
-        try (BufferedOutputStream out = new BufferedOutputStream(new FileOutputStream(saveFile))) {
-            for (Integer b : (LinearInput) input) {
-                assert (b >= 0 && b < 256);
-                out.write(b);
-            }
+        // Write to a hidden file first, so that other instances never import a partial input
+        File tmpFile = new File(saveFile.getParentFile(), "." + saveFile.getName() + ".tmp");
+        try (FileOutputStream out = new FileOutputStream(tmpFile)) {
+            ((LinearInput) input).writeTo(out);
         }
-
+        Files.move(tmpFile.toPath(), saveFile.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
     }
 
     /* Saves an interesting input to the queue. */
     protected void saveCurrentInput(Input input, IntHashSet responsibilities, String why, Coverage runCov) throws IOException {
 
+        // Publish the coverage to the other instances of the campaign
+        int campaignUpdate = sharedCoverage == null ? Coverage.NEW_COVERAGE : sharedCoverage.updateBits(runCov);
+
         // First, save to disk (note: we issue IDs to everyone, but only write to disk  if valid)
         int newInputIdx = numSavedInputs++;
-        String saveFileName = String.format("id_%06d", newInputIdx);
         String how = input.desc;
-        File saveFile = new File(savedCorpusDirectory, saveFileName);
-        writeCurrentInputToFile(input, saveFile);
-        infoLog("Saved - %s %s %s", saveFile.getPath(), how, why);
+        File saveFile;
+        if (input instanceof SyncedInput && (campaignUpdate & Coverage.NEW_COVERAGE) == 0) {
+            // The instance that found it has published its coverage, its file is the only copy needed
+            saveFile = ((SyncedInput) input).sourceFile;
+            infoLog("Queued - %s %s %s", saveFile.getPath(), how, why);
+        } else {
+            String saveFileName = String.format("id_%06d", newInputIdx);
+            if (input instanceof SyncedInput) {
+                saveFileName += SYNCED_SUFFIX;
+            }
+            saveFile = new File(savedCorpusDirectory, saveFileName);
+            writeCurrentInputToFile(input, saveFile);
+            infoLog("Saved - %s %s %s", saveFile.getPath(), how, why);
+        }
 
         // Second, save to queue
         savedInputs.add(input);
@@ -768,7 +1294,10 @@ public class FuzzGuidance {
         // input.coverage = runCov.copy();
         input.nonZeroCoverage = runCov.getNonZeroCount();
         input.offspring = 0;
-        savedInputs.get(currentParentInputIdx).offspring += 1;
+        // a trimmed input replaces its original, it is no child of the current parent
+        if (!input.trimmed) {
+            savedInputs.get(currentParentInputIdx).offspring += 1;
+        }
 
         // Fourth, assume responsibility for branches
         input.responsibilities = responsibilities;
@@ -790,6 +1319,12 @@ public class FuzzGuidance {
             // We are now responsible
             responsibleInputs.put(b, input);
         }
+
+        // Finally, let the scheduler pick it as a parent and queue it for trimming
+        scheduler.inputSaved(savedInputs.size() - 1, input);
+        if (trimInputs && !input.trimmed && input instanceof LinearInput) {
+            trimQueue.addLast(input);
+        }
     }
 
 
@@ -833,6 +1368,17 @@ public class FuzzGuidance {
          */
         boolean favored;
 
+        /**
+         * Whether a culling pass found that favored inputs cover everything this input covers.
+         * Culled inputs stay in the saved inputs but are not mutated anymore.
+         */
+        boolean culled;
+
+        /**
+         * Whether this input was created by trimming a saved input.
+         */
+        boolean trimmed;
+
         /**
          * The description for this input.
          *
@@ -850,6 +1396,13 @@ public class FuzzGuidance {
 
         boolean isValid = true;
 
+        /**
+         * The number of cycles that were simulated to run this input.
+         *
+         * <p>This field is 0 if the target does not report cycles.</p>
+         */
+        long cycles = 0;
+
         /**
          * The number of non-zero elements in `coverage`.
          *
@@ -882,6 +1435,23 @@ public class FuzzGuidance {
          */
         IntHashSet responsibilities = null;
 
+        /**
+         * The ID of the saved input this input was mutated from.
+         *
+         * <p>This field is -1 for seeds and fresh inputs.</p>
+         */
+        int parentId = -1;
+
+        /**
+         * Whether the parent was favored when this input was mutated from it.
+         */
+        boolean parentFavored = false;
+
+        /**
+         * The number of leading bytes that this input shares with its parent.
+         */
+        int firstMutatedOffset = 0;
+
         /**
          * Create an empty input.
          */
@@ -896,6 +1466,18 @@ public class FuzzGuidance {
          */
         public Input(Input toClone) {
             desc = String.format("src:%06d", toClone.id);
+            parentId = toClone.parentId;
+            parentFavored = toClone.parentFavored;
+            firstMutatedOffset = toClone.firstMutatedOffset;
+        }
+
+        /**
+         * Records that this input was mutated from `parent` and equals it up to `firstMutatedOffset`.
+         */
+        protected void setParent(Input parent, int firstMutatedOffset) {
+            this.parentId = parent.id;
+            this.parentFavored = parent.isFavored();
+            this.firstMutatedOffset = firstMutatedOffset;
         }
 
         public abstract int getOrGenerateFresh(K key, Random random);
@@ -924,6 +1506,15 @@ public class FuzzGuidance {
             return favored;
         }
 
+        /**
+         * Returns whether this input was culled from the queue of parents.
+         *
+         * @return whether or not this input is culled
+         */
+        public boolean isCulled() {
+            return culled;
+        }
+
         /**
          * Sample from a geometric distribution with given mean.
          *
@@ -943,42 +1534,52 @@ public class FuzzGuidance {
 
     public class LinearInput extends Input<Integer> {
 
-        /** A list of byte values (0-255) ordered by their index. */
-        // protected ArrayList<Integer> values;
-        public ArrayList<Integer> values;
+        /** The byte values (0-255) ordered by their index; only the first `length` entries are in use. */
+        protected byte[] values;
+
+        /** The number of bytes stored in `values`. */
+        protected int length = 0;
 
         /** The number of bytes requested so far */
         protected int requested = 0;
 
         public LinearInput() {
             super();
-            this.values = new ArrayList<>();
+            this.values = EMPTY_VALUES;
         }
 
         public LinearInput(LinearInput other) {
             super(other);
-            this.values = new ArrayList<>(other.values);
+            this.values = Arrays.copyOf(other.values, other.length);
+            this.length = other.length;
         }
 
-
+        /**
+         * Creates an input that takes ownership of the first `length` bytes of `values`.
+         */
+        protected LinearInput(byte[] values, int length) {
+            super();
+            this.values = values;
+            this.length = length;
+        }
 
         @Override
         public int getOrGenerateFresh(Integer key, Random random) {
+            return getOrGenerateFresh(key.intValue(), random);
+        }
+
+        /** Unboxed version of {@link #getOrGenerateFresh(Integer, Random)}. */
+        public int getOrGenerateFresh(int key, Random random) {
             // Otherwise, make sure we are requesting just beyond the end-of-list
-            // assert (key == values.size());
-            // System.out.println("getOr Generate Fresh");
-            // System.out.println(key);
-            // System.out.println(requested);
-            // System.out.println(values.size());
-            // System.out.println(MAX_INPUT_SIZE);
-            if (key >= values.size() && GENERATE_EOF_WHEN_OUT) {
+            // assert (key == length);
+            if (key >= length && GENERATE_EOF_WHEN_OUT) {
                 return -1;
             }
 
             if (key != requested) {
                 return -1;
                 // throw new IllegalStateException(String.format("Bytes from linear input out of order. " +
-                //         "Size = %d, Key = %d", values.size(), key));
+                //         "Size = %d, Key = %d", length, key));
             }
 
             // Don't generate over the limit
@@ -987,10 +1588,10 @@ public class FuzzGuidance {
             }
 
             // If it exists in the list, return it
-            if (key < values.size()) {
+            if (key < length) {
                 requested++;
                 // infoLog("Returning old byte at key=%d, total requested=%d", key, requested);
-                return values.get(key);
+                return values[key] & 0xff;
             }
 
             // Handle end of stream
@@ -999,16 +1600,57 @@ public class FuzzGuidance {
             } else {
                 // Just generate a random input
                 int val = random.nextInt(256);
-                values.add(val);
+                append(val);
                 requested++;
                 // infoLog("Generating fresh byte at key=%d, total requested=%d", key, requested);
                 return val;
             }
         }
 
+        /**
+         * Copies up to `len` bytes starting at `key` into `dst`.
+         *
+         * @return the number of bytes copied, or -1 if the input is exhausted
+         */
+        public int read(int key, byte[] dst, int off, int len, Random random) {
+            if (key != requested) {
+                return -1;
+            }
+
+            // Copy as much as possible from the bytes already in the list
+            int n = Math.min(len, Math.min(length, MAX_INPUT_SIZE) - key);
+            if (n > 0) {
+                System.arraycopy(values, key, dst, off, n);
+                requested += n;
+                return n;
+            }
+
+            // Otherwise this is either end of stream or a fresh byte
+            int val = getOrGenerateFresh(key, random);
+            if (val < 0) {
+                return -1;
+            }
+            dst[off] = (byte) val;
+            return 1;
+        }
+
+        /** Appends a byte value (0-255) to the end of this input, growing the backing array if needed. */
+        protected void append(int value) {
+            if (length == values.length) {
+                values = Arrays.copyOf(values, Math.max(INITIAL_CAPACITY, length + (length >> 1)));
+            }
+            values[length++] = (byte) value;
+        }
+
+        /** Returns the byte value (0-255) at `idx`. */
+        public int get(int idx) {
+            assert idx < length;
+            return values[idx] & 0xff;
+        }
+
         @Override
         public int size() {
-            return values.size();
+            return length;
         }
 
         /**
@@ -1021,53 +1663,122 @@ public class FuzzGuidance {
         @Override
         public void gc() {
             // Remove elements beyond "requested"
-            values = new ArrayList<>(values.subList(0, requested));
-            values.trimToSize();
+            if (values.length != requested) {
+                values = Arrays.copyOf(values, requested);
+            }
+            length = requested;
 
             // Inputs should not be empty, otherwise mutations don't work
-            if (values.isEmpty()) {
+            if (length == 0) {
                 throw new IllegalArgumentException("Input is either empty or nothing was requested from the input generator.");
             }
         }
 
+        /** Returns a copy of the bytes of this input. */
+        public byte[] toByteArray() {
+            return Arrays.copyOf(values, length);
+        }
+
+        /** Writes the bytes of this input to `out` in one call. */
+        public void writeTo(OutputStream out) throws IOException {
+            out.write(values, 0, length);
+        }
+
         @Override
         public Input havoc(Random random) {
+            if (instructionMutator != null) {
+                return instructionHavoc(random);
+            }
+            if (frameMutator != null && length >= frameMutator.getFrameBytes()) {
+                return frameHavoc(random);
+            }
+
             // Clone this input to create initial version of new child
             LinearInput newInput = new LinearInput(this);
+            final byte[] data = newInput.values;
+            final int size = newInput.length;
 
             // Stack a bunch of mutations
             int numMutations = sampleGeometric(random, MEAN_MUTATION_COUNT);
             newInput.desc += ",havoc:"+numMutations;
 
             boolean setToZero = random.nextDouble() < 0.1; // one out of 10 times
+            int firstMutated = size;
 
             for (int mutation = 1; mutation <= numMutations; mutation++) {
 
                 // Select a random offset and size
-                int offset = random.nextInt(newInput.values.size());
+                int offset = random.nextInt(size);
+                firstMutated = Math.min(firstMutated, offset);
                 int mutationSize;
                 if(CONSTANT_MUTATION_SIZE) {
                     mutationSize = (int) MEAN_MUTATION_SIZE;
                 } else {
                     mutationSize = (int) sampleGeometric(random, MEAN_MUTATION_SIZE);
                 }
-                // int mutationSize = sampleGeometric(random, MEAN_MUTATION_SIZE);
 
                 // desc += String.format(":%d@%d", mutationSize, idx);
 
-                // Mutate a contiguous set of bytes from offset
-                for (int i = offset; i < offset + mutationSize; i++) {
-                    // Don't go past end of list
-                    if (i >= newInput.values.size()) {
-                        break;
+                // Mutate a contiguous set of bytes from offset (but don't go past end of list)
+                int end = Math.min(size, offset + mutationSize);
+                if (setToZero) {
+                    Arrays.fill(data, offset, end, (byte) 0);
+                } else {
+                    for (int i = offset; i < end; i++) {
+                        data[i] = (byte) random.nextInt(256);
                     }
-
-                    // Otherwise, apply a random mutation
-                    int mutatedValue = setToZero ? 0 : random.nextInt(256);
-                    newInput.values.set(i, mutatedValue);
                 }
             }
 
+            if (dictionary != null && random.nextDouble() < DICTIONARY_PROBABILITY) {
+                firstMutated = Math.min(firstMutated, newInput.applyToken(random));
+            }
+
+            newInput.setParent(this, firstMutated);
+            return newInput;
+        }
+
+        /**
+         * Inserts a random dictionary token at a random offset or writes it over the bytes at that offset.
+         *
+         * @return the offset of the token
+         */
+        protected int applyToken(Random random) {
+            byte[] token = dictionary[random.nextInt(dictionary.length)];
+            int offset = random.nextInt(length + 1);
+            if (random.nextBoolean() && length + token.length <= MAX_INPUT_SIZE) {
+                byte[] data = new byte[length + token.length];
+                System.arraycopy(values, 0, data, 0, offset);
+                System.arraycopy(token, 0, data, offset, token.length);
+                System.arraycopy(values, offset, data, offset + token.length, length - offset);
+                values = data;
+                length = data.length;
+                desc += ",dictins";
+            } else {
+                int n = Math.min(token.length, length - offset);
+                System.arraycopy(token, 0, values, offset, n);
+                desc += ",dict";
+            }
+            return offset;
+        }
+
+        /** Like {@link #havoc(Random)}, with mutations that keep the cycle frames aligned. */
+        protected Input frameHavoc(Random random) {
+            int numMutations = sampleGeometric(random, MEAN_MUTATION_COUNT);
+            FrameMutator.Result r = frameMutator.havoc(values, length, random, numMutations);
+            LinearInput newInput = new LinearInput(r.data, r.length);
+            newInput.desc = String.format("src:%06d,frames:%s", id, r.desc);
+            newInput.setParent(this, r.firstMutated);
+            return newInput;
+        }
+
+        /** Like {@link #havoc(Random)}, with mutations of whole TileLink instructions and their fields. */
+        protected Input instructionHavoc(Random random) {
+            int numMutations = sampleGeometric(random, MEAN_MUTATION_COUNT);
+            FrameMutator.Result r = instructionMutator.havoc(values, length, random, numMutations);
+            LinearInput newInput = new LinearInput(r.data, r.length);
+            newInput.desc = String.format("src:%06d,instructions:%s", id, r.desc);
+            newInput.setParent(this, r.firstMutated);
             return newInput;
         }
 
@@ -1076,30 +1787,61 @@ public class FuzzGuidance {
 
             LinearInput input2 = (LinearInput) spliceInput;
 
-            int offset1 = random.nextInt(this.values.size());
-            int offset2 = random.nextInt(input2.values.size());
+            if (instructionMutator != null) {
+                // cut both inputs at instruction boundaries
+                FrameMutator.Result r = instructionMutator.splice(this.values, this.length, input2.values, input2.length, random);
+                LinearInput newInput = new LinearInput(r.data, r.length);
+                newInput.desc = String.format("src:%06d,%s&id_%d", id, r.desc, input2.id);
+                newInput.setParent(this, r.firstMutated);
+                return newInput;
+            }
 
-            LinearInput newInput = new LinearInput();
-            
-            for (int i = 0; i < offset1; i++) {
-                newInput.values.add(this.values.get(i));
+            int frameBytes = frameMutator == null ? 0 : frameMutator.getFrameBytes();
+            if (frameBytes > 0 && this.length >= frameBytes && input2.length >= frameBytes) {
+                // cut both inputs at frame boundaries
+                int frames1 = random.nextInt(this.length / frameBytes);
+                int frame2 = random.nextInt(input2.length / frameBytes);
+                FrameMutator.Result r = frameMutator.splice(this.values, frames1, input2.values, input2.length, frame2);
+                LinearInput newInput = new LinearInput(r.data, r.length);
+                newInput.desc = String.format("src:%06d,%s&id_%d", id, r.desc, input2.id);
+                newInput.setParent(this, r.firstMutated);
+                return newInput;
             }
-            // for (int i = offset2; i < input2.values.size(); i++) {
-            //     newInput.values.add(input2.values.get(i));
-            // }
-            for (int i = offset1; i < input2.values.size(); i++) {
-                newInput.values.add(input2.values.get(i));
+
+            int offset1 = random.nextInt(this.length);
+
+            // prefix of this input followed by the suffix of input2 that starts at offset1
+            int suffix = Math.max(0, input2.length - offset1);
+            byte[] data = new byte[offset1 + suffix];
+            System.arraycopy(this.values, 0, data, 0, offset1);
+            if (suffix > 0) {
+                System.arraycopy(input2.values, offset1, data, offset1, suffix);
             }
-            
+
+            LinearInput newInput = new LinearInput(data, data.length);
             newInput.desc += ",splice: id_"+this.id+"&id_"+input2.id;
+            newInput.setParent(this, offset1);
 
             return newInput;
-        } 
+        }
 
 
         @Override
         public Iterator<Integer> iterator() {
-            return values.iterator();
+            return new Iterator<Integer>() {
+                int idx = 0;
+
+                @Override
+                public boolean hasNext() {
+                    return idx < length;
+                }
+
+                @Override
+                public Integer next() {
+                    // values 0-255 are served from the Integer cache, so this does not allocate
+                    return values[idx++] & 0xff;
+                }
+            };
         }
     }
 
@@ -1123,7 +1865,7 @@ public class FuzzGuidance {
         }
 
         @Override
-        public int getOrGenerateFresh(Integer key, Random random) {
+        public int getOrGenerateFresh(int key, Random random) {
             int value;
             try {
                 value = in.read();
@@ -1132,21 +1874,46 @@ public class FuzzGuidance {
 
             }
 
-            // assert (key == values.size())
-            if (key != values.size() && value != -1) {
+            // assert (key == length)
+            if (key != length && value != -1) {
                 throw new IllegalStateException(String.format("Bytes from seed out of order. " +
-                        "Size = %d, Key = %d", values.size(), key));
+                        "Size = %d, Key = %d", length, key));
             }
 
             if (value >= 0) {
                 requested++;
-                values.add(value);
+                append(value);
             }
 
             // If value is -1, then it is returned (as EOF) but not added to the list
             return value;
         }
 
+        @Override
+        public int read(int key, byte[] dst, int off, int len, Random random) {
+            // Pull the requested bytes from the seed file in one go
+            if (key == length && requested == length) {
+                int toRead = Math.min(len, MAX_INPUT_SIZE - length);
+                if (toRead <= 0) {
+                    return -1;
+                }
+                if (values.length - length < toRead) {
+                    values = Arrays.copyOf(values, Math.max(length + toRead, length + (length >> 1)));
+                }
+                int n;
+                try {
+                    n = in.read(values, length, toRead);
+                } catch (IOException e) {
+                    throw new GuidanceException("Error reading from seed file: " + seedFile.getName(), e);
+                }
+                if (n <= 0) {
+                    return -1;
+                }
+                length += n;
+            }
+            return super.read(key, dst, off, len, random);
+        }
+
         @Override
         public void gc() {
             super.gc();
@@ -1159,6 +1926,24 @@ public class FuzzGuidance {
 
     }
 
-    
+    /**
+     * An input that another instance of the campaign saved. It is read completely
+     * when it is imported, so that no file stays open while it waits in the queue.
+     */
+    public class SyncedInput extends LinearInput {
+        /** The file in the corpus of the instance that saved this input. */
+        final File sourceFile;
+
+        public SyncedInput(File file, String syncName) throws IOException {
+            this(file, Files.readAllBytes(file.toPath()), syncName);
+        }
+
+        private SyncedInput(File file, byte[] bytes, String syncName) {
+            super(bytes, Math.min(bytes.length, MAX_INPUT_SIZE));
+            this.sourceFile = file;
+            this.desc = "sync:" + syncName;
+        }
+    }
+
 }
 
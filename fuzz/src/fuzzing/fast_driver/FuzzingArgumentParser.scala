@@ -6,14 +6,28 @@ import firrtl.options.{Dependency, DuplicateHandling, ExceptOnError, ShellOption
 import firrtl.stage.{FirrtlFileAnnotation, RunFirrtlTransformAnnotation}
 import scopt.OptionParser
 import chiseltest.WriteVcdAnnotation
+import chiseltest.simulator.{SimulatorRuntimeAnnotation, VerilatorFFMBridge}
 import fuzzing.coverage.DoNotCoverAnnotation
 
-case class Harness(name: String) extends NoTargetAnnotation
-case class FeedbackCap(cap: Int) extends NoTargetAnnotation
-case class OutputFolder(str: String) extends NoTargetAnnotation
-case class SeedInputFolder(str: String) extends NoTargetAnnotation
-case class ThreadNum(num: Int) extends NoTargetAnnotation
+case class Harness(name: String) extends SimulatorRuntimeAnnotation
+case class FeedbackCap(cap: Int) extends SimulatorRuntimeAnnotation
+case class OutputFolder(str: String) extends SimulatorRuntimeAnnotation
+case class SeedInputFolder(str: String) extends SimulatorRuntimeAnnotation
+case class ThreadNum(num: Int) extends SimulatorRuntimeAnnotation
+case class FuzzMode(mode: String) extends SimulatorRuntimeAnnotation
+case class BatchSize(size: Int) extends SimulatorRuntimeAnnotation
+case class ParentSchedule(name: String) extends SimulatorRuntimeAnnotation
+case class TrimExecs(execs: Int) extends SimulatorRuntimeAnnotation
+case object ByteMutations extends SimulatorRuntimeAnnotation
+case class SeedTemplates(str: String) extends SimulatorRuntimeAnnotation
+case class SyncDir(str: String) extends SimulatorRuntimeAnnotation
+case class SyncId(str: String) extends SimulatorRuntimeAnnotation
+case class CheckpointMemory(mb: Int) extends SimulatorRuntimeAnnotation
+case class CheckpointInterval(cycles: Int) extends SimulatorRuntimeAnnotation
 case class MuxToggleOpAnnotation(fullToggle: Boolean) extends NoTargetAnnotation
+case class BuildCacheDir(str: String) extends SimulatorRuntimeAnnotation
+case class ModelThreads(num: Int) extends SimulatorRuntimeAnnotation
+case class BuildCacheSize(mb: Int) extends SimulatorRuntimeAnnotation
 
 
 //Note: Currently doesn't extend native argument parser, may be useful later.
@@ -80,6 +94,11 @@ class FuzzingArgumentParser extends OptionParser[AnnotationSeq]("fuzzer") with D
       toAnnotationSeq = _ => Seq(WriteVcdAnnotation),
       helpText = "",
     ),
+    new ShellOption[Unit](
+      longOption = "FFM",
+      toAnnotationSeq = _ => Seq(VerilatorFFMBridge),
+      helpText = "call into the simulator through the Foreign Function & Memory API instead of JNA (needs Java 22+)",
+    ),
     new ShellOption[Int](
       longOption = "Feedback",
       toAnnotationSeq = input => Seq(FeedbackCap(input)),
@@ -92,6 +111,67 @@ class FuzzingArgumentParser extends OptionParser[AnnotationSeq]("fuzzer") with D
       helpText = "",
       helpValueName = Some("<i>")
     ),
+    new ShellOption[Int](
+      longOption = "ModelThreads",
+      toAnnotationSeq = input => Seq(ModelThreads(input)),
+      helpText = "threads per simulation model, ThreadNum / ModelThreads models are fuzzed in parallel; " +
+        "0 picks the split with a short calibration run (default: 1)",
+      helpValueName = Some("<i>")
+    ),
+    new ShellOption[String](
+      longOption = "Mode",
+      toAnnotationSeq = input => Seq(FuzzMode(input)),
+      helpText = "how simulations are scheduled on the threads: sync, pipeline (default), async, concurrent or batch",
+      helpValueName = Some("<str>")
+    ),
+    new ShellOption[Int](
+      longOption = "BatchSize",
+      toAnnotationSeq = input => Seq(BatchSize(input)),
+      helpText = "number of inputs that every thread runs per call into the simulator in batch mode (default: 16)",
+      helpValueName = Some("<i>")
+    ),
+    new ShellOption[String](
+      longOption = "Scheduler",
+      toAnnotationSeq = input => Seq(ParentSchedule(input)),
+      helpText = "how parents are picked from the corpus: roundrobin (default) or rarity, " +
+        "which prefers inputs that cover rare points in few cycles",
+      helpValueName = Some("<str>")
+    ),
+    new ShellOption[Unit](
+      longOption = "ByteMutations",
+      toAnnotationSeq = _ => Seq(ByteMutations),
+      helpText = "mutate inputs byte by byte, even if the target reads them in cycle frames or bus instructions",
+    ),
+    new ShellOption[Int](
+      longOption = "TrimExecs",
+      toAnnotationSeq = input => Seq(TrimExecs(input)),
+      helpText = "maximum number of runs to trim a saved input in concurrent and batch mode, 0 disables trimming (default: 128)",
+      helpValueName = Some("<i>")
+    ),
+    new ShellOption[Int](
+      longOption = "CheckpointMemory",
+      toAnnotationSeq = input => Seq(CheckpointMemory(input)),
+      helpText = "memory in MB for the prefix checkpoints of each simulator, 0 disables them (default: 256)",
+      helpValueName = Some("<i>")
+    ),
+    new ShellOption[Int](
+      longOption = "CheckpointInterval",
+      toAnnotationSeq = input => Seq(CheckpointInterval(input)),
+      helpText = "number of cycles between two prefix checkpoints (default: 500)",
+      helpValueName = Some("<i>")
+    ),
+    new ShellOption[String](
+      longOption = "BuildCacheDir",
+      toAnnotationSeq = input => Seq(BuildCacheDir(input)),
+      helpText = "directory of the compiled simulations that are shared by all runs (default: ~/.cache/chiseltest/simulations)",
+      helpValueName = Some("<str>")
+    ),
+    new ShellOption[Int](
+      longOption = "BuildCacheSize",
+      toAnnotationSeq = input => Seq(BuildCacheSize(input)),
+      helpText = "size in MB of the compiled simulation cache, 0 disables it (default: 4096)",
+      helpValueName = Some("<i>")
+    ),
     new ShellOption[Unit](
       longOption = "mux-toggle-coverage",
       toAnnotationSeq = _ =>
@@ -124,12 +204,31 @@ class FuzzingArgumentParser extends OptionParser[AnnotationSeq]("fuzzer") with D
       helpText = "",
       helpValueName = Some("<str>")
     ),
+    new ShellOption[String](
+      longOption = "SyncDir",
+      toAnnotationSeq = input => Seq(SyncDir(input)),
+      helpText = "directory shared by all fuzzer processes of a campaign; replaces OutputFolder",
+      helpValueName = Some("<str>")
+    ),
+    new ShellOption[String](
+      longOption = "SyncId",
+      toAnnotationSeq = input => Seq(SyncId(input)),
+      helpText = "unique name of this process in the campaign (default: the process id)",
+      helpValueName = Some("<str>")
+    ),
     new ShellOption[String](
       longOption = "SeedInputFolder",
       toAnnotationSeq = input => Seq(SeedInputFolder(input)),
       helpText = "",
       helpValueName = Some("<str>")
     ),
+    new ShellOption[String](
+      longOption = "SeedTemplates",
+      toAnnotationSeq = input => Seq(SeedTemplates(input)),
+      helpText = "YAML template (or directory of templates) of TileLink instructions, e.g. template_seeds/YAML, " +
+        "that seeds are generated from in addition to SeedInputFolder",
+      helpValueName = Some("<str>")
+    ),
   )
 
   argumentOptions.foreach(_.addOption(this))
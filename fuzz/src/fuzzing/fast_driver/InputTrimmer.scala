@@ -0,0 +1,67 @@
+package fuzzing.fast
+
+import fuzzing.fast.util.Coverage
+import fuzzing.targets.FuzzTarget
+
+import java.io.ByteArrayInputStream
+
+/** Shrinks inputs by removing whole frames that do not change the covered points, like afl-tmin.
+  *
+  * Chunks of frames are removed from the front to the back, starting with 1/16th of the frames and halving
+  * the chunk down to a single frame. A chunk stays removed if a run of the shorter input is as valid as before
+  * and covers the same points. Every attempt is a run of `target`, at most `maxExecs` per input.
+  *
+  * @param target the target of the worker that trims, the runs are not reported to the guidance
+  */
+class InputTrimmer(target: FuzzTarget, feedbackCap: Int, maxExecs: Int) {
+  import InputTrimmer._
+
+  var trimmedInputs: Long = 0
+  var removedBytes:  Long = 0
+
+  /** Trims `input`, which covered `coverage` when it was saved.
+    * @param lastCycleNum the cycles that `target` had executed before
+    * @return the trimmed input (None if no frame could be removed) and the cycles that `target` executed afterwards
+    */
+  def trim(input: Array[Byte], valid: Boolean, coverage: Coverage, lastCycleNum: Long): (Option[Trimmed], Long) = {
+    var cycleNum = lastCycleNum
+    var best: Option[Trimmed] = None
+    var current = input
+    var bounds = target.frameBoundaries(current)
+    var frames = bounds.length - 1
+    var execs = 0
+    var chunk = math.max(Integer.highestOneBit(frames) / 16, 1)
+    while (frames > 1 && chunk > 0 && execs < maxExecs) {
+      var pos = 0
+      while (pos < frames && frames > 1 && execs < maxExecs) {
+        val start = bounds(pos)
+        val end = bounds(math.min(pos + chunk, frames))
+        val candidate = new Array[Byte](bounds(frames) - (end - start))
+        System.arraycopy(current, 0, candidate, 0, start)
+        System.arraycopy(current, end, candidate, start, bounds(frames) - end)
+        val (runCov, runValid, runCycleNum) = target.run(new ByteArrayInputStream(candidate), feedbackCap)
+        execs += 1
+        val cycles = runCycleNum - cycleNum
+        cycleNum = runCycleNum
+        if (runValid == valid && runCov.coversSamePoints(coverage)) {
+          current = candidate
+          bounds = target.frameBoundaries(current)
+          frames = bounds.length - 1
+          best = Some(Trimmed(current, runCov, cycles))
+        } else {
+          pos += chunk
+        }
+      }
+      chunk /= 2
+    }
+    best.foreach { t =>
+      trimmedInputs += 1
+      removedBytes += input.length - t.bytes.length
+    }
+    (best, cycleNum)
+  }
+}
+
+object InputTrimmer {
+  case class Trimmed(bytes: Array[Byte], coverage: Coverage, cycles: Long)
+}
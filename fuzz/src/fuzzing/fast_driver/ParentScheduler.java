@@ -0,0 +1,32 @@
+package fuzzing.fast;
+
+import java.util.Random;
+
+import fuzzing.fast.FuzzGuidance.Input;
+
+/**
+ * Decides which saved input the next mutated child is generated from.
+ *
+ * <p>Saved inputs are identified by their index in the saved inputs of the guidance,
+ * which only grow at the end. All methods are called while holding the guidance lock.</p>
+ */
+public interface ParentScheduler {
+
+    /** Called after <code>input</code> was appended to the saved inputs at index <code>idx</code>. */
+    void inputSaved(int idx, Input input);
+
+    /**
+     * Called after a culling pass demoted saved inputs, see {@link Input#isCulled()}.
+     * Culled inputs are not picked anymore.
+     */
+    void corpusCulled();
+
+    /** Called after the saved input at index <code>idx</code> alone was culled. */
+    void inputCulled(int idx);
+
+    /**
+     * Returns the index of the saved input to mutate the next child from.
+     * There is at least one saved input that is not culled.
+     */
+    int nextParent(Random random);
+}
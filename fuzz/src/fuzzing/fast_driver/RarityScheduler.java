@@ -0,0 +1,153 @@
+package fuzzing.fast;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import org.eclipse.collections.impl.list.mutable.primitive.DoubleArrayList;
+import org.eclipse.collections.impl.list.mutable.primitive.IntArrayList;
+
+import fuzzing.fast.FuzzGuidance.Input;
+import fuzzing.fast.util.FenwickTree;
+
+/**
+ * Picks parents with a probability proportional to how rare the points they cover are,
+ * divided by the number of cycles it takes to simulate them (a power schedule in the spirit
+ * of AFLFast and Entropic).
+ *
+ * <p>The rarity of an input is the sum of <code>1 / f(p)</code> over the points <code>p</code>
+ * it covers, where <code>f(p)</code> is the number of saved inputs that cover <code>p</code>.
+ * Every pick divides the weight of the parent by one more, so new inputs are fuzzed first and,
+ * in the long run, inputs are picked in proportion to their rarity per simulated cycle.</p>
+ *
+ * <p>The weights are kept in a {@link FenwickTree}, so a pick takes O(log n). Rarities go stale
+ * as inputs are added, they are recomputed at the end of every cycle, i.e. once as many parents
+ * were picked as there are active inputs. Culled inputs get a weight of zero and do not count
+ * towards the frequencies.</p>
+ */
+public class RarityScheduler implements ParentScheduler {
+    /** Number of children mutated from a parent before the next one is picked (they share prefix checkpoints). */
+    protected static final int CHILDREN_PER_PICK = 16;
+
+    private final Runnable cycleCompleted;
+    private final List<Input> inputs = new ArrayList<>();
+    private final DoubleArrayList rarities = new DoubleArrayList();
+    private final IntArrayList picks = new IntArrayList();
+    private final FenwickTree weights = new FenwickTree();
+
+    /** Number of saved inputs that cover each point. */
+    private int[] frequency = new int[0];
+
+    private int current = -1;
+    private int numChildren = 0;
+    private int picksThisCycle = 0;
+    private int numActive = 0;
+
+    public RarityScheduler(Runnable cycleCompleted) {
+        this.cycleCompleted = cycleCompleted;
+    }
+
+    @Override
+    public void inputSaved(int idx, Input input) {
+        inputs.add(input);
+        picks.add(0);
+        countCoverage(input);
+        rarities.add(rarity(input));
+        weights.add(weight(idx));
+    }
+
+    @Override
+    public void corpusCulled() {
+        Arrays.fill(frequency, 0);
+        numActive = 0;
+        for (Input input : inputs) {
+            countCoverage(input);
+        }
+        if (current >= 0 && inputs.get(current).isCulled()) {
+            current = -1;
+        }
+        refresh();
+    }
+
+    @Override
+    public void inputCulled(int idx) {
+        Input input = inputs.get(idx);
+        numActive--;
+        if (input.coverage != null) {
+            input.coverage.forEachNonZero(p -> frequency[p]--);
+        }
+        rarities.set(idx, 0);
+        weights.set(idx, 0);
+        if (current == idx) {
+            current = -1;
+        }
+    }
+
+    @Override
+    public int nextParent(Random random) {
+        if (current >= 0 && numChildren < CHILDREN_PER_PICK) {
+            numChildren++;
+            return current;
+        }
+        if (picksThisCycle >= numActive) {
+            picksThisCycle = 0;
+            cycleCompleted.run();
+            refresh();
+        }
+        double total = weights.total();
+        current = total > 0 ? weights.find(random.nextDouble() * total) : randomActive(random);
+        picks.set(current, picks.get(current) + 1);
+        weights.set(current, weight(current));
+        picksThisCycle++;
+        numChildren = 1;
+        return current;
+    }
+
+    /** Picks one of the inputs that were not culled uniformly, for when none of them has a weight. */
+    private int randomActive(Random random) {
+        int k = random.nextInt(Math.max(numActive, 1));
+        for (int i = 0; i < inputs.size(); i++) {
+            if (!inputs.get(i).isCulled() && k-- == 0) {
+                return i;
+            }
+        }
+        return random.nextInt(inputs.size());
+    }
+
+    private void countCoverage(Input input) {
+        if (input.isCulled()) {
+            return;
+        }
+        numActive++;
+        if (input.coverage != null) {
+            if (frequency.length < input.coverage.size()) {
+                frequency = Arrays.copyOf(frequency, input.coverage.size());
+            }
+            input.coverage.forEachNonZero(p -> frequency[p]++);
+        }
+    }
+
+    private double rarity(Input input) {
+        if (input.isCulled() || input.coverage == null) {
+            return 0;
+        }
+        double[] sum = {0};
+        input.coverage.forEachNonZero(p -> sum[0] += 1.0 / frequency[p]);
+        return sum[0];
+    }
+
+    private double weight(int idx) {
+        double cost = Math.max(inputs.get(idx).cycles, 1);
+        return rarities.get(idx) / cost / (1 + picks.get(idx));
+    }
+
+    /** Recomputes the rarities with the current frequencies and refills the tree, which also drops rounding errors. */
+    private void refresh() {
+        weights.clear();
+        for (int i = 0; i < inputs.size(); i++) {
+            rarities.set(i, rarity(inputs.get(i)));
+            weights.add(weight(i));
+        }
+    }
+}
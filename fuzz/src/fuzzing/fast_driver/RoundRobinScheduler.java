@@ -0,0 +1,95 @@
+package fuzzing.fast;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.function.ToIntFunction;
+
+import org.eclipse.collections.impl.list.mutable.primitive.IntArrayList;
+
+import fuzzing.fast.FuzzGuidance.Input;
+
+/**
+ * Walks the saved inputs in order and mutates <code>targetChildren(input)</code> children from each one.
+ * A cycle is completed every time the walk wraps around to the first input. Culled inputs are skipped.
+ */
+public class RoundRobinScheduler implements ParentScheduler {
+    private final List<Input> inputs = new ArrayList<>();
+    private final ToIntFunction<Input> targetChildren;
+    private final Runnable cycleCompleted;
+
+    /** Indices of the inputs that are not culled, in order. */
+    private final IntArrayList active = new IntArrayList();
+
+    /** Position of the current parent in {@link #active}. */
+    private int current = 0;
+    private int numChildren = 0;
+
+    public RoundRobinScheduler(ToIntFunction<Input> targetChildren, Runnable cycleCompleted) {
+        this.targetChildren = targetChildren;
+        this.cycleCompleted = cycleCompleted;
+    }
+
+    @Override
+    public void inputSaved(int idx, Input input) {
+        inputs.add(input);
+        active.add(idx);
+    }
+
+    @Override
+    public void corpusCulled() {
+        // continue the walk at the first input that is still active
+        int currentIdx = active.isEmpty() ? 0 : active.get(current);
+        active.clear();
+        current = 0;
+        for (int i = 0; i < inputs.size(); i++) {
+            if (!inputs.get(i).isCulled()) {
+                if (i < currentIdx) {
+                    current++;
+                }
+                active.add(i);
+            }
+        }
+        if (current == active.size()) {
+            current = 0;
+        }
+        numChildren = 0;
+    }
+
+    @Override
+    public void inputCulled(int idx) {
+        int pos = active.indexOf(idx);
+        if (pos < 0) {
+            return;
+        }
+        active.removeAtIndex(pos);
+        if (pos < current) {
+            current--;
+        } else if (pos == current) {
+            // continue with the next input
+            numChildren = 0;
+            if (current == active.size()) {
+                current = 0;
+            }
+        }
+    }
+
+    @Override
+    public int nextParent(Random random) {
+        // The number of children to produce is determined by how much of the coverage
+        // pool this parent input hits
+        if (numChildren >= targetChildren.applyAsInt(inputs.get(active.get(current)))) {
+            // Select the next saved input to fuzz
+            current = (current + 1) % active.size();
+
+            // Count cycles
+            if (current == 0) {
+                cycleCompleted.run();
+            }
+
+            numChildren = 0;
+        }
+        numChildren++;
+        return active.get(current);
+    }
+}
@@ -0,0 +1,430 @@
+package fuzzing.fast;
+
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Mutations for inputs that are a sequence of TileLink instructions, as read by
+ * <code>fuzzing.targets.TLULTarget</code>.
+ *
+ * <p>An instruction is an opcode byte (1 = wait, 2 = read, 3 = write, any other value is an invalid
+ * instruction that the target skips), followed by a little-endian 4-byte address for reads and writes
+ * and by 4 bytes of data for writes. Inputs are decoded into instructions, the opcode, address and data
+ * of single instructions are mutated separately and whole instructions are inserted, removed, repeated
+ * or swapped, so that the bytes after a mutation are still read as the same instructions.
+ * Addresses are mostly picked from a dictionary of the registers of the design.
+ * Bytes after the last complete instruction are kept as they are.</p>
+ */
+public class TLULMutator {
+    public static final int INVALID = 0;
+    public static final int WAIT = 1;
+    public static final int READ = 2;
+    public static final int WRITE = 3;
+
+    /** Maximum number of instructions that are removed or repeated by one mutation. */
+    protected static final int MAX_BLOCK_INSTRUCTIONS = 8;
+
+    /** Data values that often hit corner cases of registers. */
+    private static final int[] INTERESTING_DATA = {0, 1, 0xff, 0x80, 0xffff, 0x7fffffff, 0x80000000, 0xffffffff};
+
+    private final int[] addresses;
+    private final int maxBytes;
+
+    /** Data values that the design compares inputs with, see {@link #setDictionary(byte[][])}. */
+    private int[] dictionary = new int[0];
+
+    /**
+     * @param addresses the register addresses of the design, reads and writes to other addresses are rarely generated
+     * @param maxBytes  inputs do not grow beyond this size
+     */
+    public TLULMutator(long[] addresses, int maxBytes) {
+        this.addresses = new int[addresses.length];
+        for (int i = 0; i < addresses.length; i++) {
+            this.addresses[i] = (int) addresses[i];
+        }
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * Sets the data values that writes are mostly generated with.
+     *
+     * @param tokens little-endian values of up to 4 bytes, longer tokens are ignored
+     */
+    public void setDictionary(byte[][] tokens) {
+        int n = 0;
+        int[] values = new int[tokens.length];
+        for (byte[] token : tokens) {
+            if (token.length <= 4) {
+                int value = 0;
+                for (int i = 0; i < token.length; i++) {
+                    value |= (token[i] & 0xff) << (8 * i);
+                }
+                values[n++] = value;
+            }
+        }
+        dictionary = Arrays.copyOf(values, n);
+    }
+
+    /** Returns the number of bytes of an instruction with the given opcode byte. */
+    public static int instructionSize(int opcode) {
+        switch (opcode) {
+            case READ:
+                return 5;
+            case WRITE:
+                return 9;
+            default:
+                return 1;
+        }
+    }
+
+    /** Applies <code>numMutations</code> random mutations to the instructions in the first <code>length</code> bytes of <code>values</code>. */
+    public FrameMutator.Result havoc(byte[] values, int length, Random random, int numMutations) {
+        Program p = Program.decode(values, length);
+        StringBuilder desc = new StringBuilder();
+        for (int mutation = 0; mutation < numMutations; mutation++) {
+            int n = p.size;
+            String op;
+            if (n == 0) {
+                op = insert(p, 0, random);
+            } else {
+                int idx = random.nextInt(n);
+                switch (random.nextInt(10)) {
+                    case 0:
+                        op = mutateOpcode(p, idx, random);
+                        break;
+                    case 1:
+                    case 2:
+                        op = mutateAddress(p, idx, random);
+                        break;
+                    case 3:
+                    case 4:
+                        op = mutateData(p, idx, random);
+                        break;
+                    case 5:
+                        op = insert(p, random.nextInt(n + 1), random);
+                        break;
+                    case 6:
+                        if (n > 1) {
+                            p.remove(idx, 1 + random.nextInt(Math.min(MAX_BLOCK_INSTRUCTIONS, n - 1)));
+                            op = "del";
+                        } else {
+                            op = mutateData(p, idx, random);
+                        }
+                        break;
+                    case 7:
+                        op = repeat(p, idx, random);
+                        break;
+                    default:
+                        op = swap(p, idx, random.nextInt(n));
+                        break;
+                }
+            }
+            if (op != null) {
+                desc.append(desc.length() == 0 ? op : ":" + op);
+            }
+        }
+        FrameMutator.Result r = p.encode(values, length);
+        r.desc = desc.toString();
+        return r;
+    }
+
+    /**
+     * Returns the instructions of one input up to a random instruction, followed by the instructions
+     * of another one from a random instruction on.
+     */
+    public FrameMutator.Result splice(byte[] values1, int length1, byte[] values2, int length2, Random random) {
+        int[] bounds1 = boundaries(values1, length1);
+        int[] bounds2 = boundaries(values2, length2);
+        int cut1 = random.nextInt(bounds1.length);
+        int cut2 = random.nextInt(bounds2.length);
+        int prefix = bounds1[cut1];
+        int suffix = Math.min(bounds2[bounds2.length - 1] - bounds2[cut2], Math.max(0, maxBytes - prefix));
+        // only take complete instructions of the second input
+        int end = cut2;
+        while (end + 1 < bounds2.length && bounds2[end + 1] - bounds2[cut2] <= suffix) {
+            end++;
+        }
+        suffix = bounds2[end] - bounds2[cut2];
+        byte[] data = new byte[prefix + suffix];
+        System.arraycopy(values1, 0, data, 0, prefix);
+        System.arraycopy(values2, bounds2[cut2], data, prefix, suffix);
+        FrameMutator.Result r = new FrameMutator.Result(data, data.length);
+        r.firstMutated = prefix;
+        r.desc = "splice@" + cut1 + "/" + cut2;
+        return r;
+    }
+
+    /** Returns the bytes of <code>count</code> random instructions. */
+    public byte[] generate(Random random, int count) {
+        Program p = new Program(count);
+        for (int i = 0; i < count; i++) {
+            insert(p, i, random);
+        }
+        FrameMutator.Result r = p.encode(new byte[0], 0);
+        return Arrays.copyOf(r.data, r.length);
+    }
+
+    /**
+     * Offsets at which the instructions in the first <code>length</code> bytes of <code>values</code> start,
+     * followed by the end of the last complete instruction.
+     */
+    public static int[] boundaries(byte[] values, int length) {
+        int[] bounds = new int[length + 1];
+        int n = 0;
+        int offset = 0;
+        bounds[n++] = 0;
+        while (offset < length) {
+            int size = instructionSize(values[offset] & 0xff);
+            if (offset + size > length) {
+                break;
+            }
+            offset += size;
+            bounds[n++] = offset;
+        }
+        return Arrays.copyOf(bounds, n);
+    }
+
+    private String mutateOpcode(Program p, int idx, Random random) {
+        int opcode = WAIT + random.nextInt(3);
+        if (opcode == p.opcodes[idx]) {
+            opcode = random.nextInt(16) == 0 ? INVALID : (opcode % 3) + 1;
+        }
+        if (p.byteSize + instructionSize(opcode) - instructionSize(p.opcodes[idx] & 0xff) > maxBytes) {
+            return null;
+        }
+        if ((p.opcodes[idx] & 0xff) != READ && (p.opcodes[idx] & 0xff) != WRITE) {
+            // the instruction did not have an address so far
+            p.addresses[idx] = randomAddress(random);
+        }
+        if ((p.opcodes[idx] & 0xff) != WRITE) {
+            p.data[idx] = randomData(random);
+        }
+        p.setOpcode(idx, opcode);
+        return "op";
+    }
+
+    private String mutateAddress(Program p, int idx, Random random) {
+        int opcode = p.opcodes[idx] & 0xff;
+        if (opcode != READ && opcode != WRITE) {
+            return mutateOpcode(p, idx, random);
+        }
+        int kind = random.nextInt(4);
+        if (kind < 2 && addresses.length > 0) {
+            p.addresses[idx] = addresses[random.nextInt(addresses.length)];
+        } else if (kind == 2) {
+            // the neighboring word
+            p.addresses[idx] += random.nextBoolean() ? 4 : -4;
+        } else {
+            p.addresses[idx] ^= 1 << random.nextInt(32);
+        }
+        return "addr";
+    }
+
+    private String mutateData(Program p, int idx, Random random) {
+        if ((p.opcodes[idx] & 0xff) != WRITE) {
+            return mutateAddress(p, idx, random);
+        }
+        int kind = random.nextInt(4);
+        if (kind == 0) {
+            p.data[idx] ^= 1 << random.nextInt(32);
+        } else if (kind == 1) {
+            // a random value in one of the bytes
+            int shift = 8 * random.nextInt(4);
+            p.data[idx] = (p.data[idx] & ~(0xff << shift)) | (random.nextInt(256) << shift);
+        } else if (kind == 2 && dictionary.length > 0) {
+            p.data[idx] = dictionary[random.nextInt(dictionary.length)];
+            return "dict";
+        } else {
+            p.data[idx] = randomData(random);
+        }
+        return "data";
+    }
+
+    /** Inserts a random instruction before instruction <code>idx</code>. */
+    private String insert(Program p, int idx, Random random) {
+        int opcode = WAIT + random.nextInt(3);
+        if (p.byteSize + instructionSize(opcode) > maxBytes) {
+            return null;
+        }
+        p.insert(idx, 1);
+        p.opcodes[idx] = (byte) opcode;
+        p.addresses[idx] = opcode == WAIT ? 0 : randomAddress(random);
+        p.data[idx] = opcode == WRITE ? randomData(random) : 0;
+        p.byteSize += instructionSize(opcode);
+        return "ins";
+    }
+
+    /** Repeats a block of instructions, e.g. to wait for longer or to write a register again. */
+    private String repeat(Program p, int idx, Random random) {
+        int count = 1 + random.nextInt(Math.min(MAX_BLOCK_INSTRUCTIONS, p.size - idx));
+        int blockBytes = p.byteSize(idx, idx + count);
+        int times = Math.min(1 + random.nextInt(MAX_BLOCK_INSTRUCTIONS), (maxBytes - p.byteSize) / blockBytes);
+        if (times <= 0) {
+            return null;
+        }
+        int end = idx + count;
+        p.insert(end, times * count);
+        for (int t = 0; t < times; t++) {
+            p.copy(idx, end + t * count, count);
+        }
+        p.byteSize += times * blockBytes;
+        return "rep";
+    }
+
+    private String swap(Program p, int idx1, int idx2) {
+        if (idx1 == idx2) {
+            return null;
+        }
+        p.swap(idx1, idx2);
+        return "swap";
+    }
+
+    private int randomAddress(Random random) {
+        if (addresses.length > 0 && random.nextInt(16) != 0) {
+            return addresses[random.nextInt(addresses.length)];
+        }
+        // a word aligned address in the neighborhood of the registers, or anywhere if there are none
+        if (addresses.length > 0) {
+            return addresses[random.nextInt(addresses.length)] + 4 * (random.nextInt(64) - 32);
+        }
+        return random.nextInt() & ~3;
+    }
+
+    private int randomData(Random random) {
+        if (dictionary.length > 0 && random.nextInt(4) == 0) {
+            return dictionary[random.nextInt(dictionary.length)];
+        }
+        return random.nextBoolean() ? INTERESTING_DATA[random.nextInt(INTERESTING_DATA.length)] : random.nextInt();
+    }
+
+    /** The instructions of an input, with an opcode byte that may be invalid. */
+    private static final class Program {
+        byte[] opcodes;
+        int[] addresses;
+        int[] data;
+        int size = 0;
+        /** Encoded size of the instructions. */
+        int byteSize = 0;
+        /** Bytes after the last complete instruction. */
+        byte[] tail = new byte[0];
+
+        Program(int capacity) {
+            opcodes = new byte[Math.max(capacity, 8)];
+            addresses = new int[opcodes.length];
+            data = new int[opcodes.length];
+        }
+
+        static Program decode(byte[] values, int length) {
+            Program p = new Program(length / 4);
+            int offset = 0;
+            while (offset < length) {
+                int opcode = values[offset] & 0xff;
+                int size = instructionSize(opcode);
+                if (offset + size > length) {
+                    break;
+                }
+                p.insert(p.size, 1);
+                int idx = p.size - 1;
+                p.opcodes[idx] = values[offset];
+                if (size > 1) {
+                    p.addresses[idx] = readInt(values, offset + 1);
+                }
+                if (size > 5) {
+                    p.data[idx] = readInt(values, offset + 5);
+                }
+                offset += size;
+            }
+            p.byteSize = offset;
+            p.tail = Arrays.copyOfRange(values, offset, length);
+            return p;
+        }
+
+        /** Encodes the instructions and returns them with the offset of the first byte that differs from <code>parent</code>. */
+        FrameMutator.Result encode(byte[] parent, int parentLength) {
+            byte[] out = new byte[byteSize + tail.length];
+            int offset = 0;
+            for (int i = 0; i < size; i++) {
+                out[offset] = opcodes[i];
+                int opcode = opcodes[i] & 0xff;
+                if (opcode == READ || opcode == WRITE) {
+                    writeInt(out, offset + 1, addresses[i]);
+                }
+                if (opcode == WRITE) {
+                    writeInt(out, offset + 5, data[i]);
+                }
+                offset += instructionSize(opcode);
+            }
+            System.arraycopy(tail, 0, out, offset, tail.length);
+            FrameMutator.Result r = new FrameMutator.Result(out, out.length);
+            int mismatch = Arrays.mismatch(out, 0, out.length, parent, 0, parentLength);
+            r.firstMutated = mismatch < 0 ? out.length : mismatch;
+            return r;
+        }
+
+        void setOpcode(int idx, int opcode) {
+            byteSize += instructionSize(opcode) - instructionSize(opcodes[idx] & 0xff);
+            opcodes[idx] = (byte) opcode;
+        }
+
+        int byteSize(int from, int to) {
+            int n = 0;
+            for (int i = from; i < to; i++) {
+                n += instructionSize(opcodes[i] & 0xff);
+            }
+            return n;
+        }
+
+        /** Makes room for <code>count</code> instructions before instruction <code>idx</code>. */
+        void insert(int idx, int count) {
+            if (size + count > opcodes.length) {
+                int capacity = Math.max(size + count, 2 * opcodes.length);
+                opcodes = Arrays.copyOf(opcodes, capacity);
+                addresses = Arrays.copyOf(addresses, capacity);
+                data = Arrays.copyOf(data, capacity);
+            }
+            System.arraycopy(opcodes, idx, opcodes, idx + count, size - idx);
+            System.arraycopy(addresses, idx, addresses, idx + count, size - idx);
+            System.arraycopy(data, idx, data, idx + count, size - idx);
+            size += count;
+        }
+
+        void remove(int idx, int count) {
+            count = Math.min(count, size - idx);
+            byteSize -= byteSize(idx, idx + count);
+            System.arraycopy(opcodes, idx + count, opcodes, idx, size - idx - count);
+            System.arraycopy(addresses, idx + count, addresses, idx, size - idx - count);
+            System.arraycopy(data, idx + count, data, idx, size - idx - count);
+            size -= count;
+        }
+
+        void copy(int from, int to, int count) {
+            System.arraycopy(opcodes, from, opcodes, to, count);
+            System.arraycopy(addresses, from, addresses, to, count);
+            System.arraycopy(data, from, data, to, count);
+        }
+
+        void swap(int a, int b) {
+            byte opcode = opcodes[a];
+            opcodes[a] = opcodes[b];
+            opcodes[b] = opcode;
+            int address = addresses[a];
+            addresses[a] = addresses[b];
+            addresses[b] = address;
+            int value = data[a];
+            data[a] = data[b];
+            data[b] = value;
+        }
+
+        private static int readInt(byte[] values, int offset) {
+            return (values[offset] & 0xff) | (values[offset + 1] & 0xff) << 8
+                    | (values[offset + 2] & 0xff) << 16 | (values[offset + 3] & 0xff) << 24;
+        }
+
+        private static void writeInt(byte[] out, int offset, int value) {
+            out[offset] = (byte) value;
+            out[offset + 1] = (byte) (value >>> 8);
+            out[offset + 2] = (byte) (value >>> 16);
+            out[offset + 3] = (byte) (value >>> 24);
+        }
+    }
+}
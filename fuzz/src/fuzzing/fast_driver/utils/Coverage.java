@@ -28,57 +28,163 @@
  */
 package fuzzing.fast.util;
 
-import java.util.ArrayList;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.LongBuffer;
 import java.util.Arrays;
-import java.util.Collection;
-import java.util.stream.Collectors;
-import java.util.List;
-import org.eclipse.collections.api.iterator.IntIterator;
+import org.eclipse.collections.api.block.procedure.primitive.IntProcedure;
 import org.eclipse.collections.api.list.primitive.IntList;
 import org.eclipse.collections.impl.list.mutable.primitive.IntArrayList;
+import org.eclipse.collections.impl.set.mutable.primitive.IntHashSet;
 
+/**
+ * A map of 8-bit coverage counters.
+ *
+ * <p>Counters are packed eight to a <code>long</code> (counter <code>i</code> lives in
+ * byte <code>i % 8</code> of word <code>i / 8</code>, little-endian), so every scan
+ * handles 64 bits at a time with SWAR bit tricks. Counters are unsigned: any
+ * non-zero byte counts as covered. The number of non-zero counters is kept up to
+ * date by every mutating operation, so {@link #getNonZeroCount()} is O(1).</p>
+ *
+ * <p>A map built with {@link #fromSparse(ByteBuffer, int, int)} also remembers which
+ * words hold non-zero counters; merging or comparing it only visits those words, so
+ * the cost of processing one run scales with the number of counters it hit.</p>
+ *
+ * <p>Only {@link #updateBitsAtomic(Coverage, IntHashSet)} may be called concurrently (with
+ * itself and with read-only methods); all other methods assume a single thread.</p>
+ */
 public class Coverage {
     private static final int MAX_COVER_COUNT = 4096;  // predefine
-    private byte[] coverPoints;
+
+    /** Returned by {@link #updateBits(Coverage, IntHashSet)} if a counter gained a new hit-count bucket. */
+    public static final int NEW_COUNTS = 1;
+
+    /** Returned by {@link #updateBits(Coverage, IntHashSet)} if a counter went from zero to non-zero. */
+    public static final int NEW_COVERAGE = 2;
+
+    private static final VarHandle WORDS = MethodHandles.arrayElementVarHandle(long[].class);
+    private static final VarHandle BUFFER_WORDS = MethodHandles.byteBufferViewVarHandle(long[].class, ByteOrder.LITTLE_ENDIAN);
+    private static final VarHandle NON_ZERO_COUNT;
+    static {
+        try {
+            NON_ZERO_COUNT = MethodHandles.lookup().findVarHandle(Coverage.class, "nonZeroCount", int.class);
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    private static final long LOW_7_BITS = 0x7F7F7F7F7F7F7F7FL;
+    private static final long HIGH_BITS = 0x8080808080808080L;
+
+    private long[] words;
     private int cov_size;
+    private int nonZeroCount;
+
+    /** Indices of the words that may be non-zero, or null if any word may be non-zero. */
+    private int[] activeWords = null;
+    private int numActiveWords = 0;
 
     public Coverage() {
-        coverPoints = new byte[MAX_COVER_COUNT];
-        cov_size = MAX_COVER_COUNT;
+        this(MAX_COVER_COUNT);
     }
 
     public Coverage(int covSize) {
-        coverPoints = new byte[covSize];
+        words = new long[wordsFor(covSize)];
         cov_size = covSize;
+        nonZeroCount = 0;
     }
 
     public Coverage(byte[] cov) {
-        // coverPoints = new int[cov.length];
-        coverPoints = cov.clone();
-        cov_size = cov.length;
-        // for(int i = 0; i < cov.length; i++) {
-        //     coverPoints[i] = cov[i];
-        // }
+        this(cov.length);
+        LongBuffer full = ByteBuffer.wrap(cov).order(ByteOrder.LITTLE_ENDIAN).asLongBuffer();
+        int fullWords = full.remaining();
+        full.get(words, 0, fullWords);
+        for (int i = fullWords << 3; i < cov.length; i++) {
+            words[i >>> 3] |= (cov[i] & 0xFFL) << ((i & 7) << 3);
+        }
+        nonZeroCount = countNonZero(words);
     }
 
-    public Coverage copy() {
-        Coverage ret = new Coverage(coverPoints);
-        // for (int idx = 0; idx < cov_size; idx++) {
-        //     ret.setAtIndex(idx, this.getAtIndex(idx));
-        // }
+    private Coverage(Coverage other) {
+        words = other.words.clone();
+        cov_size = other.cov_size;
+        nonZeroCount = other.nonZeroCount;
+        if (other.activeWords != null) {
+            activeWords = Arrays.copyOf(other.activeWords, other.numActiveWords);
+            numActiveWords = other.numActiveWords;
+        }
+    }
+
+    /**
+     * Builds a map from <code>entries</code> 32-bit entries (native byte order) of the form
+     * <code>(index &lt;&lt; 8) | count</code>, as written by the simulator for the counters hit by a run.
+     */
+    public static Coverage fromSparse(ByteBuffer buf, int entries, int covSize) {
+        Coverage ret = new Coverage(covSize);
+        ByteBuffer view = buf.duplicate().order(ByteOrder.nativeOrder());
+        long[] words = ret.words;
+        int[] active = new int[Math.min(entries, words.length)];
+        int numActive = 0;
+        int nonZero = 0;
+        for (int i = 0; i < entries; i++) {
+            int entry = view.getInt(i << 2);
+            int idx = entry >>> 8;
+            long value = entry & 0xFFL;
+            if (value == 0 || idx >= covSize) {
+                continue;
+            }
+            int w = idx >>> 3;
+            int shift = (idx & 7) << 3;
+            long before = words[w];
+            if (before == 0) {
+                active[numActive++] = w;
+            }
+            if (((before >>> shift) & 0xFFL) == 0) {
+                nonZero++;
+            }
+            words[w] = (before & ~(0xFFL << shift)) | (value << shift);
+        }
+        ret.activeWords = active;
+        ret.numActiveWords = numActive;
+        ret.nonZeroCount = nonZero;
+        return ret;
+    }
+
+    /** Returns a map of <code>covSize</code> counters that are all zero. */
+    public static Coverage empty(int covSize) {
+        Coverage ret = new Coverage(covSize);
+        ret.activeWords = new int[0];
         return ret;
     }
 
+    public Coverage copy() {
+        return new Coverage(this);
+    }
+
+    /** Returns a copy of the counters, one byte per cover point. */
     public byte[] getCoverPoints() {
-        return coverPoints;
+        byte[] ret = new byte[cov_size];
+        for (int i = 0; i < cov_size; i++) {
+            ret[i] = getAtIndex(i);
+        }
+        return ret;
     }
 
     public byte getAtIndex(int idx) {
-        return coverPoints[idx];
+        return (byte) (words[idx >>> 3] >>> ((idx & 7) << 3));
     }
 
     public void setAtIndex(int idx, byte value) {
-        coverPoints[idx] = value;
+        ensureCapacity(idx + 1);
+        int w = idx >>> 3;
+        int shift = (idx & 7) << 3;
+        long before = words[w];
+        long after = (before & ~(0xFFL << shift)) | ((value & 0xFFL) << shift);
+        words[w] = after;
+        activeWords = null;
+        nonZeroCount += Long.bitCount(nonZeroMask(after)) - Long.bitCount(nonZeroMask(before));
     }
 
     public int size() {
@@ -86,9 +192,13 @@ public class Coverage {
     }
 
     public boolean hasNewCoverage(Coverage newCoverage) {
-        byte[] newCoverPoints = newCoverage.coverPoints;
-        for (int i = 0; i < coverPoints.length; i++) {
-            if (coverPoints[i] == 0 && newCoverPoints[i] > 0) {
+        long[] newWords = newCoverage.words;
+        int[] active = newCoverage.activeWords;
+        int n = active == null ? newWords.length : newCoverage.numActiveWords;
+        for (int k = 0; k < n; k++) {
+            int w = active == null ? k : active[k];
+            long x = newWords[w];
+            if (x != 0 && (w >= words.length || (nonZeroMask(x) & ~nonZeroMask(words[w])) != 0)) {
                 return true;
             }
         }
@@ -96,92 +206,310 @@ public class Coverage {
     }
 
     public boolean updateBits(Coverage newCoverage) {
-        boolean changed = false;
+        return updateBits(newCoverage, null) != 0;
+    }
 
-        // update size of totalCoverage 
+    /**
+     * Merges the highest order bit of every counter of <code>newCoverage</code> into this map.
+     *
+     * <p>The indices of counters that were zero here and are non-zero in
+     * <code>newCoverage</code> are added to <code>newKeys</code> (unless it is null).</p>
+     *
+     * @return a combination of {@link #NEW_COUNTS} and {@link #NEW_COVERAGE}
+     */
+    public int updateBits(Coverage newCoverage, IntHashSet newKeys) {
+        // update size of totalCoverage
+        ensureCapacity(newCoverage.size());
         cov_size = newCoverage.size();
 
-        for (int i = 0; i < newCoverage.size(); i++) {
-            if(newCoverage.getAtIndex(i) > 0) {
-                byte before = coverPoints[i];
-                byte after = (byte)(before | hob(newCoverage.getAtIndex(i)));
-                if (after != before) {
-                    coverPoints[i] = after;
-                    changed = true;
+        long[] newWords = newCoverage.words;
+        int[] active = newCoverage.activeWords;
+        int n = active == null ? newWords.length : newCoverage.numActiveWords;
+        int delta = 0;
+        boolean changed = false;
+        for (int k = 0; k < n; k++) {
+            int w = active == null ? k : active[k];
+            long x = newWords[w];
+            if (x == 0) {
+                continue;
+            }
+            long before = words[w];
+            long after = before | hob(x);
+            if (after != before) {
+                words[w] = after;
+                if (before == 0) {
+                    addActiveWord(w);
+                }
+                changed = true;
+                long fresh = nonZeroMask(x) & ~nonZeroMask(before);
+                if (fresh != 0) {
+                    delta += Long.bitCount(fresh);
+                    if (newKeys != null) {
+                        addIndices(newKeys, w, fresh);
+                    }
                 }
             }
         }
-        return changed;
+        nonZeroCount += delta;
+        return (changed ? NEW_COUNTS : 0) | (delta > 0 ? NEW_COVERAGE : 0);
     }
 
-    public IntList computeNewCoverage(Coverage baseline) {
-        IntArrayList newCoverage = new IntArrayList();
+    /**
+     * Thread-safe version of {@link #updateBits(Coverage, IntHashSet)}.
+     *
+     * <p>Words are merged with an atomic OR, so when several threads cover the same counter
+     * for the first time, exactly one of them gets its index in <code>newKeys</code>. Words
+     * that would not change are only read. The map grows under a lock if
+     * <code>newCoverage</code> is larger; bits that another thread merges into the old words
+     * during such a resize can get lost, which cannot happen as long as all runs report the
+     * same number of counters.</p>
+     *
+     * @return a combination of {@link #NEW_COUNTS} and {@link #NEW_COVERAGE}
+     */
+    public int updateBitsAtomic(Coverage newCoverage, IntHashSet newKeys) {
+        long[] arr = words;
+        if (arr.length < wordsFor(newCoverage.size())) {
+            synchronized (this) {
+                ensureCapacity(newCoverage.size());
+                cov_size = Math.max(cov_size, newCoverage.size());
+                arr = words;
+            }
+        }
 
-        for (int i = 0; i < cov_size; i++) {
-            if (coverPoints[i] > 0 && baseline.getAtIndex(i) == 0) {
-                newCoverage.add(i);
+        long[] newWords = newCoverage.words;
+        int[] active = newCoverage.activeWords;
+        int n = active == null ? newWords.length : newCoverage.numActiveWords;
+        int delta = 0;
+        boolean changed = false;
+        for (int k = 0; k < n; k++) {
+            int w = active == null ? k : active[k];
+            long x = newWords[w];
+            if (x == 0) {
+                continue;
             }
+            long h = hob(x);
+            long current = arr[w];
+            if ((current | h) == current) {
+                continue;
+            }
+            long before = (long) WORDS.getAndBitwiseOr(arr, w, h);
+            if ((before | h) != before) {
+                if (before == 0) {
+                    // the list cannot be extended concurrently
+                    activeWords = null;
+                }
+                changed = true;
+                long fresh = nonZeroMask(x) & ~nonZeroMask(before);
+                if (fresh != 0) {
+                    delta += Long.bitCount(fresh);
+                    if (newKeys != null) {
+                        addIndices(newKeys, w, fresh);
+                    }
+                }
+            }
+        }
+        if (delta > 0) {
+            NON_ZERO_COUNT.getAndAdd(this, delta);
         }
+        return (changed ? NEW_COUNTS : 0) | (delta > 0 ? NEW_COVERAGE : 0);
+    }
 
-        return newCoverage;
+    /**
+     * Merges this map into a map held in <code>shared</code>, which other processes may be
+     * updating at the same time (e.g. a memory-mapped file), using the same packed layout
+     * as the words of this class. Counters beyond the end of <code>shared</code> are ignored.
+     *
+     * <p><code>shared</code> must be a direct buffer whose address is 8-byte aligned.</p>
+     *
+     * @return a combination of {@link #NEW_COUNTS} and {@link #NEW_COVERAGE}
+     */
+    public int updateBitsShared(ByteBuffer shared) {
+        int limit = shared.capacity() >>> 3;
+        int[] active = activeWords;
+        int n = active == null ? words.length : numActiveWords;
+        boolean changed = false;
+        boolean newCoverage = false;
+        for (int k = 0; k < n; k++) {
+            int w = active == null ? k : active[k];
+            long x = words[w];
+            if (x == 0 || w >= limit) {
+                continue;
+            }
+            long h = hob(x);
+            long current = (long) BUFFER_WORDS.getVolatile(shared, w << 3);
+            if ((current | h) == current) {
+                continue;
+            }
+            long before = (long) BUFFER_WORDS.getAndBitwiseOr(shared, w << 3, h);
+            if ((before | h) != before) {
+                changed = true;
+                newCoverage |= (nonZeroMask(x) & ~nonZeroMask(before)) != 0;
+            }
+        }
+        return (changed ? NEW_COUNTS : 0) | (newCoverage ? NEW_COVERAGE : 0);
     }
 
-    public int getNonZeroCount() {
+    /** Counts the non-zero counters of a map that {@link #updateBitsShared(ByteBuffer)} merges into. */
+    public static int getNonZeroCount(ByteBuffer shared) {
         int count = 0;
-        for (int coverPoint : coverPoints) {
-            if (coverPoint > 0) {
-                count++;
-            }
+        int n = shared.capacity() >>> 3;
+        for (int w = 0; w < n; w++) {
+            count += Long.bitCount(nonZeroMask((long) BUFFER_WORDS.getVolatile(shared, w << 3)));
         }
         return count;
     }
 
+    /**
+     * Adds the indices of counters that are non-zero here but zero in <code>baseline</code>
+     * to <code>newKeys</code>, without modifying either map.
+     *
+     * @return whether any index was found
+     */
+    public boolean collectNewCoverage(Coverage baseline, IntHashSet newKeys) {
+        boolean found = false;
+        long[] baseWords = baseline.words;
+        int[] active = activeWords;
+        int n = active == null ? words.length : numActiveWords;
+        for (int k = 0; k < n; k++) {
+            int w = active == null ? k : active[k];
+            long x = words[w];
+            if (x == 0) {
+                continue;
+            }
+            long fresh = nonZeroMask(x);
+            if (w < baseWords.length) {
+                fresh &= ~nonZeroMask(baseWords[w]);
+            }
+            if (fresh != 0) {
+                addIndices(newKeys, w, fresh);
+                found = true;
+            }
+        }
+        return found;
+    }
+
+    public IntList computeNewCoverage(Coverage baseline) {
+        IntArrayList newCoverage = new IntArrayList();
+        long[] baseWords = baseline.words;
+        int[] active = activeWords;
+        int n = active == null ? words.length : numActiveWords;
+        for (int k = 0; k < n; k++) {
+            int w = active == null ? k : active[k];
+            long fresh = nonZeroMask(words[w]);
+            if (fresh != 0 && w < baseWords.length) {
+                fresh &= ~nonZeroMask(baseWords[w]);
+            }
+            while (fresh != 0) {
+                newCoverage.add((w << 3) + (Long.numberOfTrailingZeros(fresh) >>> 3));
+                fresh &= fresh - 1;
+            }
+        }
+        return newCoverage;
+    }
+
+    /** Returns whether the same counters are non-zero in both maps, regardless of their values. */
+    public boolean coversSamePoints(Coverage other) {
+        if (nonZeroCount != other.nonZeroCount) {
+            return false;
+        }
+        long[] otherWords = other.words;
+        int n = Math.max(words.length, otherWords.length);
+        for (int w = 0; w < n; w++) {
+            long x = w < words.length ? nonZeroMask(words[w]) : 0;
+            long y = w < otherWords.length ? nonZeroMask(otherWords[w]) : 0;
+            if (x != y) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /** Calls <code>procedure</code> with the index of every non-zero counter. */
+    public void forEachNonZero(IntProcedure procedure) {
+        int[] active = activeWords;
+        int n = active == null ? words.length : numActiveWords;
+        for (int k = 0; k < n; k++) {
+            int w = active == null ? k : active[k];
+            long mask = nonZeroMask(words[w]);
+            while (mask != 0) {
+                procedure.value((w << 3) + (Long.numberOfTrailingZeros(mask) >>> 3));
+                mask &= mask - 1;
+            }
+        }
+    }
+
+    public int getNonZeroCount() {
+        return nonZeroCount;
+    }
+
     public String toString() {
         StringBuffer sb = new StringBuffer();
         sb.append("Coverage counts: \n");
-        for (int i = 0; i < coverPoints.length; i++) {
-            if (coverPoints[i] == 0) {
+        for (int i = 0; i < cov_size; i++) {
+            int count = getAtIndex(i) & 0xFF;
+            if (count == 0) {
                 continue;
             }
             sb.append(i);
             sb.append("->");
-            sb.append(coverPoints[i]);
+            sb.append(count);
             sb.append('\n');
         }
         return sb.toString();
     }
 
     public int hashCode() {
-        return Arrays.hashCode(coverPoints);
+        return Arrays.hashCode(words);
     }
 
-    private static byte[] HOB_CACHE = new byte[130];
+    /** Records that word <code>w</code>, which was zero, is non-zero now. */
+    private void addActiveWord(int w) {
+        if (activeWords == null) {
+            return;
+        }
+        if (numActiveWords == activeWords.length) {
+            activeWords = Arrays.copyOf(activeWords, Math.max(8, 2 * numActiveWords));
+        }
+        activeWords[numActiveWords++] = w;
+    }
 
-    /* Computes the highest order bit */
-    private static byte computeHob(int num)
-    {
-        byte ret = 1;
-        if (num == 0) {
-            return 0;
+    // new words are zero, so the list of active words stays valid
+    private void ensureCapacity(int covSize) {
+        int needed = wordsFor(covSize);
+        if (needed > words.length) {
+            words = Arrays.copyOf(words, needed);
         }
-        while ((num >>= 1) != 0)
-            ret <<= 1;
-        return ret;
     }
 
-    /** Populates the HOB cache. */
-    static {
-        for (int i = 0; i < HOB_CACHE.length; i++) {
-            HOB_CACHE[i] = computeHob(i);
+    private static int wordsFor(int covSize) {
+        return (covSize + 7) >>> 3;
+    }
+
+    private static void addIndices(IntHashSet keys, int word, long mask) {
+        while (mask != 0) {
+            keys.add((word << 3) + (Long.numberOfTrailingZeros(mask) >>> 3));
+            mask &= mask - 1;
         }
     }
 
-    /** Returns the highest order bit (perhaps using the cache) */
-    private static byte hob(int num) {
-        if (num < HOB_CACHE.length) {
-            return HOB_CACHE[num];
-        } else {
-            return computeHob(num);
+    private static int countNonZero(long[] words) {
+        int count = 0;
+        for (long x : words) {
+            count += Long.bitCount(nonZeroMask(x));
         }
+        return count;
+    }
+
+    /** Sets the top bit of every non-zero byte of <code>x</code> and clears everything else. */
+    private static long nonZeroMask(long x) {
+        return (((x & LOW_7_BITS) + LOW_7_BITS) | x) & HIGH_BITS;
+    }
+
+    /** Computes the highest order bit of every byte of <code>x</code> */
+    private static long hob(long x) {
+        x |= (x >>> 1) & 0x7F7F7F7F7F7F7F7FL;
+        x |= (x >>> 2) & 0x3F3F3F3F3F3F3F3FL;
+        x |= (x >>> 4) & 0x0F0F0F0F0F0F0F0FL;
+        return x & ~((x >>> 1) & LOW_7_BITS);
     }
 }
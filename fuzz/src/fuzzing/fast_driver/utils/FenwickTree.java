@@ -0,0 +1,93 @@
+package fuzzing.fast.util;
+
+import java.util.Arrays;
+
+/**
+ * A growable list of non-negative weights that supports weighted sampling.
+ *
+ * <p>Weights are kept in a Fenwick (binary indexed) tree, so appending an element,
+ * changing a weight and finding the element at a given prefix sum all take
+ * O(log n). Repeated updates accumulate rounding errors in the partial sums,
+ * users that update weights often should {@link #clear()} and refill the tree now and then.</p>
+ */
+public class FenwickTree {
+    /** 1-based partial sums: <code>tree[i]</code> is the sum of the weights in <code>(i - lowbit(i), i]</code>. */
+    private double[] tree;
+    private double[] weights;
+    private int size = 0;
+
+    public FenwickTree() {
+        this(16);
+    }
+
+    public FenwickTree(int capacity) {
+        tree = new double[capacity + 1];
+        weights = new double[capacity];
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /** Appends an element with weight <code>w</code> and returns its index. */
+    public int add(double w) {
+        if (size == weights.length) {
+            int capacity = Math.max(2 * size, 16);
+            weights = Arrays.copyOf(weights, capacity);
+            tree = Arrays.copyOf(tree, capacity + 1);
+        }
+        int idx = size++;
+        weights[idx] = w;
+        // the new node covers (size - lowbit(size), size], all of which but the new element are already summed up
+        tree[size] = w + prefixSum(size - 1) - prefixSum(size - (size & -size));
+        return idx;
+    }
+
+    public double get(int idx) {
+        return weights[idx];
+    }
+
+    public void set(int idx, double w) {
+        double delta = w - weights[idx];
+        weights[idx] = w;
+        for (int i = idx + 1; i <= size; i += i & -i) {
+            tree[i] += delta;
+        }
+    }
+
+    /** Returns the sum of the weights of the elements <code>[0, n)</code>. */
+    public double prefixSum(int n) {
+        double sum = 0;
+        for (int i = n; i > 0; i -= i & -i) {
+            sum += tree[i];
+        }
+        return sum;
+    }
+
+    public double total() {
+        return prefixSum(size);
+    }
+
+    /**
+     * Returns the first element at which the prefix sum exceeds <code>target</code>,
+     * i.e. an element drawn with probability proportional to its weight if
+     * <code>target</code> is uniform in <code>[0, total())</code>.
+     */
+    public int find(double target) {
+        int pos = 0;
+        for (int step = Integer.highestOneBit(Math.max(size, 1)); step > 0; step >>= 1) {
+            int next = pos + step;
+            if (next <= size && tree[next] <= target) {
+                pos = next;
+                target -= tree[next];
+            }
+        }
+        // rounding errors can push the target past the last element
+        return Math.min(pos, size - 1);
+    }
+
+    public void clear() {
+        size = 0;
+        Arrays.fill(tree, 0);
+    }
+}
@@ -0,0 +1,77 @@
+package fuzzing.fast.util;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * A coverage map kept in a memory-mapped file, so that several fuzzer processes
+ * on the same machine can merge into one campaign-wide map.
+ *
+ * <p>Counters are stored with the packed layout of {@link Coverage} and merged with
+ * atomic read-modify-write operations, so no lock is held across processes while
+ * fuzzing. The file is only locked while it is being grown.</p>
+ *
+ * <p>Processes on different machines do not see each other's updates through the map
+ * (mappings of files on network file systems are not coherent); they only share the
+ * inputs in their corpus directories.</p>
+ */
+public class SharedCoverage implements Closeable {
+
+    private final File file;
+    private final FileChannel channel;
+    private MappedByteBuffer map = null;
+
+    public SharedCoverage(File file) throws IOException {
+        this.file = file;
+        this.channel = FileChannel.open(file.toPath(),
+                StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+    }
+
+    /**
+     * Merges a run coverage into the shared map.
+     *
+     * @return a combination of {@link Coverage#NEW_COUNTS} and {@link Coverage#NEW_COVERAGE},
+     *         relative to what all processes have merged so far
+     */
+    public synchronized int updateBits(Coverage runCoverage) throws IOException {
+        ensureMapped(runCoverage.size());
+        return runCoverage.updateBitsShared(map);
+    }
+
+    /** Returns the number of counters that any process has hit. */
+    public synchronized int getNonZeroCount() {
+        return map == null ? 0 : Coverage.getNonZeroCount(map);
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        map = null;
+        channel.close();
+    }
+
+    private void ensureMapped(int covSize) throws IOException {
+        long bytes = ((covSize + 7L) >>> 3) << 3;
+        if (map != null && map.capacity() >= bytes) {
+            return;
+        }
+        // Only ever grow the file, other processes may have mapped it already
+        try (FileLock lock = channel.lock()) {
+            long size = channel.size();
+            if (size < bytes) {
+                channel.write(ByteBuffer.allocate(1), bytes - 1);
+            }
+            bytes = Math.max(bytes, size & ~7L);
+        }
+        map = channel.map(FileChannel.MapMode.READ_WRITE, 0, bytes);
+    }
+}
@@ -0,0 +1,188 @@
+package fuzzing.pass
+
+import firrtl._
+import firrtl.annotations.NoTargetAnnotation
+import firrtl.options.Dependency
+
+import scala.collection.mutable
+
+/** The constants that a signal which depends on top-level inputs is compared with.
+  * @param signal the compared expression, prefixed with the name of its module
+  * @param inputs the top-level inputs that the signal depends on
+  * @param slice  the input and its lowest bit if the signal is a slice of a single input
+  */
+case class ComparisonConstants(signal: String, width: Int, inputs: Seq[String], slice: Option[(String, Int)], values: Seq[BigInt])
+
+/** The constants that the design compares inputs with, found by [[ConstantDictionaryPass]]. */
+case class ConstantDictionaryAnnotation(entries: Seq[ComparisonConstants]) extends NoTargetAnnotation {
+
+  /** The values for every top-level input at which the result of a comparison changes.
+    * The values of a slice are shifted to the position of the slice, values of signals that are
+    * computed from inputs are used for every input that fits them.
+    */
+  def valuesByInput(inputWidths: Map[String, Int]): Map[String, Seq[BigInt]] = {
+    val values = mutable.LinkedHashMap[String, mutable.LinkedHashSet[BigInt]]()
+    def add(input: String, value: BigInt): Unit = inputWidths.get(input) match {
+      case Some(width) if value.bitLength <= width => values.getOrElseUpdate(input, mutable.LinkedHashSet[BigInt]()) += value
+      case _ =>
+    }
+    entries.foreach { e =>
+      e.slice match {
+        case Some((input, lo)) => e.values.foreach(v => add(input, v << lo))
+        case None              => for (input <- e.inputs; v <- e.values) add(input, v)
+      }
+    }
+    values.map { case (input, vs) => input -> vs.toSeq }.toMap
+  }
+}
+
+/** Collects the constants that signals depending on top-level inputs are compared with, like the register
+  * addresses of a bus device or the opcodes of a decoder. The branches behind these comparisons are rarely
+  * taken with random inputs; the fuzzer uses the constants as a dictionary (see `FuzzGuidance.setDictionary`).
+  *
+  * The pass does not change the circuit. Dependencies on inputs are followed through nodes, connections,
+  * registers and instance ports. The clock, `reset` and `metaReset` are not considered inputs.
+  */
+object ConstantDictionaryPass extends Transform with DependencyAPIMigration {
+  override def prerequisites = Seq(
+    Dependency[firrtl.transforms.RemoveWires],
+    Dependency(passes.ExpandWhens),
+    Dependency(passes.LowerTypes)
+  )
+  override def invalidates(a: Transform) = false
+
+  private val IgnoredInputs = Set("reset", "metaReset")
+
+  /** The top-level inputs that a signal depends on, and the input and lowest bit if it is a slice of one input. */
+  private case class Origin(inputs: Set[String], slice: Option[(String, Int)]) {
+    def union(o: Origin): Origin =
+      if (inputs.isEmpty) o
+      else if (o.inputs.isEmpty) this
+      else Origin(inputs ++ o.inputs, if (slice == o.slice) slice else None)
+    def shifted(n: Int): Origin = copy(slice = slice.map { case (i, lo) => (i, lo + n) })
+  }
+  private val NoOrigin = Origin(Set(), None)
+
+  private val Comparisons: Set[ir.PrimOp] = Set(PrimOps.Eq, PrimOps.Neq, PrimOps.Lt, PrimOps.Leq, PrimOps.Gt, PrimOps.Geq)
+
+  override def execute(state: CircuitState): CircuitState = {
+    val modules = state.circuit.modules.collect { case m: ir.Module => m.name -> m }.toMap
+    val main = modules(state.circuit.main)
+
+    // origins of the ports of every module, refined until the origins of instance ports do not change anymore
+    val portOrigins = mutable.HashMap[(String, String), Origin]()
+    main.ports.foreach { p =>
+      if (p.direction == ir.Input && p.tpe != ir.ClockType && !IgnoredInputs.contains(p.name)) {
+        portOrigins((main.name, p.name)) = Origin(Set(p.name), Some((p.name, 0)))
+      }
+    }
+    var changed = true
+    var iterations = 0
+    while (changed && iterations <= modules.size + 1) {
+      changed = false
+      iterations += 1
+      modules.values.foreach { m =>
+        val analysis = new ModuleAnalysis(m, portOrigins)
+        analysis.portUpdates.foreach { case (key, origin) =>
+          val merged = portOrigins.get(key).map(_.union(origin)).getOrElse(origin)
+          if (!portOrigins.get(key).contains(merged)) {
+            portOrigins(key) = merged
+            changed = true
+          }
+        }
+      }
+    }
+
+    val entries = modules.values.toSeq.sortBy(_.name).flatMap(m => new ModuleAnalysis(m, portOrigins).comparisons)
+    state.copy(annotations = state.annotations :+ ConstantDictionaryAnnotation(entries))
+  }
+
+  private class ModuleAnalysis(m: ir.Module, portOrigins: collection.Map[(String, String), Origin]) {
+    private val instances = mutable.HashMap[String, String]()
+    private val drivers = mutable.HashMap[String, ir.Expression]()
+    private def collect(s: ir.Statement): Unit = s match {
+      case ir.DefNode(_, name, value) => drivers(name) = value
+      case ir.Connect(_, loc, expr) => drivers(loc.serialize) = expr
+      case i: ir.DefInstance => instances(i.name) = i.module
+      case other => other.foreachStmt(collect)
+    }
+    collect(m.body)
+
+    private val origins = mutable.HashMap[String, Origin]()
+    private val visiting = mutable.HashSet[String]()
+
+    private def signalOrigin(name: String): Origin = origins.get(name) match {
+      case Some(o) => o
+      case None if visiting.contains(name) => NoOrigin // a register that depends on itself
+      case None =>
+        visiting += name
+        val own = portOrigins.getOrElse((m.name, name), NoOrigin)
+        val o = drivers.get(name).map(e => own.union(origin(e))).getOrElse(own)
+        visiting -= name
+        origins(name) = o
+        o
+    }
+
+    def origin(e: ir.Expression): Origin = e match {
+      case ir.Reference(name, _, _, _) => signalOrigin(name)
+      case ir.SubField(ir.Reference(inst, _, _, _), port, _, _) if instances.contains(inst) =>
+        // outputs of an instance, inputs of an instance are driven by this module
+        drivers.get(e.serialize).map(origin).getOrElse(portOrigins.getOrElse((instances(inst), port), NoOrigin))
+      case ir.DoPrim(PrimOps.Bits, Seq(arg), Seq(_, lo), _) => origin(arg).shifted(lo.toInt)
+      case ir.DoPrim(PrimOps.Shr, Seq(arg), Seq(n), _) => origin(arg).shifted(n.toInt)
+      case ir.DoPrim(PrimOps.Pad | PrimOps.AsUInt | PrimOps.AsSInt | PrimOps.Tail, Seq(arg), _, _) => origin(arg)
+      case _ =>
+        var o = NoOrigin
+        e.foreachExpr(c => o = o.union(origin(c)))
+        o.copy(slice = None)
+    }
+
+    /** Origins of the ports of the instances in this module and of the outputs of this module. */
+    def portUpdates: Seq[((String, String), Origin)] = {
+      val inst = drivers.keys.toSeq.flatMap { loc =>
+        loc.split('.') match {
+          case Array(i, port) if instances.contains(i) => Some((instances(i), port) -> signalOrigin(loc))
+          case _ => None
+        }
+      }
+      val outputs = m.ports.filter(_.direction == ir.Output).map(p => (m.name, p.name) -> signalOrigin(p.name))
+      (inst ++ outputs).filter(_._2.inputs.nonEmpty)
+    }
+
+    def comparisons: Seq[ComparisonConstants] = {
+      val found = mutable.LinkedHashMap[String, (ir.Expression, Origin, mutable.LinkedHashSet[BigInt])]()
+      def onExpr(e: ir.Expression): Unit = {
+        e.foreachExpr(onExpr)
+        e match {
+          case ir.DoPrim(op, Seq(a, b), _, _) if Comparisons.contains(op) =>
+            val pair = (a, b) match {
+              case (lit: ir.Literal, other) if !other.isInstanceOf[ir.Literal] => Some((other, lit.value))
+              case (other, lit: ir.Literal) if !other.isInstanceOf[ir.Literal] => Some((other, lit.value))
+              case _ => None
+            }
+            pair.foreach { case (signal, value) =>
+              val o = origin(signal)
+              if (o.inputs.nonEmpty && value >= 0) {
+                val values = found.getOrElseUpdate(signal.serialize, (signal, o, mutable.LinkedHashSet[BigInt]()))._3
+                values += value
+                // the result of an ordering changes between the constant and its neighbors
+                if (op != PrimOps.Eq && op != PrimOps.Neq) {
+                  values += value + 1
+                  if (value > 0) values += value - 1
+                }
+              }
+            }
+          case _ =>
+        }
+      }
+      def onStmt(s: ir.Statement): Unit = {
+        s.foreachStmt(onStmt)
+        s.foreachExpr(onExpr)
+      }
+      onStmt(m.body)
+      found.toSeq.map { case (key, (signal, o, values)) =>
+        ComparisonConstants(m.name + "." + key, bitWidth(signal.tpe).toInt, o.inputs.toSeq.sorted, o.slice, values.toSeq)
+      }
+    }
+  }
+}
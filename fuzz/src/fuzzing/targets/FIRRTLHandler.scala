@@ -5,7 +5,9 @@
 package fuzzing.targets
 
 import fuzzing.pass
+import fuzzing.fast.{BuildCacheDir, BuildCacheSize, CheckpointInterval, CheckpointMemory, ModelThreads}
 import chiseltest._
+import chiseltest.simulator.{SimulationCacheAnnotation, VerilatorThreads}
 import firrtl.options.{Dependency, TargetDirAnnotation}
 import firrtl.stage.{FirrtlCircuitAnnotation, FirrtlFileAnnotation, FirrtlStage, RunFirrtlTransformAnnotation}
 import firrtl.{AnnotationSeq, LowFirrtlEmitter}
@@ -16,24 +18,63 @@ object FIRRTLHandler {
     RunFirrtlTransformAnnotation(Dependency(pass.MetaResetPass)),
     RunFirrtlTransformAnnotation(Dependency(pass.RemovePrintfPass)),
     RunFirrtlTransformAnnotation(Dependency(pass.AssertSignalPass)),
+    RunFirrtlTransformAnnotation(Dependency(pass.ConstantDictionaryPass)),
     RunFirrtlTransformAnnotation(Dependency[LowFirrtlEmitter]),
     // debugging output
     // LogLevelAnnotation(LogLevel.Info),
   )
 
-  def firrtlToTarget(target: String, targetDir: String, annos: AnnotationSeq = Seq.empty): FuzzTarget = {
+  val DefaultCheckpointMemoryMB = 256
+  val DefaultCheckpointInterval = 500
+  val DefaultBuildCacheMB = 4096
+
+  def firrtlToTarget(target: String, targetDir: String, annos: AnnotationSeq = Seq.empty): FuzzTarget =
+    firrtlToTargets(target, targetDir, 1, annos).head
+
+  /** Creates targets that keep `cores` threads busy: one single-threaded model per core by default,
+    * or `cores / n` models with `n` threads each for [[ModelThreads]]`(n)`.
+    * `ModelThreads(0)` picks `n` with [[ModelThreadsCalibration]].
+    */
+  def firrtlToTargetsOnCores(target: String, targetDir: String, cores: Int, annos: AnnotationSeq = Seq.empty): Seq[FuzzTarget] =
+    annos.collectFirst { case ModelThreads(n) => n }.getOrElse(1) match {
+      case 0 => ModelThreadsCalibration.pick(target, targetDir, cores, annos)
+      case 1 => firrtlToTargets(target, targetDir, cores, annos)
+      case n => firrtlToTargets(target, targetDir, math.max(1, cores / n), annos :+ VerilatorThreads(n))
+    }
+
+  /** Compiles the circuit once and creates `n` targets with independent simulators, e.g. one per fuzzing thread.
+    * All simulators share `targetDir`.
+    */
+  def firrtlToTargets(target: String, targetDir: String, n: Int, annos: AnnotationSeq = Seq.empty): Seq[FuzzTarget] = {
     println("Loading and instrumenting FIRRTL...")
-    val state = loadFirrtl(targetDir, annos)
+    val state = loadFirrtl(targetDir, annos ++ buildCache(annos))
     val info = TopmoduleInfo(state.circuit)
-    //val dut = TreadleBackendAnnotation.getSimulator.createContext(state)
-    val dut = VerilatorBackendAnnotation.getSimulator.createContext(state) //JNASimulatorContext
+    //val duts = TreadleBackendAnnotation.getSimulator.createContexts(state, n)
+    val duts = VerilatorBackendAnnotation.getSimulator.createContexts(state, n) //JNASimulatorContext
 
-    val fuzzTarget: FuzzTarget = target.toLowerCase() match {
-      case "rfuzz" => new RfuzzTarget(dut, info)
-      case "tlul"  => new TLULTarget(dut, info)
-      case other   => throw new NotImplementedError(s"Unknown target $other")
+    val checkpointBytes = annos.collectFirst { case CheckpointMemory(mb) => mb }.getOrElse(DefaultCheckpointMemoryMB).toLong << 20
+    val checkpointInterval = annos.collectFirst { case CheckpointInterval(c) => c }.getOrElse(DefaultCheckpointInterval)
+
+    // reads and writes are mostly sent to the registers of TileLink devices
+    lazy val registerAddresses = TLULAddressMap(state.circuit)
+    val inputDictionary = state.annotations.collectFirst { case a: pass.ConstantDictionaryAnnotation => a }
+      .map(_.valuesByInput(info.inputs.toMap)).getOrElse(Map())
+
+    duts.map { dut =>
+      val fuzzTarget: FuzzTarget = target.toLowerCase() match {
+        case "rfuzz" => new RfuzzTarget(dut, info, checkpointBytes, checkpointInterval, inputDictionary)
+        case "tlul"  => new TLULTarget(dut, info, checkpointBytes, checkpointInterval, registerAddresses, inputDictionary)
+        case other   => throw new NotImplementedError(s"Unknown target $other")
+      }
+      fuzzTarget
     }
-    fuzzTarget
+  }
+
+  // compiled simulations are shared by all runs on the same machine, unless the cache size is 0
+  private def buildCache(annos: AnnotationSeq): AnnotationSeq = {
+    val mb = annos.collectFirst { case BuildCacheSize(mb) => mb }.getOrElse(DefaultBuildCacheMB)
+    val dir = annos.collectFirst { case BuildCacheDir(d) => d }.getOrElse("")
+    if (mb > 0) Seq(SimulationCacheAnnotation(dir, mb)) else Seq()
   }
 
   private lazy val firrtlStage = new FirrtlStage
@@ -4,8 +4,50 @@
 
 package fuzzing.targets
 
+import fuzzing.fast.util.Coverage
+
 /** A common interface for a fuzzing target. */
 trait FuzzTarget {
-  def run(input: java.io.InputStream, feedbackCap: Int): (Seq[Byte], Boolean, Long)
+  /** Executes one input.
+    * @return the coverage counters (saturated at `feedbackCap`), whether the run was valid and the number of cycles
+    *         executed so far, which grows by the cycles an input takes from the reset, also if the run resumed from
+    *         a checkpoint instead of simulating all of them
+    */
+  def run(input: java.io.InputStream, feedbackCap: Int): (Coverage, Boolean, Long)
+
+  /** Executes several inputs one after the other, with the same results as calling `run` on each of them.
+    * Targets that support it hand the whole batch to the simulator at once.
+    */
+  def runBatch(inputs: Seq[java.io.InputStream], feedbackCap: Int): Seq[(Coverage, Boolean, Long)] =
+    inputs.map(run(_, feedbackCap))
+
+  /** Offsets in `input` at which the frames that `run` reads (e.g. one cycle or one bus instruction) start,
+    * followed by the end of the last complete frame. Removing the bytes between two offsets removes whole frames.
+    */
+  def frameBoundaries(input: Array[Byte]): Array[Int] = (0 to input.length).toArray
+
+  /** Widths in bits of the ports that every frame holds a value for, in the format of
+    * [[chiseltest.simulator.FrameLayout]]; empty if the frames of this target do not all have the same layout.
+    */
+  def frameFieldWidths: Seq[Int] = Seq()
+
+  /** The register addresses of the design if `run` reads the input as TileLink instructions (see [[TLULTarget]]),
+    * None if it does not.
+    */
+  def instructionAddresses: Option[Seq[Long]] = None
+
+  /** Values that the design compares the inputs with (see [[fuzzing.pass.ConstantDictionaryPass]]), encoded like `run`
+    * reads them: the index of the frame field (see [[frameFieldWidths]]) that a value belongs to and its bytes,
+    * or -1 and bytes that can appear anywhere in an input.
+    */
+  def dictionary: Seq[(Int, Array[Byte])] = Seq()
   def finish(verbose: Boolean = false): Unit // clean up
 }
+
+object FuzzTarget {
+  /** The lowest `n` bytes of `value`, most significant byte first. */
+  def bigEndianBytes(value: BigInt, n: Int): Array[Byte] = Array.tabulate(n)(i => ((value >> (8 * (n - 1 - i))) & 0xff).toByte)
+
+  /** The lowest `n` bytes of `value`, least significant byte first. */
+  def littleEndianBytes(value: BigInt, n: Int): Array[Byte] = bigEndianBytes(value, n).reverse
+}
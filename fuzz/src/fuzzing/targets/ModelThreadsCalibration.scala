@@ -0,0 +1,81 @@
+package fuzzing.targets
+
+import chiseltest.simulator.VerilatorThreads
+import firrtl.AnnotationSeq
+
+import java.io.ByteArrayInputStream
+import java.util.concurrent.{Callable, Executors, TimeUnit}
+import scala.util.Random
+
+/** Splits the cores of a fuzzing run between the threads of every model and the number of models.
+  *
+  * Independent single-threaded models scale best as long as they fit into the caches. For large designs,
+  * many copies compete for the caches and memory bandwidth, and fewer models with more threads each
+  * simulate more cycles in total. The split is found by running all models of a candidate in parallel on
+  * random inputs and comparing the simulated cycles per second of all models together.
+  * Starting with single-threaded models, the threads per model are doubled as long as that is faster.
+  */
+object ModelThreadsCalibration {
+  val CalibrationMillis = 2000
+  // a model that simulates more than this many cycles per second on its own (in MHz) is too small
+  // to gain from multiple threads, the synchronization between them would cost more than they save
+  val SmallDesignMHz = 0.2
+  private val InputBytes = 4096
+
+  def pick(target: String, targetDir: String, cores: Int, annos: AnnotationSeq): Seq[FuzzTarget] = {
+    var best = FIRRTLHandler.firrtlToTargets(target, targetDir, cores, annos)
+    var bestThreads = 1
+    var bestMHz = measure(best)
+    println(f"Calibration: ${best.size} models with 1 thread simulate $bestMHz%.3f MHz")
+    var threads = 2
+    var faster = bestMHz / best.size < SmallDesignMHz
+    while (faster && threads <= cores) {
+      val candidate = FIRRTLHandler.firrtlToTargets(target, targetDir + "_t" + threads, cores / threads,
+        annos :+ VerilatorThreads(threads))
+      val mhz = measure(candidate)
+      println(f"Calibration: ${candidate.size} models with $threads threads simulate $mhz%.3f MHz")
+      faster = mhz > bestMHz
+      if (faster) {
+        best.foreach(_.finish())
+        best = candidate
+        bestThreads = threads
+        bestMHz = mhz
+        threads *= 2
+      } else {
+        candidate.foreach(_.finish())
+      }
+    }
+    println(s"Fuzzing with ${best.size} models with $bestThreads thread(s) each")
+    best
+  }
+
+  /** Runs all targets in parallel on random inputs.
+    * @return the cycles simulated by all targets together per second, in MHz
+    */
+  private def measure(targets: Seq[FuzzTarget]): Double = {
+    val executor = Executors.newFixedThreadPool(targets.size)
+    val start = System.nanoTime()
+    val deadline = start + CalibrationMillis * 1000L * 1000L
+    val futures = targets.zipWithIndex.map { case (target, idx) =>
+      executor.submit(new Callable[Long] {
+        def call(): Long = {
+          val random = new Random(idx)
+          val input = new Array[Byte](InputBytes)
+          // run returns the cycles since the target was created
+          val (_, _, startCycles) = target.run(new ByteArrayInputStream(input), 1)
+          var cycles = startCycles
+          while (System.nanoTime() < deadline) {
+            random.nextBytes(input)
+            cycles = target.run(new ByteArrayInputStream(input), 1)._3
+          }
+          cycles - startCycles
+        }
+      })
+    }
+    val cycles = futures.map(_.get()).sum
+    val end = System.nanoTime()
+    executor.shutdown()
+    executor.awaitTermination(1, TimeUnit.MINUTES)
+    cycles.toDouble * 1000.0 / (end - start).toDouble
+  }
+}
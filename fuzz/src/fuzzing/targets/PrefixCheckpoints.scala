@@ -0,0 +1,158 @@
+package fuzzing.targets
+
+import chiseltest.simulator.SimulatorContext
+import fuzzing.fast.FuzzGuidance
+
+import java.nio.ByteBuffer
+import scala.collection.mutable
+
+/** Simulator states saved along the execution of saved inputs.
+  *
+  * Most mutations leave a prefix of the parent input unchanged, so a child can restore the deepest
+  * checkpoint of its parent that lies within that prefix and only simulate the rest of the input.
+  * Checkpoints are taken every `intervalCycles` cycles while a child of a favored parent is still
+  * replaying the prefix it shares with the parent, i.e. the checkpoints of a parent are filled in by its children.
+  *
+  * Every checkpoint also keeps the coverage counters of its prefix (saturated at 255), which are loaded back
+  * into the simulator on restore, so that a resumed run reports the same coverage as a full run for any
+  * feedback cap up to 255.
+  *
+  * Checkpoints are evicted in least recently used order once they take more than `capacityBytes`.
+  * A state can only be loaded into the simulator that saved it, so every target has its own instance.
+  */
+class PrefixCheckpoints(dut: SimulatorContext, capacityBytes: Long, intervalCycles: Int) {
+  import PrefixCheckpoints.Checkpoint
+
+  private lazy val stateSize = dut.getStateSize()
+  lazy val enabled: Boolean = capacityBytes > 0 && intervalCycles > 0 && stateSize > 0
+
+  // all checkpoints in access order, and the checkpoints of every parent ordered by input offset
+  private val lru = new java.util.LinkedHashMap[(Int, Int), Checkpoint](16, 0.75f, true)
+  private val byParent = mutable.HashMap[Int, java.util.TreeMap[Integer, Checkpoint]]()
+  private var usedBytes: Long = 0
+  // the state buffer of the last evicted checkpoint, reused for the next one
+  private var freeState: ByteBuffer = null
+  private lazy val coverageBuffer = ByteBuffer.allocateDirect(4 * dut.getFastCoverageSize())
+
+  // the run in progress, null if it does not replay the prefix of a favored parent (anymore)
+  private var stream: FuzzGuidance#LinearInputStream = null
+  private var lastCheckpointCycles: Long = 0
+
+  var hits:          Long = 0
+  var misses:        Long = 0
+  var skippedCycles: Long = 0
+  var evictions:     Long = 0
+
+  /** Bytes taken by the cached checkpoints, at most `capacityBytes` between runs. */
+  def cachedBytes: Long = usedBytes
+  def cachedCount: Int = lru.size()
+
+  /** Starts a run: restores the deepest checkpoint of the parent that the input still shares.
+    * The state and the coverage counters of the simulator are replaced and the input stream is moved past the prefix.
+    * @return the restored checkpoint, or null if the run needs to start from reset
+    */
+  def resume(input: java.io.InputStream): Checkpoint = {
+    stream = null
+    lastCheckpointCycles = 0
+    input match {
+      case s: FuzzGuidance#LinearInputStream if enabled && s.getParentId >= 0 =>
+        stream = if (s.isParentFavored) s else null
+        val cp = floor(s.getParentId, s.getSharedPrefixLength)
+        if (cp != null && dut.loadState(cp.state)) {
+          dut.setSparseFastCoverage(cp.coverage, cp.coverageEntries)
+          s.skipPrefix(cp.offset)
+          lastCheckpointCycles = cp.cycles
+          hits += 1
+          skippedCycles += cp.cycles
+          cp
+        } else {
+          misses += 1
+          null
+        }
+      case _ => null
+    }
+  }
+
+  /** Called between two frames of the run, `cycles` cycles after the reset.
+    * Saves a checkpoint if the run is still inside the prefix shared with a favored parent.
+    */
+  def atFrameBoundary(cycles: Long, valid: Boolean): Unit = {
+    if (stream != null && cycles - lastCheckpointCycles >= intervalCycles) {
+      val offset = stream.getPosition
+      if (offset > stream.getSharedPrefixLength) {
+        stream = null
+      } else {
+        lastCheckpointCycles = cycles
+        if (!lru.containsKey((stream.getParentId, offset))) {
+          save(stream.getParentId, offset, cycles, valid)
+        }
+      }
+    }
+  }
+
+  private def floor(parentId: Int, maxOffset: Int): Checkpoint = byParent.get(parentId) match {
+    case Some(checkpoints) =>
+      val entry = checkpoints.floorEntry(maxOffset)
+      if (entry == null) { null }
+      else {
+        lru.get((parentId, entry.getValue.offset)) // mark as recently used
+        entry.getValue
+      }
+    case None => null
+  }
+
+  private def save(parentId: Int, offset: Int, cycles: Long, valid: Boolean): Unit = {
+    val state = if (freeState != null) freeState else ByteBuffer.allocateDirect(stateSize)
+    freeState = null
+    if (dut.saveState(state)) {
+      val n = dut.getSparseFastCoverage(coverageBuffer, 255)
+      val coverage = ByteBuffer.allocateDirect(math.max(4 * n, 4))
+      val entries = coverageBuffer.duplicate()
+      entries.limit(4 * n)
+      coverage.put(entries)
+      val cp = new Checkpoint(parentId, offset, cycles, valid, state, coverage, n)
+      lru.put((parentId, offset), cp)
+      byParent.getOrElseUpdate(parentId, new java.util.TreeMap[Integer, Checkpoint]()).put(offset, cp)
+      usedBytes += cp.bytes
+      evict()
+    } else {
+      freeState = state
+    }
+  }
+
+  private def evict(): Unit = {
+    val it = lru.values().iterator()
+    while (usedBytes > capacityBytes && it.hasNext) {
+      val cp = it.next()
+      it.remove()
+      byParent.get(cp.parentId).foreach { checkpoints =>
+        checkpoints.remove(cp.offset)
+        if (checkpoints.isEmpty) { byParent.remove(cp.parentId) }
+      }
+      usedBytes -= cp.bytes
+      freeState = cp.state
+      evictions += 1
+    }
+  }
+
+  def printStats(): Unit = {
+    if (enabled) {
+      println(s"Checkpoints: $hits restored, $misses misses, $skippedCycles cycles skipped, ${lru.size()} cached (${usedBytes >> 20}MB), $evictions evicted")
+    }
+  }
+}
+
+object PrefixCheckpoints {
+
+  /** The state of the simulator after the first `offset` bytes of the parent input were executed. */
+  final class Checkpoint(
+    val parentId:        Int,
+    val offset:          Int,
+    val cycles:          Long,
+    val valid:           Boolean,
+    val state:           ByteBuffer,
+    val coverage:        ByteBuffer,
+    val coverageEntries: Int) {
+    def bytes: Long = state.capacity().toLong + coverage.capacity()
+  }
+}
@@ -5,8 +5,12 @@
 package fuzzing.targets
 
 import chiseltest.simulator._
+import fuzzing.fast.util.Coverage
 
-class RfuzzTarget(dut: SimulatorContext, info: TopmoduleInfo) extends FuzzTarget {
+/** @param inputDictionary the values that the design compares every input with, see [[fuzzing.pass.ConstantDictionaryAnnotation]] */
+class RfuzzTarget(dut: SimulatorContext, info: TopmoduleInfo, checkpointBytes: Long = 0, checkpointInterval: Int = 0,
+                  inputDictionary: Map[String, Seq[BigInt]] = Map())
+    extends FuzzTarget {
   val MetaReset = "metaReset"
   require(info.clocks.size == 1, s"Only designs with a single clock are supported!\n${info.clocks}")
   require(info.inputs.exists(_._1 == MetaReset), s"No meta reset in ${info.inputs}")
@@ -14,10 +18,18 @@ class RfuzzTarget(dut: SimulatorContext, info: TopmoduleInfo) extends FuzzTarget
 
   private var isValid = true
 
+  // signals are resolved once, pokes and peeks on the hot path go through these handles
+  private val assertFailedSignal = dut.getHandle("assert_failed")
+  private val metaResetSignal = dut.getHandle(MetaReset)
+  private val resetSignal = dut.getHandle("reset")
+  private val inputSignals = info.inputs.map { case (n, _) => dut.getHandle(n) }.toArray
+
+  // the simulator checks assert_failed natively if it can, otherwise it is peeked before every cycle
+  private val latchesAssert = dut.setAssertLatch("assert_failed")
+
   private val clock = info.clocks.head
   private def step(): Unit = {
-    val assert_failed = dut.peek("assert_failed") == 1
-    if (assert_failed) {
+    if (!latchesAssert && dut.peekLong(assertFailedSignal) == 1) {
       isValid = false
     }
 
@@ -33,23 +45,41 @@ class RfuzzTarget(dut: SimulatorContext, info: TopmoduleInfo) extends FuzzTarget
   private var mutateTime: Long = 0  // time used for mutation operation
 
   private def setInputsToZero(): Unit = {
-    info.inputs.foreach { case (n, _) => dut.poke(n, 0) }
+    inputSignals.foreach(dut.pokeLong(_, 0))
   }
 
   private def metaReset(): Unit = {
-    dut.poke(MetaReset, 1)
+    dut.pokeLong(metaResetSignal, 1)
     step()
-    dut.poke(MetaReset, 0)
+    dut.pokeLong(metaResetSignal, 0)
     resetCycles += 1
   }
 
   private def reset(): Unit = {
-    dut.poke("reset", 1)
+    dut.pokeLong(resetSignal, 1)
     step()
-    dut.poke("reset", 0)
+    dut.pokeLong(resetSignal, 0)
     resetCycles += 1
   }
 
+  // runs of mutated inputs resume from a checkpoint of their parent's execution
+  private[fuzzing] val checkpoints = new PrefixCheckpoints(dut, checkpointBytes, checkpointInterval)
+
+  // the post-reset state is saved once and restored with a memcpy at the start of every later run,
+  // simulators without snapshot support re-simulate the reset every time
+  private var hasResetSnapshot = false
+
+  private def resetDut(): Unit = {
+    if (!(hasResetSnapshot && dut.restore())) {
+      setInputsToZero()
+      metaReset()
+      reset()
+      hasResetSnapshot = dut.snapshot()
+    }
+    // assertions that fire during the reset do not count
+    if (latchesAssert) { dut.takeAssertLatch() }
+  }
+
   private val inputBits = info.inputs.map(_._2).sum
   private val inputSize = scala.math.ceil(inputBits.toDouble / 8.0).toInt
 
@@ -71,84 +101,159 @@ class RfuzzTarget(dut: SimulatorContext, info: TopmoduleInfo) extends FuzzTarget
     c.map(_._2).map(v => scala.math.min(v, feedbackCap).toByte)
   }
 
-  private def getFastCoverage(feedbackCap: Int): Seq[Byte] = {
-    val c = dut.getFastCoverage()
-    // println("Fast:")
-    // c.foreach(println(_)) //debug
-    // c.map(_.toByte)
-    c.map(v => scala.math.min(v, feedbackCap).toByte)
+  // the simulator reports the counters hit by a run, saturated at `feedbackCap`, as (index, count)
+  // entries in this off-heap buffer; one entry per cover point is enough for any run
+  private lazy val coverageSize = dut.getFastCoverageSize()
+  private lazy val coverageBuffer = java.nio.ByteBuffer.allocateDirect(4 * coverageSize)
+
+  private def getFastCoverage(feedbackCap: Int): Coverage = {
+    val n = dut.getSparseFastCoverage(coverageBuffer, feedbackCap)
+    Coverage.fromSparse(coverageBuffer, n, coverageSize)
   }
 
 
-  private def applyRfuzzInputs(bytes: Array[Byte]): Unit = {
-    //Ordered Rfuzz inputs
+  //Ordered Rfuzz inputs as (handle, bit size), only resolved for designs that are fuzzed with the RFUZZ input format
+  private lazy val sortedRfuzzInputs: Array[(SignalHandle, Int)] = {
     val sortedInputs = Seq[String]("auto_in_a_bits_data", "auto_in_c_bits_data", "auto_in_a_bits_address",
       "auto_in_c_bits_address", "auto_in_a_bits_source", "auto_in_c_bits_source", "auto_in_a_bits_mask", "auto_in_a_bits_opcode",
       "auto_in_a_bits_param", "auto_in_c_bits_opcode", "auto_in_c_bits_param", "auto_in_a_bits_size", "auto_in_c_bits_size",
       "auto_in_a_valid", "auto_in_b_ready", "auto_in_c_valid", "auto_in_c_bits_error", "auto_in_d_ready", "auto_in_e_valid",
       "auto_in_e_bits_sink", "io_port_scl_in", "io_port_sda_in")
+    val channelNameToSize = fuzzInputs.toMap
+    sortedInputs.map { input => (dut.getHandle(input), channelNameToSize(input)) }.toArray
+  }
 
-    //Create sequence of (channel, bit size) tuples ordered by original RFUZZ ordering
-    val channelNameToSize = fuzzInputs.map { input => (input._1, input._2) }.toMap
-    val sortedTuples = sortedInputs.map { input => (input, channelNameToSize(input)) }
+  private def applyRfuzzInputs(bytes: Array[Byte]): Unit = {
+    //Fields are packed starting at the most significant bit of bytes(0)
+    var offset = 0
+    sortedRfuzzInputs.foreach { case (signal, size) =>
+      pokeWords(signal, size, word => {
+        val bits = math.min(64, size - 64 * word)
+        bitsMsbFirst(bytes, offset + size - 64 * word - bits, bits)
+      })
+      offset += size
+    }
+  }
+
+  // `n <= 64` bits of `bytes`, starting `offset` bits after the most significant bit of bytes(0)
+  private def bitsMsbFirst(bytes: Array[Byte], offset: Int, n: Int): Long = {
+    var value = 0L
+    var i = offset
+    while (i < offset + n) {
+      value = (value << 1) | ((bytes(i >> 3) >> (7 - (i & 7))) & 1)
+      i += 1
+    }
+    value
+  }
+
+  // `n <= 64` bits of `bytes`, starting at bit `offset` of the little-endian number in `bytes`; missing bytes are 0
+  private def bitsLsbFirst(bytes: Array[Byte], offset: Int, n: Int): Long = {
+    var value = 0L
+    var i = n - 1
+    while (i >= 0) {
+      val bit = offset + i
+      val byte = if ((bit >> 3) < bytes.length) bytes(bit >> 3) else 0
+      value = (value << 1) | ((byte >> (bit & 7)) & 1)
+      i -= 1
+    }
+    value
+  }
 
-    //Iterate over bits and apply bits to dut
-    var input: BigInt = bytes.reverse.zipWithIndex.map { case (b, i) => BigInt(b) << (i * 8) }.reduce(_ | _)
-    sortedTuples.foreach { case (name, size) =>
-      val shiftLength = originalRFUZZinputSize * 8 - size
-      val mask = ((BigInt(1) << size) - 1) << shiftLength
-      val bits = (input & mask) >> shiftLength
-      dut.poke(name, bits)
-      input = input << size
+  // pokes a `bits` wide input one 64-bit word at a time, least significant word first
+  private def pokeWords(signal: SignalHandle, bits: Int, word: Int => Long): Unit = {
+    val words = (bits + 63) / 64
+    val topBits = bits - 64 * (words - 1)
+    val topMask = if (topBits == 64) -1L else (1L << topBits) - 1
+    if (words == 1) {
+      dut.pokeLong(signal, word(0) & topMask)
+    } else {
+      (0 until words).foreach { w => dut.pokeWide(signal, w, if (w == words - 1) word(w) & topMask else word(w)) }
     }
   }
 
   private val fuzzInputs = info.inputs.filterNot { case (n, _) => n == MetaReset || n == "reset" }
   private val fastInputBytes = fuzzInputs.map { case (_, bits) => (bits + 7) / 8 }.sum
 
-  private def popFast(input: java.io.InputStream): Array[Byte] = {
-    val r = input.readNBytes(fastInputBytes)
-    if (r.size == fastInputBytes) { r } else { Array.emptyByteArray }
+  // the simulator decodes the cycle frames (in the format of `applyFastInputs`) and steps through a batch of them
+  // in one call; batches are copied out of the input in bulk
+  require(fastInputBytes > 0, s"No inputs to fuzz in ${info.inputs}")
+  private val frameLayout = FrameLayout(fuzzInputs, Some("assert_failed"))
+  private val FramesPerBatch = 64
+  private val frameArray = new Array[Byte](fastInputBytes * FramesPerBatch)
+  private val frameBuffer = java.nio.ByteBuffer.allocateDirect(frameArray.length)
+
+  /** Runs the next batch of complete frames of `input`.
+    * @return whether a full batch was run, i.e. whether the input may have more frames
+    */
+  private def runFrameBatch(input: java.io.InputStream): Boolean = {
+    val read = input.readNBytes(frameArray, 0, frameArray.length)
+    val frames = read / fastInputBytes
+    if (frames > 0) {
+      frameBuffer.clear()
+      frameBuffer.put(frameArray, 0, frames * fastInputBytes)
+      val r = dut.runFrames(frameLayout, frameBuffer, frames)
+      if (r.assertFailed) {
+        isValid = false
+      }
+      cycles += r.cycles
+    }
+    read == frameArray.length
   }
 
+  private val fuzzInputSignals = fuzzInputs.map { case (n, bits) => (dut.getHandle(n), bits) }.toArray
+
   private def applyInputs(bytes: Array[Byte]): Unit = {
-    var input: BigInt = bytes.zipWithIndex.map { case (b, i) => (0xff & BigInt(b)) << (i * 8) }.reduce(_ | _)
-    fuzzInputs.foreach { case (name, bits) =>
-      val mask = (BigInt(1) << bits) - 1
-      val value = input & mask
-      input = input >> bits
-      //println("'" + name + "'", bits.toString, value.toString)
-      dut.poke(name, value)
+    var offset = 0
+    fuzzInputSignals.foreach { case (signal, bits) =>
+      pokeWords(signal, bits, word => bitsLsbFirst(bytes, offset + 64 * word, math.min(64, bits - 64 * word)))
+      offset += bits
     }
-    //println("---")
   }
 
   private def applyFastInputs(bytes: Array[Byte]): Unit = {
     var byteIndex = 0
-    fuzzInputs.foreach { case (name, bits) =>
+    fuzzInputSignals.foreach { case (signal, bits) =>
       val numBytes = (bits + 7) / 8 // 计算需要的字节数，向上取整
-      var value: BigInt = 0
-      for (i <- 0 until numBytes) {
-        if (byteIndex < bytes.length) {
-          value = (value << 8) | (0xff & BigInt(bytes(byteIndex)))
-          byteIndex += 1
+      // 64-bit words of the big-endian value, least significant word first; missing bytes are dropped
+      val end = math.min(byteIndex + numBytes, bytes.length)
+      val start = byteIndex
+      pokeWords(signal, bits, word => {
+        var value = 0L
+        var i = math.max(start, end - 8 * (word + 1))
+        while (i < end - 8 * word) {
+          value = (value << 8) | (bytes(i) & 0xff)
+          i += 1
         }
-      }
-      // 如果bits不是8的倍数，我们需要移除多余的位
-      value = value & ((BigInt(1) << bits) - 1)
-      dut.poke(name, value)
+        value
+      })
+      byteIndex = end
     }
   }
 
 
-  override def run(input: java.io.InputStream, feedbackCap: Int): (Seq[Byte], Boolean, Long) = {
+  // every cycle takes `fastInputBytes`
+  override def frameBoundaries(input: Array[Byte]): Array[Int] =
+    (0 to input.length / fastInputBytes).map(_ * fastInputBytes).toArray
+
+  override def frameFieldWidths: Seq[Int] = frameLayout.inputs.map(_._2)
+
+  override def dictionary: Seq[(Int, Array[Byte])] = frameLayout.inputs.zipWithIndex.flatMap { case ((name, width), field) =>
+    inputDictionary.getOrElse(name, Seq()).map(v => field -> FuzzTarget.bigEndianBytes(v, (width + 7) / 8))
+  }
+
+  override def run(input: java.io.InputStream, feedbackCap: Int): (Coverage, Boolean, Long) = {
     val start = System.nanoTime()
-    setInputsToZero()
-    metaReset()
-    reset()
-    isValid = true
-    // we only consider coverage _after_ the reset is done!
-    dut.resetCoverage()
+    val resumed = checkpoints.resume(input)
+    if (resumed == null) {
+      resetDut()
+      isValid = true
+      // we only consider coverage _after_ the reset is done!
+      dut.resetCoverage()
+    } else {
+      isValid = resumed.valid
+    }
+    // `cycles - runStartCycles` counts the cycles since the reset, including the ones restored from a checkpoint
+    val runStartCycles = cycles - (if (resumed == null) 0 else resumed.cycles)
 
     val reset_end = System.nanoTime()
 
@@ -159,11 +264,9 @@ class RfuzzTarget(dut: SimulatorContext, info: TopmoduleInfo) extends FuzzTarget
     //   inputBytes = pop(input)
     // }
 
-    var inputBytes = popFast(input)
-    while (inputBytes.nonEmpty) {
-      applyFastInputs(inputBytes)
-      step()
-      inputBytes = popFast(input)
+    // checkpoints can only be taken after full batches, a partial batch means that the input was consumed
+    while (runFrameBatch(input)) {
+      checkpoints.atFrameBoundary(cycles - runStartCycles, isValid)
     }
 
     val startCoverage = System.nanoTime()
@@ -171,7 +274,7 @@ class RfuzzTarget(dut: SimulatorContext, info: TopmoduleInfo) extends FuzzTarget
     var c = getFastCoverage(feedbackCap)
 
     if (!isValid && !acceptInvalid) {
-      c = Seq.fill[Byte](c.length)(0)
+      c = Coverage.empty(c.size())
     }
 
     val end = System.nanoTime()
@@ -182,12 +285,66 @@ class RfuzzTarget(dut: SimulatorContext, info: TopmoduleInfo) extends FuzzTarget
       mutateTime += start - lastRunEndTime
     }
     lastRunEndTime = end
-    (c, isValid, cycles)
+    (c, isValid, runCycles)
+  }
+
+  // inputs of a batch are copied back to back into `batchBuffer`, the simulator writes their results into `batchResults`;
+  // both grow with the largest batch
+  private var batchBuffer = java.nio.ByteBuffer.allocateDirect(frameArray.length)
+  private var batchResults: BatchResults = null
+
+  /** Runs all inputs in a single call into the simulator, every one of them starting from the reset snapshot.
+    * Batches do not use or fill in prefix checkpoints, and fall back to `run` if the simulator has no snapshots.
+    */
+  override def runBatch(inputs: Seq[java.io.InputStream], feedbackCap: Int): Seq[(Coverage, Boolean, Long)] = {
+    val start = System.nanoTime()
+    if (!hasResetSnapshot) { resetDut() }
+    if (!hasResetSnapshot || inputs.isEmpty) { return super.runBatch(inputs, feedbackCap) }
+
+    // only complete frames are run, like in `run`
+    val bytes = inputs.map(_.readAllBytes())
+    val frames = bytes.map(_.length / fastInputBytes).toArray
+    val total = frames.map(_.toLong).sum * fastInputBytes
+    require(total <= Int.MaxValue, s"batch of ${inputs.size} inputs is too large")
+    if (batchBuffer.capacity() < total) { batchBuffer = java.nio.ByteBuffer.allocateDirect(total.toInt) }
+    batchBuffer.clear()
+    bytes.zip(frames).foreach { case (b, f) => batchBuffer.put(b, 0, f * fastInputBytes) }
+    if (batchResults == null || batchResults.capacity < inputs.size) {
+      batchResults = new BatchResults(inputs.size, coverageSize)
+    }
+    val reset_end = System.nanoTime()
+
+    if (!dut.runBatch(frameLayout, batchBuffer, frames, inputs.size, feedbackCap, batchResults)) {
+      throw new RuntimeException("The reset snapshot of the simulator was lost.")
+    }
+
+    val startCoverage = System.nanoTime()
+    val results = inputs.indices.map { i =>
+      val valid = !batchResults.assertFailed(i)
+      val c =
+        if (!valid && !acceptInvalid) { Coverage.empty(coverageSize) }
+        else { Coverage.fromSparse(batchResults.coverageRow(i), batchResults.coverageEntries(i), coverageSize) }
+      cycles += batchResults.cycles(i)
+      (c, valid, runCycles)
+    }
+
+    val end = System.nanoTime()
+    totalTime += (end - start)
+    coverageTime += (end - startCoverage)
+    resetTime += (reset_end - start)
+    if (lastRunEndTime != 0) {
+      mutateTime += start - lastRunEndTime
+    }
+    lastRunEndTime = end
+    results
   }
 
   private val acceptInvalid = false
 
   private def ms(i: Long): Long = i / 1000 / 1000
+  // what running all inputs from the reset would have taken: the simulated cycles plus the ones restored from checkpoints
+  private def runCycles: Long = cycles + checkpoints.skippedCycles
+
   override def finish(verbose: Boolean): Unit = {
     dut.finish()
     if (verbose) {
@@ -198,6 +355,7 @@ class RfuzzTarget(dut: SimulatorContext, info: TopmoduleInfo) extends FuzzTarget
       println(s"Total time for mutate: ${ms(mutateTime)}ms (${mutateTime.toDouble / (totalTime+mutateTime).toDouble * 100.0}%)")
       val MHz = cycles.toDouble * 1000.0 / totalTime.toDouble
       println(s"$MHz MHz")
+      checkpoints.printStats()
     }
   }
 }
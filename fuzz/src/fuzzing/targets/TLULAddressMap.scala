@@ -0,0 +1,86 @@
+package fuzzing.targets
+
+import firrtl._
+
+import scala.collection.mutable
+
+/** Finds the register addresses of a TileLink device in its low FIRRTL.
+  *
+  * The device decodes the address of the A channel by comparing it (or a part of it) with constants:
+  * the monitors and the crossbar compare the whole address with the base address of the device, and the
+  * register router compares the word index (the address shifted right by the bus width) with the index of
+  * every register. Expressions are followed through nodes and connections to a signal that ends in
+  * `a_bits_address`. Every base is combined with every register offset.
+  */
+object TLULAddressMap {
+  private val AddressSuffix = "a_bits_address"
+
+  def apply(circuit: ir.Circuit): Seq[Long] = {
+    val bases = mutable.LinkedHashSet[Long]()
+    val offsets = mutable.LinkedHashSet[Long]()
+    circuit.modules.foreach {
+      case m: ir.Module => findConstants(m, bases, offsets)
+      case _ =>
+    }
+    val addresses =
+      if (bases.isEmpty) offsets.toSeq
+      else bases.toSeq.flatMap(b => b +: offsets.toSeq.filter(_ < alignment(b)).map(b + _))
+    addresses.distinct.sorted
+  }
+
+  /** Offsets below the lowest set bit of the base address can be added to it. */
+  private def alignment(base: Long): Long = if (base == 0) Long.MaxValue else java.lang.Long.lowestOneBit(base)
+
+  private def findConstants(m: ir.Module, bases: mutable.Set[Long], offsets: mutable.Set[Long]): Unit = {
+    // the expression that drives every node and connected signal of the module
+    val drivers = mutable.HashMap[String, ir.Expression]()
+    def collectDrivers(s: ir.Statement): Unit = s match {
+      case ir.DefNode(_, name, value) => drivers(name) = value
+      case ir.Connect(_, loc, expr) => drivers(loc.serialize) = expr
+      case other => other.foreachStmt(collectDrivers)
+    }
+    collectDrivers(m.body)
+
+    // the number of bits that an expression is shifted right from the address, if it is derived from the address
+    val shifts = mutable.HashMap[String, Option[Int]]()
+    def addressShift(e: ir.Expression, depth: Int): Option[Int] = e match {
+      case _ if depth > 64 => None
+      case ref @ (_: ir.Reference | _: ir.SubField) =>
+        val name = ref.serialize
+        if (name.endsWith(AddressSuffix)) {
+          Some(0)
+        } else {
+          shifts.getOrElseUpdate(name, drivers.get(name).flatMap(addressShift(_, depth + 1)))
+        }
+      case ir.DoPrim(PrimOps.Shr, Seq(arg), Seq(n), _) => addressShift(arg, depth + 1).map(_ + n.toInt)
+      case ir.DoPrim(PrimOps.Bits, Seq(arg), Seq(_, lo), _) => addressShift(arg, depth + 1).map(_ + lo.toInt)
+      case ir.DoPrim(PrimOps.Pad | PrimOps.AsUInt | PrimOps.Tail, Seq(arg), _, _) => addressShift(arg, depth + 1)
+      case _ => None
+    }
+
+    def onExpr(e: ir.Expression): Unit = {
+      e.foreachExpr(onExpr)
+      e match {
+        case ir.DoPrim(PrimOps.Eq | PrimOps.Neq | PrimOps.Xor, Seq(a, b), _, _) =>
+          val pair = (a, b) match {
+            case (ir.UIntLiteral(value, _), other) => Some((other, value))
+            case (other, ir.UIntLiteral(value, _)) => Some((other, value))
+            case _ => None
+          }
+          pair.foreach { case (other, value) =>
+            addressShift(other, 0).foreach { shift =>
+              val address = (value << shift).toLong
+              if (shift > 0) offsets += address
+              else if (address != 0) bases += address
+            }
+          }
+        case _ =>
+      }
+    }
+    def onStmt(s: ir.Statement): Unit = {
+      s.foreachStmt(onStmt)
+      s.foreachExpr(onExpr)
+    }
+    onStmt(m.body)
+  }
+}
@@ -5,6 +5,7 @@
 package fuzzing.targets
 
 import chiseltest.simulator._
+import fuzzing.fast.util.Coverage
 import scala.io.StdIn
 
 sealed abstract class Opcode(val value: Byte)
@@ -50,7 +51,12 @@ case class Instruction(opcode: Opcode, address: BigInt = 0, data: BigInt = 0) {
 
 }
 
-class TLULTarget(dut: SimulatorContext, info: TopmoduleInfo) extends FuzzTarget {
+/** @param registerAddresses the register addresses of the design, see [[TLULAddressMap]]
+  * @param inputDictionary   the values that the design compares every input with, see [[fuzzing.pass.ConstantDictionaryAnnotation]]
+  */
+class TLULTarget(dut: SimulatorContext, info: TopmoduleInfo, checkpointBytes: Long = 0, checkpointInterval: Int = 0,
+                 registerAddresses: Seq[Long] = Seq(), inputDictionary: Map[String, Seq[BigInt]] = Map())
+    extends FuzzTarget {
 
   private var TLprefix = "Error";
   for ((input, _) <- info.inputs) {
@@ -66,10 +72,28 @@ class TLULTarget(dut: SimulatorContext, info: TopmoduleInfo) extends FuzzTarget
 
   private var isValid = true
 
+  // signals are resolved once, pokes and peeks on the hot path go through these handles
+  private val assertFailedSignal = dut.getHandle("assert_failed")
+  private val metaResetSignal = dut.getHandle(MetaReset)
+  private val resetSignal = dut.getHandle("reset")
+  private val inputSignals = info.inputs.map { case (n, _) => dut.getHandle(n) }.toArray
+  private val aValid = dut.getHandle(TLprefix + "a_valid")
+  private val aOpcode = dut.getHandle(TLprefix + "a_bits_opcode")
+  private val aSize = dut.getHandle(TLprefix + "a_bits_size")
+  private val aAddress = dut.getHandle(TLprefix + "a_bits_address")
+  private val aData = dut.getHandle(TLprefix + "a_bits_data")
+  private val aMask = dut.getHandle(TLprefix + "a_bits_mask")
+  private val aReady = dut.getHandle(TLprefix + "a_ready")
+  private val dReady = dut.getHandle(TLprefix + "d_ready")
+  private val dValid = dut.getHandle(TLprefix + "d_valid")
+  private val dData = dut.getHandle(TLprefix + "d_bits_data")
+
+  // the simulator checks assert_failed natively if it can, otherwise it is peeked before every cycle
+  private val latchesAssert = dut.setAssertLatch("assert_failed")
+
   private val clock = info.clocks.head
   private def step(): Unit = {
-    val assert_failed = dut.peek("assert_failed") == 1
-    if (assert_failed) {
+    if (!latchesAssert && dut.peekLong(assertFailedSignal) == 1) {
       isValid = false
     }
     dut.step(1)
@@ -84,6 +108,12 @@ class TLULTarget(dut: SimulatorContext, info: TopmoduleInfo) extends FuzzTarget
     
     cycles += 1
   }
+  // folds the assertions latched by the simulator since the last call into `isValid`
+  private def checkAsserts(): Unit = {
+    if (latchesAssert && dut.takeAssertLatch()) {
+      isValid = false
+    }
+  }
   private var cycles:       Long = 0  // cycles number from beginning
   private var resetCycles:  Long = 0
   private var totalTime:    Long = 0  // simulation total time = simulation time + coverage collection time + reset time
@@ -93,23 +123,41 @@ class TLULTarget(dut: SimulatorContext, info: TopmoduleInfo) extends FuzzTarget
   private var mutateTime: Long = 0  // time used for mutation operation
 
   private def setInputsToZero(): Unit = {
-    info.inputs.foreach { case (n, _) => dut.poke(n, 0) }
+    inputSignals.foreach(dut.pokeLong(_, 0))
   }
 
   private def metaReset(): Unit = {
-    dut.poke(MetaReset, 1)
+    dut.pokeLong(metaResetSignal, 1)
     step()
-    dut.poke(MetaReset, 0)
+    dut.pokeLong(metaResetSignal, 0)
     resetCycles += 1
   }
 
   private def reset(): Unit = {
-    dut.poke("reset", 1)
+    dut.pokeLong(resetSignal, 1)
     step()
-    dut.poke("reset", 0)
+    dut.pokeLong(resetSignal, 0)
     resetCycles += 1
   }
 
+  // runs of mutated inputs resume from a checkpoint of their parent's execution
+  private val checkpoints = new PrefixCheckpoints(dut, checkpointBytes, checkpointInterval)
+
+  // the post-reset state is saved once and restored with a memcpy at the start of every later run,
+  // simulators without snapshot support re-simulate the reset every time
+  private var hasResetSnapshot = false
+
+  private def resetDut(): Unit = {
+    if (!(hasResetSnapshot && dut.restore())) {
+      setInputsToZero()
+      metaReset()
+      reset()
+      hasResetSnapshot = dut.snapshot()
+    }
+    // assertions that fire during the reset do not count
+    if (latchesAssert) { dut.takeAssertLatch() }
+  }
+
   private val inputBits = info.inputs.map(_._2).sum
   private val inputSize = scala.math.ceil(inputBits.toDouble / 8.0).toInt
 
@@ -120,12 +168,14 @@ class TLULTarget(dut: SimulatorContext, info: TopmoduleInfo) extends FuzzTarget
     //map(_._2)表示取出tuple中第二个数
   }
 
-  private def getFastCoverage(feedbackCap: Int): Seq[Byte] = {
-    val c = dut.getFastCoverage()
-    // println("Fast:")
-    // c.foreach(println(_)) //debug
-    // c.map(_.toByte)
-    c.map(v => scala.math.min(v, feedbackCap).toByte)
+  // the simulator reports the counters hit by a run, saturated at `feedbackCap`, as (index, count)
+  // entries in this off-heap buffer; one entry per cover point is enough for any run
+  private lazy val coverageSize = dut.getFastCoverageSize()
+  private lazy val coverageBuffer = java.nio.ByteBuffer.allocateDirect(4 * coverageSize)
+
+  private def getFastCoverage(feedbackCap: Int): Coverage = {
+    val n = dut.getSparseFastCoverage(coverageBuffer, feedbackCap)
+    Coverage.fromSparse(coverageBuffer, n, coverageSize)
   }
 
   //NEW CONSTANTS
@@ -134,80 +184,90 @@ class TLULTarget(dut: SimulatorContext, info: TopmoduleInfo) extends FuzzTarget
   //Number of bytes needed for above number of bits
   val OT_TL_DBW = OT_TL_DW >> 3
   //Calculated number x such that 2^x can store above number of bytes
-  val OT_TL_SZW: BigInt = math.ceil(math.log(OT_TL_DBW) / math.log(2)).toInt
+  val OT_TL_SZW: Long = math.ceil(math.log(OT_TL_DBW) / math.log(2)).toInt
   //Represents a mask for those bits which are read in (1 means read the bit, 0 means don't read it in)
   val FULL_MASK = (1 << OT_TL_DBW) - 1
   val DEV_RESPONSE_TIMEOUT = 100
+  val GetOpcode:     Long = TLULOpcodeAChannel.Get.toString.toLong
+  val PutFullOpcode: Long = TLULOpcodeAChannel.PutFull.toString.toLong
   //NEW CONSTANTS
 
-  private def Get(address: BigInt): BigInt = {
-    SendTLULRequest(TLULOpcodeAChannel.Get.toString.toInt, address, 0, OT_TL_SZW, FULL_MASK)
+  private def Get(address: Long): Long = {
+    SendTLULRequest(GetOpcode, address, 0, OT_TL_SZW, FULL_MASK)
     WaitForDeviceResponse()
 
-    val d_data = dut.peek(TLprefix + "d_bits_data")
+    val d_data = dut.peekLong(dData)
     ClearRequest()
     d_data
   }
 
-  private def PutFull(address: BigInt, data: BigInt): Unit = {
-    SendTLULRequest(TLULOpcodeAChannel.PutFull.toString.toInt, address, data, OT_TL_SZW, FULL_MASK)
+  private def PutFull(address: Long, data: Long): Unit = {
+    SendTLULRequest(PutFullOpcode, address, data, OT_TL_SZW, FULL_MASK)
     WaitForDeviceResponse()
     ClearRequest()
   }
 
-  private def SendTLULRequest(opcode: BigInt, address: BigInt, data: BigInt, size: BigInt, mask: BigInt): Unit = {
-    dut.poke(TLprefix + "a_valid", 1)
-    dut.poke(TLprefix + "a_bits_opcode", opcode)
-    dut.poke(TLprefix + "a_bits_size", size)
-    dut.poke(TLprefix + "a_bits_address", address)
-    dut.poke(TLprefix + "a_bits_data", data)
-    dut.poke(TLprefix + "a_bits_mask", mask)
-    dut.poke(TLprefix + "d_ready", 1)
+  private def SendTLULRequest(opcode: Long, address: Long, data: Long, size: Long, mask: Long): Unit = {
+    dut.pokeLong(aValid, 1)
+    dut.pokeLong(aOpcode, opcode)
+    dut.pokeLong(aSize, size)
+    dut.pokeLong(aAddress, address)
+    dut.pokeLong(aData, data)
+    dut.pokeLong(aMask, mask)
+    dut.pokeLong(dReady, 1)
 
     WaitForDeviceReady()
   }
 
   private def WaitForDeviceReady(): Unit = {
     step()
-    WaitForDevice(TLprefix + "a_ready")
+    WaitForDevice(aReady)
   }
   private def WaitForDeviceResponse(): Unit = {
-    WaitForDevice(TLprefix + "d_valid")
+    WaitForDevice(dValid)
   }
-  private def WaitForDevice(port: String): Unit = {
-    var timeout = DEV_RESPONSE_TIMEOUT
-    while (dut.peek(port) == 0) {
-      step()
-      if (timeout == 0) {
+  private def WaitForDevice(port: SignalHandle): Unit = {
+    if (latchesAssert) {
+      // the simulator waits natively, assertions on the way are caught by the latch
+      val r = dut.stepUntil(port, 1, DEV_RESPONSE_TIMEOUT)
+      cycles += r.cycles
+      if (r.timedOut) {
         throw new Exception("TIMEOUT waiting for device")
       }
-      timeout -= 1
+    } else {
+      var timeout = DEV_RESPONSE_TIMEOUT
+      while (dut.peekLong(port) == 0) {
+        step()
+        if (timeout == 0) {
+          throw new Exception("TIMEOUT waiting for device")
+        }
+        timeout -= 1
+      }
     }
   }
 
   private val fuzzInputs = info.inputs.filterNot { case (n, _) => n == MetaReset || n == "reset" }
+  private val fuzzInputSignals = fuzzInputs.map { case (n, _) => dut.getHandle(n) }.toArray
   private def ClearRequest(): Unit = {
-    //fuzzInputs.foreach { case (name, size) => println("'" + name + "'", size.toString, dut.peek(name).toString) }
-    //println("---")
-    fuzzInputs.foreach { case (name, _) => dut.poke(name, 0) }
-    dut.poke(TLprefix + "d_ready", 1)
+    fuzzInputSignals.foreach(dut.pokeLong(_, 0))
+    dut.pokeLong(dReady, 1)
   }
 
-  private def applyInstruction(instruction: Instruction): Unit = {
-    //println("Instruction is: " + instruction.toString)
+  private def applyInstruction(): Unit = {
+    //println("Instruction is: " + Instruction(nextOpcode, nextAddress, nextData).toString)
 
-    instruction.opcode match {
+    nextOpcode match {
       case Wait => {
         step()
         //println("Wait")
       }
       case Read => {
-        val readData = Get(instruction.address)
+        val readData = Get(nextAddress)
         //println("Read: " + readData.toString)
       }
       case Write => {
-        PutFull(instruction.address, instruction.data)
-        //println("Write: " + instruction.data.toString + " to address " + instruction.address.toString)
+        PutFull(nextAddress, nextData)
+        //println("Write: " + nextData.toString + " to address " + nextAddress.toString)
       }
       case _ => {
         //println("Invalid")
@@ -215,37 +275,58 @@ class TLULTarget(dut: SimulatorContext, info: TopmoduleInfo) extends FuzzTarget
     }
   }
 
+  // instruction fields are read into these buffers instead of allocating new arrays per instruction
+  private val opcodeBuffer = new Array[Byte](1)
+  private val addressBuffer = new Array[Byte](4)
+  private val dataBuffer = new Array[Byte](4)
+
+  // the instruction read by the last call to `readInstruction`, kept in fields instead of allocating an `Instruction`
+  private var nextOpcode:  Opcode = Invalid
+  private var nextAddress: Long = 0
+  private var nextData:    Long = 0
+
+  // bytes are sign-extended before they are combined, like the BigInt decoding that this replaces
+  private def littleEndian(bytes: Array[Byte]): Long = {
+    var value = 0L
+    var i = 0
+    while (i < bytes.length) {
+      value |= bytes(i).toLong << (i * 8)
+      i += 1
+    }
+    value
+  }
+
   //VARIABLE SIZE VERSION: Only takes the necessary amount of bytes for the instruction
-  //Returns next instruction, created by taking the next rightmost bits from input steam
-  private def getInstruction(input: java.io.InputStream): (Instruction, Boolean) = {
+  //Reads the next instruction, created by taking the next rightmost bits from input steam
+  //Returns false if the input does not contain another complete instruction
+  private def readInstruction(input: java.io.InputStream): Boolean = {
     val (opcode, readValid): (Opcode, Boolean) = getOpcode(input)
 
     val ADDRESS_SIZE_BYTES = 4
     val DATA_SIZE_BYTES = 4
 
+    nextOpcode = Invalid
+    nextAddress = 0
+    nextData = 0
     if (!readValid) {
-      (Instruction(Invalid), false)
+      false
     } else {
-      var address: BigInt = 0
-      var data:    BigInt = 0
-
       if (opcode == Read || opcode == Write) {
-        val addressBytes: Array[Byte] = input.readNBytes(ADDRESS_SIZE_BYTES)
-        if (addressBytes.length != ADDRESS_SIZE_BYTES) {
-          return (Instruction(Invalid), false)
+        if (input.readNBytes(addressBuffer, 0, ADDRESS_SIZE_BYTES) != ADDRESS_SIZE_BYTES) {
+          return false
         }
-        address = addressBytes.zipWithIndex.map { case (b, i) => BigInt(b) << (i * 8) }.reduce(_ | _)
+        nextAddress = littleEndian(addressBuffer)
       }
 
       if (opcode == Write) {
-        val dataBytes: Array[Byte] = input.readNBytes(DATA_SIZE_BYTES)
-        if (dataBytes.length != ADDRESS_SIZE_BYTES) {
-          return (Instruction(Invalid), false)
+        if (input.readNBytes(dataBuffer, 0, DATA_SIZE_BYTES) != DATA_SIZE_BYTES) {
+          return false
         }
-        data = dataBytes.zipWithIndex.map { case (b, i) => BigInt(b) << (i * 8) }.reduce(_ | _)
+        nextData = littleEndian(dataBuffer)
       }
 
-      (Instruction(opcode, address, data), true)
+      nextOpcode = opcode
+      true
     }
   }
 
@@ -253,13 +334,12 @@ class TLULTarget(dut: SimulatorContext, info: TopmoduleInfo) extends FuzzTarget
   private def getOpcode(input: java.io.InputStream): (Opcode, Boolean) = {
     val OPCODE_SIZE_BYTES = 1
     //Reads in next byte from input stream
-    val opcodeByte: Array[Byte] = input.readNBytes(OPCODE_SIZE_BYTES)
-    if (opcodeByte.length != OPCODE_SIZE_BYTES) {
+    if (input.readNBytes(opcodeBuffer, 0, OPCODE_SIZE_BYTES) != OPCODE_SIZE_BYTES) {
       return (Invalid, false)
     }
 
     //Matches opcodeByte to corresponding opcodes (1-3). (0, 4-255) match to Invalid.
-    val nextOpcode: Opcode = opcodeByte(0) match {
+    val nextOpcode: Opcode = opcodeBuffer(0) match {
       case Wait.value  => Wait
       case Read.value  => Read
       case Write.value => Write
@@ -268,29 +348,40 @@ class TLULTarget(dut: SimulatorContext, info: TopmoduleInfo) extends FuzzTarget
     (nextOpcode, true)
   }
 
+  override def frameBoundaries(input: Array[Byte]): Array[Int] = TLULTarget.frameBoundaries(input)
+
+  override def instructionAddresses: Option[Seq[Long]] = Some(registerAddresses)
+
+  // only the data of writes can be chosen freely, addresses come from `registerAddresses`
+  override def dictionary: Seq[(Int, Array[Byte])] =
+    inputDictionary.getOrElse(TLprefix + "a_bits_data", Seq()).map(v => -1 -> FuzzTarget.littleEndianBytes(v, OT_TL_DBW))
+
   //NEW METHODS
 
-  override def run(input: java.io.InputStream, feedbackCap: Int): (Seq[Byte], Boolean, Long) = {
+  override def run(input: java.io.InputStream, feedbackCap: Int): (Coverage, Boolean, Long) = {
     val start = System.nanoTime()
-    setInputsToZero()
-    metaReset()
-    reset()
-    isValid = true
-    // we only consider coverage _after_ the reset is done!
-    dut.resetCoverage()
+    val resumed = checkpoints.resume(input)
+    if (resumed == null) {
+      resetDut()
+      isValid = true
+      // we only consider coverage _after_ the reset is done!
+      dut.resetCoverage()
+    } else {
+      isValid = resumed.valid
+    }
+    // `cycles - runStartCycles` counts the cycles since the reset, including the ones restored from a checkpoint
+    val runStartCycles = cycles - (if (resumed == null) 0 else resumed.cycles)
 
     val reset_end = System.nanoTime()
 
     //TODO: Set d_ready to be 1, as is done in TLULHostTb initialization?
-    dut.poke(TLprefix + "d_ready", 1)
-
-    var instruction_readValid: (Instruction, Boolean) = getInstruction(input)
-    //Loop if last readValid = true
-    while (instruction_readValid._2) {
-      applyInstruction(instruction_readValid._1)
-      instruction_readValid = getInstruction(input)
-      // print("Instruction: ")
-      // println(instruction_readValid._1.toString)
+    dut.pokeLong(dReady, 1)
+
+    //Loop while complete instructions can be read
+    while (readInstruction(input)) {
+      applyInstruction()
+      checkAsserts()
+      checkpoints.atFrameBoundary(cycles - runStartCycles, isValid)
     }
 
     val startCoverage = System.nanoTime()
@@ -299,7 +390,7 @@ class TLULTarget(dut: SimulatorContext, info: TopmoduleInfo) extends FuzzTarget
     // val stop = StdIn.readInt() //stop for debug
 
     if (!isValid && !acceptInvalid) {
-      c = Seq.fill[Byte](c.length)(0)
+      c = Coverage.empty(c.size())
     }
 
     val end = System.nanoTime()
@@ -310,12 +401,15 @@ class TLULTarget(dut: SimulatorContext, info: TopmoduleInfo) extends FuzzTarget
       mutateTime += start - lastRunEndTime
     }
     lastRunEndTime = end
-    (c, isValid, cycles)
+    (c, isValid, runCycles)
   }
 
   private val acceptInvalid = false
 
   private def ms(i: Long): Long = i / 1000 / 1000
+  // what running all inputs from the reset would have taken: the simulated cycles plus the ones restored from checkpoints
+  private def runCycles: Long = cycles + checkpoints.skippedCycles
+
   override def finish(verbose: Boolean): Unit = {
     dut.finish()
     if (verbose) {
@@ -326,6 +420,34 @@ class TLULTarget(dut: SimulatorContext, info: TopmoduleInfo) extends FuzzTarget
       println(s"Total time for mutate: ${ms(mutateTime)}ms (${mutateTime.toDouble / (totalTime+mutateTime).toDouble * 100.0}%)")
       val MHz = cycles.toDouble * 1000.0 / totalTime.toDouble
       println(s"$MHz MHz")
+      checkpoints.printStats()
+    }
+  }
+}
+
+object TLULTarget {
+
+  /** Offsets in `input` at which the instructions start, followed by the end of the last complete instruction.
+    * Instructions are decoded like `TLULTarget.run` reads them: an opcode byte, followed by an address for reads
+    * and writes and by data for writes.
+    */
+  def frameBoundaries(input: Array[Byte]): Array[Int] = {
+    val bounds = Array.newBuilder[Int]
+    bounds += 0
+    var offset = 0
+    var complete = true
+    while (complete && offset < input.length) {
+      val size = input(offset) match {
+        case Read.value  => 5
+        case Write.value => 9
+        case _           => 1
+      }
+      complete = offset + size <= input.length
+      if (complete) {
+        offset += size
+        bounds += offset
+      }
     }
+    bounds.result()
   }
 }
@@ -0,0 +1,100 @@
+package fuzzing.targets
+
+import java.io.File
+import scala.io.Source
+
+/** Reads the YAML seed templates in `template_seeds/YAML` into TileLink instructions, so that seeds can be
+  * generated in memory instead of with `seed_composer.py`.
+  *
+  * A template is a list of instructions with an `opcode` (`wait`, `read` or `write`), an `addr` for reads
+  * and writes, `data` for writes and an optional `repeat` count, e.g.
+  * {{{
+  * - {opcode: write, addr: 0x10016074, data: 0x82}
+  * - opcode: wait
+  *   repeat: 8
+  * }}}
+  * Only this subset of YAML is supported. The instructions are encoded like the default (constant opcode,
+  * variable size, little endian) configuration of `seed_composer.py`.
+  */
+object TLULTemplates {
+
+  /** Returns the bytes of the seed described by the template in `file`. */
+  def seed(file: File): Array[Byte] = instructions(file).flatMap(_.toByteArray).toArray
+
+  /** Returns the seeds of all `.yml` and `.yaml` templates in a directory (or of a single template file) by file name. */
+  def seeds(fileOrDir: File): Seq[(String, Array[Byte])] = {
+    val files =
+      if (fileOrDir.isDirectory) fileOrDir.listFiles().filter(f => f.getName.endsWith(".yml") || f.getName.endsWith(".yaml")).sortBy(_.getName).toSeq
+      else Seq(fileOrDir)
+    files.map(f => f.getName -> seed(f))
+  }
+
+  def instructions(file: File): Seq[Instruction] = {
+    val src = Source.fromFile(file)
+    try { parse(src.getLines().toSeq, file.getName) }
+    finally { src.close() }
+  }
+
+  /** Parses the lines of a template, `name` is used in error messages. */
+  def parse(lines: Seq[String], name: String): Seq[Instruction] = {
+    val entries = Seq.newBuilder[(Int, Map[String, String])]
+    var current: Option[(Int, Map[String, String])] = None
+    lines.zipWithIndex.foreach { case (rawLine, i) =>
+      val lineNo = i + 1
+      val line = rawLine.takeWhile(_ != '#').trim
+      if (line.isEmpty || line == "---" || line == "...") {
+        // comments, empty lines and document markers
+      } else if (line.startsWith("-")) {
+        current.foreach(entries += _)
+        current = Some(lineNo -> fields(line.drop(1).trim, name, lineNo))
+      } else {
+        // continuation of a block mapping
+        val (entryLine, entry) = current.getOrElse(throw new RuntimeException(s"$name:$lineNo: expected a list entry, not `$line`"))
+        current = Some(entryLine -> (entry ++ fields(line, name, lineNo)))
+      }
+    }
+    current.foreach(entries += _)
+    entries.result().flatMap { case (lineNo, entry) => toInstructions(entry, name, lineNo) }
+  }
+
+  private def fields(text: String, name: String, lineNo: Int): Map[String, String] = {
+    val body = if (text.startsWith("{")) {
+      require(text.endsWith("}"), s"$name:$lineNo: unterminated mapping `$text`")
+      text.substring(1, text.length - 1)
+    } else {
+      text
+    }
+    body.split(',').map(_.trim).filter(_.nonEmpty).map { field =>
+      val colon = field.indexOf(':')
+      require(colon > 0, s"$name:$lineNo: expected `key: value`, not `$field`")
+      field.take(colon).trim -> field.drop(colon + 1).trim
+    }.toMap
+  }
+
+  private def toInstructions(entry: Map[String, String], name: String, lineNo: Int): Seq[Instruction] = {
+    def number(key: String): BigInt = {
+      val value = entry.getOrElse(key, throw new RuntimeException(s"$name:$lineNo: the ${entry("opcode")} instruction requires an $key field"))
+      val digits = value.replace("_", "").toLowerCase
+      val n =
+        try {
+          if (digits.startsWith("0x")) BigInt(digits.drop(2), 16)
+          else if (digits.startsWith("0o")) BigInt(digits.drop(2), 8)
+          else if (digits.startsWith("0b")) BigInt(digits.drop(2), 2)
+          else BigInt(digits)
+        } catch {
+          case _: NumberFormatException => throw new RuntimeException(s"$name:$lineNo: $key is not a number: `$value`")
+        }
+      require(n >= 0 && n.bitLength <= 32, s"$name:$lineNo: $key does not fit into 4 bytes: `$value`")
+      n
+    }
+    val opcode = entry.getOrElse("opcode", throw new RuntimeException(s"$name:$lineNo: all instructions require an opcode field"))
+    val instr = opcode match {
+      case "wait"  => Instruction(Wait)
+      case "read"  => Instruction(Read, number("addr"))
+      case "write" => Instruction(Write, number("addr"), number("data"))
+      case other   => throw new RuntimeException(s"$name:$lineNo: invalid opcode `$other`")
+    }
+    val repeat = entry.get("repeat").map(_.toInt).getOrElse(1)
+    Seq.fill(repeat)(instr)
+  }
+}
@@ -1,10 +1,12 @@
 package fuzzing
 
 import firrtl.stage.FirrtlFileAnnotation
+import fuzzing.fast.ModelThreads
 import fuzzing.targets.FIRRTLHandler
 import org.scalatest.flatspec.AnyFlatSpec
 
 import java.io.ByteArrayInputStream
+import scala.util.Random
 
 class RfuzzTargetTests extends AnyFlatSpec {
   behavior of "RfuzzTarget"
@@ -14,9 +16,36 @@ class RfuzzTargetTests extends AnyFlatSpec {
   it should "execute a single input" in {
     val fuzzer = FIRRTLHandler.firrtlToTarget(target, "test_run_dir/rfuzz", Seq(FirrtlFileAnnotation("test/resources/fuzzing/TLI2C.fir")))
     val input = Array(0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0).map(_.toByte)
-    val (coverage, _) = fuzzer.run(new ByteArrayInputStream(input), 1)
+    val (coverage, _, _) = fuzzer.run(new ByteArrayInputStream(input), 1)
     println(coverage)
     fuzzer.finish()
   }
 
+  it should "run the same input on a multithreaded model every time like on the first run" in {
+    // every run starts from the reset, which a multithreaded model cannot restore from a snapshot
+    val fuzzers = FIRRTLHandler.firrtlToTargetsOnCores(target, "test_run_dir/rfuzz_threads", 2,
+      Seq(FirrtlFileAnnotation("test/resources/fuzzing/TLI2C.fir"), ModelThreads(2)))
+    assert(fuzzers.length == 1)
+    val fuzzer = fuzzers.head
+    val random = new Random(0)
+    // runs of different lengths leave the model after an odd as well as after an even number of evaluations
+    val inputs = Seq(333, 1000, 77).map(n => Array.fill(n)(random.nextInt(256).toByte))
+    var cycles = 0L
+    val firstRuns = inputs.map { input =>
+      val (coverage, valid, after) = fuzzer.run(new ByteArrayInputStream(input), 255)
+      val run = (coverage.getCoverPoints.toSeq, valid, after - cycles)
+      cycles = after
+      run
+    }
+    (0 until 3).foreach { _ =>
+      inputs.zip(firstRuns).foreach { case (input, (coverage, valid, runCycles)) =>
+        val (c, v, after) = fuzzer.run(new ByteArrayInputStream(input), 255)
+        assert(c.getCoverPoints.toSeq == coverage)
+        assert(v == valid)
+        assert(after - cycles == runCycles)
+        cycles = after
+      }
+    }
+    fuzzer.finish()
+  }
 }
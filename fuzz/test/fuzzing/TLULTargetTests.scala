@@ -26,7 +26,7 @@ class TLULTargetTests extends AnyFlatSpec {
     val fuzzer = FIRRTLHandler.firrtlToTarget(target, "test_run_dir/TLUL_unit_test", FIRRTL)
     //21 bytes required to provide a complete TLI2C input (without HWF Grammar)
     val input = Array(1, 3, 0, 0, 0, 2, 3, 0, 0, 0, 2, 0, 0, 0, 2).map(_.toByte)
-    val (coverage, _) = fuzzer.run(new ByteArrayInputStream(input), 1)
+    val (coverage, _, _) = fuzzer.run(new ByteArrayInputStream(input), 1)
     println(coverage)
     fuzzer.finish()
   }
@@ -57,7 +57,7 @@ class TLULTargetTests extends AnyFlatSpec {
     val c = Instruction(Read, addr).toByteArray
     val input = a ++ a ++ b ++ b ++ c ++ offsets.map(o => Instruction(Read, addr + o).toByteArray).reduce(_ ++ _)
 
-    val (coverage, _) = fuzzer.run(new ByteArrayInputStream(input), 1)
+    val (coverage, _, _) = fuzzer.run(new ByteArrayInputStream(input), 1)
     println(coverage)
     fuzzer.finish()
   }
@@ -72,7 +72,7 @@ class TLULTargetTests extends AnyFlatSpec {
     val inputFile = os.pwd / os.RelPath(inputPath)
     val input = os.read.inputStream(inputFile)
 
-    val (coverage, _) = fuzzer.run(input, 255)
+    val (coverage, _, _) = fuzzer.run(input, 255)
     println(coverage)
     fuzzer.finish()
   }
@@ -86,7 +86,7 @@ class TLULTargetTests extends AnyFlatSpec {
     val inputFile = os.pwd / os.RelPath(inputPath)
     val input = os.read.inputStream(inputFile)
 
-    val (coverage, _) = fuzzer.run(input, 255)
+    val (coverage, _, _) = fuzzer.run(input, 255)
     println(coverage)
     fuzzer.finish()
   }
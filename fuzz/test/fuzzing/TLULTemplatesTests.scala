@@ -0,0 +1,42 @@
+package fuzzing
+
+import fuzzing.targets.{Instruction, Read, TLULTemplates, Wait, Write}
+import org.scalatest.flatspec.AnyFlatSpec
+
+import java.io.File
+import java.nio.file.Files
+
+class TLULTemplatesTests extends AnyFlatSpec {
+  behavior of "TLULTemplates"
+
+  val TemplateSeeds = new File("src/fuzzing/template_seeds")
+
+  it should "generate the same seeds as the checked-in binary seeds" in {
+    val seeds = TLULTemplates.seeds(new File(TemplateSeeds, "YAML"))
+    assert(seeds.map(_._1) == Seq("TLI2C_longSeed.yml", "TLI2C_shortNoWaitSeed.yml", "TLI2C_shortSeed.yml", "TLI2C_shortWaitSeed.yml"))
+    seeds.foreach { case (name, bytes) =>
+      val binary = new File(TemplateSeeds, "binary/" + name.stripSuffix(".yml") + ".hwf")
+      assert(bytes.sameElements(Files.readAllBytes(binary.toPath)), name)
+    }
+  }
+
+  it should "parse flow and block mappings with repeats" in {
+    val lines = Seq(
+      "---",
+      "# a comment",
+      "- {opcode: write, addr: 0x10016074, data: 0x82}",
+      "- opcode: wait",
+      "  repeat: 3",
+      "- {opcode: read, addr: 0x1001_6000} # the status register"
+    )
+    assert(
+      TLULTemplates.parse(lines, "inline") == Seq(
+        Instruction(Write, 0x10016074L, 0x82),
+        Instruction(Wait),
+        Instruction(Wait),
+        Instruction(Wait),
+        Instruction(Read, 0x10016000L)
+      )
+    )
+  }
+}
@@ -0,0 +1,70 @@
+package fuzzing.fast
+
+import fuzzing.fast.util.Coverage
+import org.scalatest.flatspec.AnyFlatSpec
+
+import java.io.File
+import scala.collection.JavaConverters._
+import scala.util.Random
+
+class CorpusCullTests extends AnyFlatSpec {
+  behavior of "CorpusCull"
+
+  val CovSize = 64
+
+  /** Saves 40 inputs that each cover a few random points, most of them covered by several inputs. */
+  private def syntheticCorpus(): FuzzGuidance = {
+    val guidance =
+      new FuzzGuidance("CorpusCullTests", null, null, new File("test_run_dir/corpus_cull_guidance"), new java.util.Random(0))
+    val random = new Random(0)
+    (0 until 40).foreach { _ =>
+      val bytes = Array.fill(10 + random.nextInt(100))(random.nextInt(256).toByte)
+      val input = new guidance.LinearInput(bytes, bytes.length)
+      // a target reads all bytes of the input, the guidance only keeps the bytes that were read
+      val stream = new guidance.LinearInputStream(input)
+      while (stream.read() >= 0) {}
+      val coverage = new Coverage(CovSize)
+      (0 until 1 + random.nextInt(8)).foreach { _ =>
+        coverage.setAtIndex(random.nextInt(CovSize), (1 + random.nextInt(4)).toByte)
+      }
+      input.coverage = coverage
+      input.cycles = 1 + random.nextInt(1000)
+      guidance.updateSeedCorpus(input)
+    }
+    guidance
+  }
+
+  it should "keep inputs that cover every point of the corpus" in {
+    val guidance = syntheticCorpus()
+    val inputs = guidance.savedInputs.asScala
+    val cull = CorpusCull.compute(guidance.savedInputs)
+
+    val covered = (0 until CovSize).filter(p => inputs.exists(_.coverage.getAtIndex(p) != 0))
+    assert(covered.size == guidance.totalCoverage.getNonZeroCount)
+    (0 until CovSize).foreach { p =>
+      if (covered.contains(p)) {
+        assert(cull.responsible(p) >= 0, s"point $p")
+        assert(inputs(cull.responsible(p)).coverage.getAtIndex(p) != 0, s"point $p")
+      } else {
+        assert(cull.responsible(p) < 0, s"point $p")
+      }
+    }
+    val kept = cull.responsible.filter(_ >= 0).toSet
+    assert(kept.size == cull.numKept)
+    assert(cull.numKept < inputs.size, "the corpus has redundant inputs")
+  }
+
+  it should "hand every covered point to exactly one kept input" in {
+    val guidance = syntheticCorpus()
+    val inputs = guidance.savedInputs.asScala
+    val cull = CorpusCull.compute(guidance.savedInputs)
+    guidance.applyCull(cull)
+
+    assert(inputs.map(_.responsibilities.size).sum == guidance.totalCoverage.getNonZeroCount)
+    inputs.zipWithIndex.foreach { case (input, i) =>
+      assert(input.responsibilities.toArray.forall(p => cull.responsible(p) == i), s"input $i")
+      assert(input.isCulled == input.responsibilities.isEmpty, s"input $i")
+    }
+    assert(inputs.count(!_.isCulled) == cull.numKept)
+  }
+}
@@ -0,0 +1,96 @@
+package fuzzing.fast
+
+import fuzzing.fast.util.Coverage
+import fuzzing.targets.FuzzTarget
+import org.scalatest.flatspec.AnyFlatSpec
+
+import java.io.File
+import scala.util.Random
+
+class InputTrimmerTests extends AnyFlatSpec {
+  behavior of "InputTrimmer"
+
+  /** Runs frames of three bytes: the first byte of a frame below 16 covers that point, a frame that starts
+    * with 0xee makes the run invalid.
+    */
+  class FrameTarget extends FuzzTarget {
+    var cycles: Long = 0
+    override def run(input: java.io.InputStream, feedbackCap: Int): (Coverage, Boolean, Long) = {
+      val coverage = new Coverage(16)
+      var valid = true
+      val bytes = input.readAllBytes()
+      (0 until bytes.length / 3).foreach { f =>
+        val b = bytes(3 * f) & 0xff
+        if (b < 16) { coverage.setAtIndex(b, math.min((coverage.getAtIndex(b) & 0xff) + 1, feedbackCap).toByte) }
+        if (b == 0xee) { valid = false }
+        cycles += 1
+      }
+      (coverage, valid, cycles)
+    }
+    override def frameBoundaries(input: Array[Byte]): Array[Int] = (0 to input.length / 3).map(_ * 3).toArray
+    override def finish(verbose: Boolean): Unit = {}
+  }
+
+  /** 200 frames, most of which cover nothing or points that other frames cover as well. */
+  private def randomInput(random: Random, valid: Boolean): Array[Byte] = {
+    val bytes = Array.fill(3 * 200)(random.nextInt(256).toByte)
+    (0 until 200).foreach { f =>
+      if (bytes(3 * f) == 0xee.toByte) { bytes(3 * f) = 0 }
+    }
+    if (!valid) { bytes(3 * 150) = 0xee.toByte }
+    bytes
+  }
+
+  it should "return a shorter input that is as valid as the original and covers the same points" in {
+    val random = new Random(0)
+    val target = new FrameTarget
+    val trimmer = new InputTrimmer(target, 255, 1000)
+    Seq(true, false, true, false).foreach { valid =>
+      val input = randomInput(random, valid)
+      val (coverage, runValid, cycles) = target.run(new java.io.ByteArrayInputStream(input), 255)
+      assert(runValid == valid)
+
+      val (trimmed, cycleNum) = trimmer.trim(input, valid, coverage, cycles)
+      assert(trimmed.nonEmpty)
+      val t = trimmed.get
+      assert(t.bytes.length < input.length)
+      assert(t.bytes.length % 3 == 0, "only whole frames are removed")
+      assert(cycleNum == target.cycles)
+
+      // a run of the trimmed input reproduces what the trimmer reports
+      val (trimmedCoverage, trimmedValid, after) = target.run(new java.io.ByteArrayInputStream(t.bytes), 255)
+      assert(trimmedValid == valid)
+      assert(trimmedCoverage.coversSamePoints(coverage))
+      assert(t.coverage.coversSamePoints(coverage))
+      assert(t.cycles == after - cycleNum)
+    }
+    assert(trimmer.trimmedInputs == 4)
+  }
+
+  it should "not credit the current parent with the trimmed input" in {
+    val guidance =
+      new FuzzGuidance("InputTrimmerTests", null, null, new File("test_run_dir/trimmer_guidance"), new java.util.Random(0))
+    val random = new Random(1)
+    val target = new FrameTarget
+    val saved = Seq.fill(2) {
+      val bytes = randomInput(random, valid = true)
+      val input = new guidance.LinearInput(bytes, bytes.length)
+      val stream = new guidance.LinearInputStream(input)
+      val (coverage, runValid, cycles) = target.run(stream, 255)
+      input.coverage = coverage
+      input.isValid = runValid
+      input.cycles = cycles
+      guidance.updateSeedCorpus(input)
+      input
+    }
+    val parent = guidance.savedInputs.get(guidance.currentParentInputIdx)
+    val offspring = parent.offspring
+
+    val original = saved.last
+    val (trimmed, _) = new InputTrimmer(target, 255, 1000).trim(original.toByteArray, original.isValid, original.coverage, 0)
+    guidance.trimmed(original, trimmed.get.bytes, trimmed.get.coverage, trimmed.get.cycles)
+    assert(parent.offspring == offspring)
+    assert(original.isCulled)
+    assert(guidance.savedInputs.size == 3)
+  }
+}
@@ -0,0 +1,31 @@
+package fuzzing.fast
+
+import org.scalatest.flatspec.AnyFlatSpec
+
+import java.io.File
+
+class LinearInputTests extends AnyFlatSpec {
+  behavior of "LinearInput"
+
+  private val guidance =
+    new FuzzGuidance("LinearInputTests", null, null, new File("test_run_dir/linear_input_guidance"), new java.util.Random(0))
+
+  it should "splice a prefix of itself with the suffix of its partner at the same offset" in {
+    val random = new java.util.Random(0)
+    // the parent is longer than its partner, so most cuts lie past the end of the partner
+    val parent = new guidance.LinearInput(Array.tabulate[Byte](64)(_.toByte), 64)
+    val partner = new guidance.LinearInput(Array.fill[Byte](16)(-1), 16)
+    (0 until 1000).foreach { _ =>
+      val child = parent.splice(random, partner).asInstanceOf[guidance.LinearInput]
+      val bytes = child.iterator()
+      val data = Array.fill(child.size())(bytes.next().toByte)
+      val cut = data.indexWhere(_ == -1) match {
+        case -1 => data.length
+        case i => i
+      }
+      assert(data.take(cut).sameElements(parent.values.take(cut)))
+      assert(data.drop(cut).sameElements(partner.values.drop(cut)))
+      assert(data.length == math.max(cut, partner.size()))
+    }
+  }
+}
@@ -0,0 +1,94 @@
+package fuzzing.fast
+
+import firrtl.stage.FirrtlFileAnnotation
+import fuzzing.targets.{FIRRTLHandler, RfuzzTarget}
+import org.scalatest.flatspec.AnyFlatSpec
+
+import java.io.File
+import scala.util.Random
+
+class PrefixCheckpointsTests extends AnyFlatSpec {
+  behavior of "PrefixCheckpoints"
+
+  val FIRRTL = Seq(FirrtlFileAnnotation("test/resources/fuzzing/TLI2C.fir"))
+  // a checkpoint after every batch of frames that a run shares with its parent
+  val EveryBatch = CheckpointInterval(1)
+
+  private val guidance =
+    new FuzzGuidance("PrefixCheckpointsTests", null, null, new File("test_run_dir/checkpoints_guidance"), new java.util.Random(0))
+
+  /** An input mutated from the favored saved input `parentId`, sharing its first `sharedPrefix` bytes. */
+  private def child(bytes: Array[Byte], parentId: Int, sharedPrefix: Int): java.io.InputStream = {
+    val input = new guidance.LinearInput(bytes, bytes.length)
+    input.parentId = parentId
+    input.parentFavored = true
+    input.firstMutatedOffset = sharedPrefix
+    new guidance.LinearInputStream(input)
+  }
+
+  private def fresh(bytes: Array[Byte]): java.io.InputStream =
+    new guidance.LinearInputStream(new guidance.LinearInput(bytes, bytes.length))
+
+  it should "report the same coverage and cycles for a resumed run as for a run from reset" in {
+    val target = FIRRTLHandler
+      .firrtlToTarget("rfuzz", "test_run_dir/rfuzz_checkpoints", FIRRTL :+ EveryBatch)
+      .asInstanceOf[RfuzzTarget]
+    val checkpoints = target.checkpoints
+    val random = new Random(0)
+    val parent = Array.fill(4000)(random.nextInt(256).toByte)
+    val input = parent.clone()
+    input(3500) = (input(3500) ^ 0xff).toByte
+
+    // the first run simulates the reset and snapshots it, cycles are only compared between later runs
+    var (_, _, cycles) = target.run(fresh(parent), 255)
+    // every feedback cap starts with a parent without checkpoints
+    Seq(255, 4).zipWithIndex.foreach { case (cap, parentId) =>
+      val (full, fullValid, afterFull) = target.run(fresh(input), cap)
+      val fullCycles = afterFull - cycles
+
+      // saves the checkpoints of the shared prefix while running it from the reset
+      val (saving, savingValid, afterSaving) = target.run(child(input, parentId, 3500), cap)
+      assert(saving.getCoverPoints.sameElements(full.getCoverPoints), s"cap = $cap")
+      assert(savingValid == fullValid)
+      assert(afterSaving - afterFull == fullCycles)
+      assert(checkpoints.cachedCount > 0)
+
+      val hits = checkpoints.hits
+      val skipped = checkpoints.skippedCycles
+      val (resumed, resumedValid, afterResumed) = target.run(child(input, parentId, 3500), cap)
+      assert(checkpoints.hits == hits + 1, "the run did not resume from a checkpoint")
+      assert(checkpoints.skippedCycles > skipped)
+      assert(resumed.getCoverPoints.sameElements(full.getCoverPoints), s"cap = $cap")
+      assert(resumedValid == fullValid)
+      // the cost of an input does not depend on whether its prefix was simulated or restored
+      assert(afterResumed - afterSaving == fullCycles)
+      cycles = afterResumed
+    }
+    target.finish()
+  }
+
+  it should "evict the least recently used checkpoints to stay within its memory" in {
+    val capacity = 1L << 20
+    val target = FIRRTLHandler
+      .firrtlToTarget("rfuzz", "test_run_dir/rfuzz_checkpoints_lru", FIRRTL ++ Seq(EveryBatch, CheckpointMemory(1)))
+      .asInstanceOf[RfuzzTarget]
+    val checkpoints = target.checkpoints
+    val random = new Random(1)
+    var parentId = -1
+    var bytes = Array.emptyByteArray
+    while (checkpoints.evictions == 0 && parentId < 2000) {
+      parentId += 1
+      bytes = Array.fill(8000)(random.nextInt(256).toByte)
+      target.run(child(bytes, parentId, bytes.length), 255)
+      assert(checkpoints.cachedBytes <= capacity)
+    }
+    assert(checkpoints.evictions > 0, "the checkpoints never filled their memory")
+
+    // the checkpoints of the last parent were used most recently and are still cached
+    val hits = checkpoints.hits
+    target.run(child(bytes, parentId, bytes.length), 255)
+    assert(checkpoints.hits == hits + 1)
+    assert(checkpoints.cachedBytes <= capacity)
+    target.finish()
+  }
+}
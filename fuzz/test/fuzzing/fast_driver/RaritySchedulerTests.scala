@@ -0,0 +1,27 @@
+package fuzzing.fast
+
+import org.scalatest.flatspec.AnyFlatSpec
+
+import java.io.File
+
+class RaritySchedulerTests extends AnyFlatSpec {
+  behavior of "RarityScheduler"
+
+  private val guidance =
+    new FuzzGuidance("RaritySchedulerTests", null, null, new File("test_run_dir/rarity_guidance"), new java.util.Random(0))
+
+  it should "only pick inputs that were not culled when no input has a weight" in {
+    val scheduler = new RarityScheduler(() => ())
+    // inputs without coverage have no rarity and with it no weight
+    val inputs = (0 until 8).map(i => new guidance.LinearInput(Array(i.toByte), 1))
+    inputs.zipWithIndex.foreach { case (input, i) => scheduler.inputSaved(i, input) }
+    Seq(0, 2, 3, 5, 6).foreach { i =>
+      inputs(i).culled = true
+      scheduler.inputCulled(i)
+    }
+
+    val random = new java.util.Random(0)
+    val picked = Seq.fill(2000)(scheduler.nextParent(random)).toSet
+    assert(picked == Set(1, 4, 7))
+  }
+}
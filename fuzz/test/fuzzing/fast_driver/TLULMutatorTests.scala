@@ -0,0 +1,49 @@
+package fuzzing.fast
+
+import fuzzing.targets.{TLULTarget, TLULTemplates}
+import org.scalatest.flatspec.AnyFlatSpec
+
+import java.io.File
+
+class TLULMutatorTests extends AnyFlatSpec {
+  behavior of "TLULMutator"
+
+  // the registers of TLI2C
+  val Addresses = Array(0x10016000L, 0x10016004L, 0x10016008L, 0x1001600cL, 0x10016010L)
+  val MaxBytes = 1024
+
+  /** Checks that the first `length` bytes of `data` are complete instructions, as `TLULTarget.run` reads them. */
+  private def assertDecodes(data: Array[Byte], length: Int, clue: String): Unit = {
+    val bounds = TLULTarget.frameBoundaries(data.take(length))
+    assert(bounds.last == length, clue)
+    assert(bounds.sameElements(TLULMutator.boundaries(data, length)), clue)
+  }
+
+  it should "splice and havoc inputs into complete instructions" in {
+    val random = new java.util.Random(0)
+    val mutator = new TLULMutator(Addresses, MaxBytes)
+    mutator.setDictionary(Array(Array[Byte](1, 2), Array[Byte](0x7f, 0, 0, 0x80.toByte)))
+
+    // the seeds of the templates and random instructions, children become parents as well
+    val seeds = TLULTemplates.seeds(new File("src/fuzzing/template_seeds/YAML")).map(_._2)
+    val parents = scala.collection.mutable.ArrayBuffer(seeds: _*)
+    (0 until 8).foreach(_ => parents += mutator.generate(random, 1 + random.nextInt(50)))
+    parents.foreach(p => assertDecodes(p, p.length, "parent"))
+
+    (0 until 5000).foreach { _ =>
+      val parent = parents(random.nextInt(parents.size))
+      val child = if (random.nextInt(4) == 0) {
+        val other = parents(random.nextInt(parents.size))
+        mutator.splice(parent, parent.length, other, other.length, random)
+      } else {
+        mutator.havoc(parent.clone(), parent.length, random, 1 + random.nextInt(16))
+      }
+      assertDecodes(child.data, child.length, child.desc)
+      assert(child.length <= math.max(MaxBytes, parent.length), child.desc)
+      assert(child.firstMutated <= child.length, child.desc)
+      val bytes = child.data.take(child.length)
+      if (parents.size < 256) { parents += bytes }
+      else { parents(random.nextInt(parents.size)) = bytes }
+    }
+  }
+}
@@ -0,0 +1,149 @@
+package fuzzing.fast.util
+
+import org.eclipse.collections.impl.set.mutable.primitive.IntHashSet
+import org.scalatest.flatspec.AnyFlatSpec
+
+import java.nio.{ByteBuffer, ByteOrder}
+import scala.util.Random
+
+class CoverageTests extends AnyFlatSpec {
+  behavior of "Coverage"
+
+  // sizes that do and do not fill the last word
+  val sizes = Seq(1, 3, 7, 8, 9, 15, 63, 64, 65, 130, 1003)
+
+  /** The byte-per-counter semantics that the packed words have to reproduce (counters are unsigned). */
+  class ByteCoverage(size: Int) {
+    val points = new Array[Int](size)
+    def hasNewCoverage(other: Array[Byte]): Boolean = other.indices.exists(i => points(i) == 0 && other(i) != 0)
+    def updateBits(other: Array[Byte], newKeys: IntHashSet): Int = {
+      var result = 0
+      other.indices.foreach { i =>
+        val count = other(i) & 0xff
+        if (count != 0) {
+          val after = points(i) | Integer.highestOneBit(count)
+          if (after != points(i)) {
+            result |= Coverage.NEW_COUNTS
+            if (points(i) == 0) {
+              result |= Coverage.NEW_COVERAGE
+              newKeys.add(i)
+            }
+            points(i) = after
+          }
+        }
+      }
+      result
+    }
+    def nonZeroCount: Int = points.count(_ != 0)
+    def bytes: Array[Byte] = points.map(_.toByte)
+  }
+
+  /** Mostly zeros, with counts from the whole unsigned range. */
+  def randomRun(random: Random, size: Int): Array[Byte] = {
+    val density = random.nextInt(4) match {
+      case 0 => 0.01
+      case 1 => 0.1
+      case 2 => 0.5
+      case _ => 1.0
+    }
+    Array.fill(size)(if (random.nextDouble() < density) (1 + random.nextInt(255)).toByte else 0.toByte)
+  }
+
+  def sparse(run: Array[Byte]): Coverage = {
+    val entries = run.indices.filter(run(_) != 0)
+    val buf = ByteBuffer.allocateDirect(4 * math.max(entries.size, 1)).order(ByteOrder.nativeOrder())
+    entries.zipWithIndex.foreach { case (i, k) => buf.putInt(4 * k, (i << 8) | (run(i) & 0xff)) }
+    Coverage.fromSparse(buf, entries.size, run.length)
+  }
+
+  def keys(set: IntHashSet): Set[Int] = set.toArray.toSet
+
+  it should "merge runs like a byte array of counters" in {
+    val random = new Random(1)
+    sizes.foreach { size =>
+      val reference = new ByteCoverage(size)
+      val total = new Coverage(size)
+      (0 until 50).foreach { i =>
+        val run = randomRun(random, size)
+        val cov = if (i % 2 == 0) new Coverage(run) else sparse(run)
+        assert(cov.getNonZeroCount == run.count(_ != 0), s"size $size")
+        assert(total.hasNewCoverage(cov) == reference.hasNewCoverage(run), s"size $size")
+        assert(cov.computeNewCoverage(total).toArray.toSet == run.indices.filter(j => run(j) != 0 && reference.points(j) == 0).toSet)
+
+        val expectedKeys = new IntHashSet()
+        val expected = reference.updateBits(run, expectedKeys)
+        val newKeys = new IntHashSet()
+        assert(total.updateBits(cov, newKeys) == expected, s"size $size")
+        assert(keys(newKeys) == keys(expectedKeys), s"size $size")
+        assert(total.getCoverPoints.sameElements(reference.bytes), s"size $size")
+        assert(total.getNonZeroCount == reference.nonZeroCount, s"size $size")
+      }
+    }
+  }
+
+  it should "merge atomically like a byte array of counters" in {
+    val random = new Random(2)
+    sizes.foreach { size =>
+      val reference = new ByteCoverage(size)
+      val total = new Coverage(size)
+      (0 until 50).foreach { _ =>
+        val run = randomRun(random, size)
+        val expectedKeys = new IntHashSet()
+        val expected = reference.updateBits(run, expectedKeys)
+        val newKeys = new IntHashSet()
+        assert(total.updateBitsAtomic(sparse(run), newKeys) == expected, s"size $size")
+        assert(keys(newKeys) == keys(expectedKeys), s"size $size")
+        assert(total.getCoverPoints.sameElements(reference.bytes), s"size $size")
+        assert(total.getNonZeroCount == reference.nonZeroCount, s"size $size")
+      }
+    }
+  }
+
+  it should "visit all counters merged into a sparse map" in {
+    val random = new Random(4)
+    sizes.foreach { size =>
+      val reference = new ByteCoverage(size)
+      // only remembers the words of its first run, later runs have to extend the list
+      val total = sparse(randomRun(random, size))
+      reference.updateBits(total.getCoverPoints, new IntHashSet())
+      val atomic = Coverage.empty(size)
+      atomic.updateBitsAtomic(total, null)
+      (0 until 20).foreach { _ =>
+        val run = randomRun(random, size)
+        reference.updateBits(run, new IntHashSet())
+        total.updateBits(sparse(run), null)
+        atomic.updateBitsAtomic(sparse(run), null)
+      }
+      val expected = reference.points.indices.filter(reference.points(_) != 0).toSet
+      Seq(total, atomic).foreach { cov =>
+        val visited = new IntHashSet()
+        cov.forEachNonZero(i => visited.add(i))
+        assert(keys(visited) == expected, s"size $size")
+        assert(cov.computeNewCoverage(new Coverage(size)).toArray.toSet == expected, s"size $size")
+        val collected = new IntHashSet()
+        cov.collectNewCoverage(new Coverage(size), collected)
+        assert(keys(collected) == expected, s"size $size")
+        val shared = ByteBuffer.allocateDirect((size + 7) / 8 * 8)
+        cov.updateBitsShared(shared)
+        assert(Coverage.getNonZeroCount(shared) == expected.size, s"size $size")
+      }
+    }
+  }
+
+  it should "keep the count of non-zero counters when they are set" in {
+    val random = new Random(3)
+    sizes.foreach { size =>
+      val reference = new Array[Byte](size)
+      val cov = new Coverage(size)
+      (0 until 200).foreach { _ =>
+        val i = random.nextInt(size)
+        val value = if (random.nextBoolean()) 0.toByte else random.nextInt(256).toByte
+        reference(i) = value
+        cov.setAtIndex(i, value)
+        assert(cov.getNonZeroCount == reference.count(_ != 0), s"size $size")
+      }
+      assert(cov.getCoverPoints.sameElements(reference))
+      assert(new Coverage(reference).getNonZeroCount == reference.count(_ != 0))
+    }
+  }
+}
@@ -0,0 +1,58 @@
+package fuzzing.fast.util
+
+import org.scalatest.flatspec.AnyFlatSpec
+
+import scala.collection.mutable.ArrayBuffer
+import scala.util.Random
+
+class FenwickTreeTests extends AnyFlatSpec {
+  behavior of "FenwickTree"
+
+  // whole numbers keep every partial sum exact, a third of the elements has no weight
+  def randomWeights(random: Random, n: Int): Seq[Double] =
+    Seq.fill(n)(if (random.nextInt(3) == 0) 0.0 else random.nextInt(10) + 1.0)
+
+  /** The first element at which the prefix sum exceeds `target`, from the prefix sums of a linear scan. */
+  def linearFind(sums: Seq[Double], target: Double): Int = sums.indexWhere(_ > target)
+
+  it should "sum up the weights of appended elements like a linear scan" in {
+    val random = new Random(0)
+    // a small initial capacity makes the tree grow several times
+    val tree = new FenwickTree(4)
+    Seq(1, 2, 3, 15, 16, 17, 100).foreach { n =>
+      tree.clear()
+      val weights = randomWeights(random, n)
+      weights.zipWithIndex.foreach { case (w, i) => assert(tree.add(w) == i) }
+      assert(tree.size == n)
+      (0 to n).foreach { k =>
+        assert(tree.prefixSum(k) == weights.take(k).sum, s"n = $n, k = $k")
+      }
+      assert(tree.total == weights.sum)
+    }
+  }
+
+  it should "find the element at a prefix sum like a linear scan after weights were set" in {
+    val random = new Random(1)
+    Seq(1, 5, 16, 33, 100).foreach { n =>
+      val tree = new FenwickTree()
+      val weights = ArrayBuffer(randomWeights(random, n): _*)
+      weights.foreach(tree.add)
+      (0 until 3 * n).foreach { _ =>
+        val i = random.nextInt(n)
+        weights(i) = if (random.nextBoolean()) 0.0 else random.nextInt(10).toDouble
+        tree.set(i, weights(i))
+        assert(tree.get(i) == weights(i))
+        assert(tree.total == weights.sum)
+
+        val sums = weights.scanLeft(0.0)(_ + _).tail
+        // every multiple of 0.5 below the total, which includes the targets right at a prefix sum
+        (0 until (2 * weights.sum).toInt).foreach { t =>
+          val found = tree.find(t / 2.0)
+          assert(found == linearFind(sums, t / 2.0), s"n = $n, target = ${t / 2.0}")
+          // elements without weight are never found
+          assert(weights(found) > 0)
+        }
+      }
+    }
+  }
+}
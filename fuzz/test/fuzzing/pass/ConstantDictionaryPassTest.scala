@@ -0,0 +1,75 @@
+package fuzzing.pass
+
+import firrtl.LowFirrtlEmitter
+import firrtl.options.{Dependency, TargetDirAnnotation}
+import firrtl.stage.{FirrtlSourceAnnotation, FirrtlStage, RunFirrtlTransformAnnotation}
+import org.scalatest.flatspec.AnyFlatSpec
+
+class ConstantDictionaryPassTest extends AnyFlatSpec {
+  private val testSrc =
+    """circuit test :
+      |  module child :
+      |    input clock : Clock
+      |    input op : UInt<8>
+      |    output hit : UInt<1>
+      |
+      |    hit <= eq(op, UInt<8>("h5a"))
+      |
+      |  module test :
+      |    input clock : Clock
+      |    input reset : UInt<1>
+      |    input addr : UInt<32>
+      |    input data : UInt<16>
+      |    output out : UInt<1>
+      |    output small : UInt<1>
+      |
+      |    reg count : UInt<8>, clock
+      |    count <= tail(add(count, UInt(1)), 1)
+      |
+      |    inst c of child
+      |    c.clock <= clock
+      |    c.op <= bits(data, 15, 8)
+      |
+      |    node index = bits(addr, 11, 2)
+      |    out <= and(eq(index, UInt(3)), c.hit)
+      |    small <= and(and(lt(data, UInt(100)), eq(count, UInt(7))), eq(reset, UInt(0)))
+      |""".stripMargin
+
+  private val firrtlStage = new FirrtlStage
+  private def dictionary(name: String, src: String): ConstantDictionaryAnnotation = {
+    val annos = Seq(
+      RunFirrtlTransformAnnotation(Dependency(ConstantDictionaryPass)),
+      RunFirrtlTransformAnnotation(Dependency[LowFirrtlEmitter]),
+      TargetDirAnnotation("test_run_dir/" + name),
+      FirrtlSourceAnnotation(src)
+    )
+    val r = firrtlStage.execute(Array(), annos)
+    r.collectFirst { case a: ConstantDictionaryAnnotation => a }.get
+  }
+
+  private val inputWidths = Map("addr" -> 32, "data" -> 16)
+
+  it should "shift the constants of input slices to their position in the input" in {
+    val values = dictionary("ConstantDictionaryPass_should_shift_slices", testSrc).valuesByInput(inputWidths)
+    assert(values("addr").toSet == Set(BigInt(3) << 2))
+  }
+
+  it should "follow inputs into submodules" in {
+    val entries = dictionary("ConstantDictionaryPass_should_follow_submodules", testSrc).entries
+    val op = entries.find(_.signal == "child.op").get
+    assert(op.inputs == Seq("data"))
+    assert(op.slice.contains(("data", 8)))
+    assert(op.values == Seq(BigInt(0x5a)))
+  }
+
+  it should "add the neighbors of constants in orderings" in {
+    val values = dictionary("ConstantDictionaryPass_should_add_neighbors", testSrc).valuesByInput(inputWidths)
+    assert(values("data").toSet == Set(BigInt(0x5a00), BigInt(99), BigInt(100), BigInt(101)))
+  }
+
+  it should "ignore comparisons of signals that do not depend on inputs" in {
+    val entries = dictionary("ConstantDictionaryPass_should_ignore_internal_signals", testSrc).entries
+    assert(!entries.exists(_.values.contains(BigInt(7))), "count does not depend on inputs")
+    assert(!entries.exists(_.inputs.contains("reset")), "reset is not fuzzed")
+  }
+}
@@ -625,14 +625,24 @@ public:
         puts(");\n");
     }
     void visit(AstCoverInc* nodep) override {
+        // Add for sparse getCoverage(): the first hit of a bin since the last reset
+        // appends the bin to __Vcovdirty
+        const string bin = cvtToStr(nodep->declp()->dataDeclThisp()->binNum());
         if (v3Global.opt.threads() > 1) {
-            putns(nodep, "vlSymsp->__Vcoverage[");
-            puts(cvtToStr(nodep->declp()->dataDeclThisp()->binNum()));
-            puts("].fetch_add(1, std::memory_order_relaxed);\n");
+            putns(nodep, "if (VL_UNLIKELY(vlSymsp->__Vcoverage[");
+            puts(bin);
+            puts("].fetch_add(1, std::memory_order_relaxed) == 0)) {\n");
+            puts("const uint32_t __Vslot = vlSymsp->__Vcovdirtyn.fetch_add(1, "
+                 "std::memory_order_relaxed);\n");
+            puts("if (__Vslot < vlSymsp->__Vcovdirtysize) vlSymsp->__Vcovdirty[__Vslot] = " + bin
+                 + ";\n");
+            puts("}\n");
         } else {
-            putns(nodep, "++(vlSymsp->__Vcoverage[");
-            puts(cvtToStr(nodep->declp()->dataDeclThisp()->binNum()));
-            puts("]);\n");
+            putns(nodep, "if (VL_UNLIKELY((vlSymsp->__Vcoverage[");
+            puts(bin);
+            puts("]++) == 0 && vlSymsp->__Vcovdirtyn < vlSymsp->__Vcovdirtysize)) {\n");
+            puts("vlSymsp->__Vcovdirty[vlSymsp->__Vcovdirtyn++] = " + bin + ";\n");
+            puts("}\n");
         }
     }
     void visit(AstDisableFork* nodep) override { putns(nodep, "vlProcess->disableFork();\n"); }
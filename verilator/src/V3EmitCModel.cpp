@@ -213,6 +213,14 @@ class EmitCModel final : public EmitCFunc {
         // Add for fast getCoverage()
         puts("uint32_t* getCovVector();\n");
         puts("uint32_t covVectorSize();\n");
+        // Add for sparse getCoverage()
+        puts("uint32_t* getCovDirtyVector();\n");
+        puts("uint32_t covDirtyCount();\n");
+        puts("void resetCovDirty();\n");
+        puts("void setCovCount(uint32_t index, uint32_t count);\n");
+        // Add for snapshot/restore of the model state
+        puts("void* getStatePtr();\n");
+        puts("size_t stateSize();\n");
 
         // Emit DPI export dispatcher declarations
         {
@@ -480,6 +488,65 @@ class EmitCModel final : public EmitCFunc {
         puts("return sizeof(vlSymsp->__Vcoverage)/4;\n");
         puts("}\n");
 
+        // Add for sparse getCoverage()
+        puts("\n");
+        putns(modp, "uint32_t* " + topClassName() + "::getCovDirtyVector() {\n");
+        puts("return vlSymsp->__Vcovdirty;\n");
+        puts("}\n");
+
+        puts("\n");
+        putns(modp, "uint32_t " + topClassName() + "::covDirtyCount() {\n");
+        puts("const uint32_t n = vlSymsp->__Vcovdirtyn;\n");
+        puts("if (n > vlSymsp->__Vcovdirtysize) return vlSymsp->__Vcovdirtysize;\n");
+        puts("return n;\n");
+        puts("}\n");
+
+        puts("\n");
+        putns(modp, "void " + topClassName() + "::resetCovDirty() {\n");
+        puts("const uint32_t n = covDirtyCount();\n");
+        puts("for (uint32_t i = 0; i < n; ++i) vlSymsp->__Vcoverage[vlSymsp->__Vcovdirty[i]] = 0;\n");
+        puts("vlSymsp->__Vcovdirtyn = 0;\n");
+        puts("}\n");
+
+        // Sets a counter (e.g. when coverage of a restored prefix is replayed), keeping the
+        // dirty list complete
+        puts("\n");
+        putns(modp, "void " + topClassName() + "::setCovCount(uint32_t index, uint32_t count) {\n");
+        puts("if (index >= covVectorSize()) return;\n");
+        puts("if (vlSymsp->__Vcoverage[index] == 0 && count != 0) {\n");
+        puts("const uint32_t slot = vlSymsp->__Vcovdirtyn++;\n");
+        puts("if (slot < vlSymsp->__Vcovdirtysize) vlSymsp->__Vcovdirty[slot] = index;\n");
+        puts("}\n");
+        puts("vlSymsp->__Vcoverage[index] = count;\n");
+        puts("}\n");
+
+        // Add for snapshot/restore: the state is the module instance range of the symbol table,
+        // which ends where the coverage counters start (these are reset separately). A byte copy
+        // of it is only a complete snapshot while that range is a plain block of values, so these
+        // models report a size of 0 and cannot be snapshot:
+        // - tracing: the trace dumper and its activity flags live outside of the range
+        // - events: the triggered events vector lives outside of the range
+        // - classes: instances are heap objects that the range only points to
+        // - mtasks (--threads > 1): the range holds the mtask synchronization counters, while
+        //   the even-cycle flags they are checked against live outside of it
+        const bool stateCopyable = !v3Global.opt.trace() && !v3Global.needTraceDumper()
+                                   && !v3Global.hasEvents() && !v3Global.hasClasses()
+                                   && !v3Global.opt.mtasks();
+        puts("\n");
+        putns(modp, "void* " + topClassName() + "::getStatePtr() {\n");
+        puts("return reinterpret_cast<char*>(vlSymsp) + " + symClassName() + "::__Vstatebegin();\n");
+        puts("}\n");
+
+        puts("\n");
+        putns(modp, "size_t " + topClassName() + "::stateSize() {\n");
+        if (stateCopyable) {
+            puts("return " + symClassName() + "::__Vstateend() - " + symClassName()
+                 + "::__Vstatebegin();\n");
+        } else {
+            puts("return 0;\n");
+        }
+        puts("}\n");
+
         putSectionDelimiter("Invoke final blocks");
         // Forward declarations
         puts("\n");
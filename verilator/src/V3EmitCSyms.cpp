@@ -482,21 +482,34 @@ void EmitCSyms::emitSymHdr() {
     }
 
     puts("\n// MODULE INSTANCE STATE\n");
+    // First and last instance, for snapshot/restore of the model state
+    string firstInstance;
+    string lastInstance;
     for (const auto& i : m_scopes) {
         const AstScope* const scopep = i.first;
         const AstNodeModule* const modp = i.second;
         if (VN_IS(modp, Class)) continue;
         const string name = prefixNameProtect(modp);
         ofp()->printf("%-30s ", name.c_str());
-        putns(scopep, protectIf(scopep->nameDotless(), scopep->protect()) + ";\n");
+        const string instance = protectIf(scopep->nameDotless(), scopep->protect());
+        putns(scopep, instance + ";\n");
+        if (firstInstance.empty()) firstInstance = instance;
+        lastInstance = instance;
     }
 
+    // Coverage must follow the module state: the model snapshots the module state, which
+    // ends where __Vcoverage starts
     if (m_coverBins) {
         puts("\n// COVERAGE\n");
         puts(v3Global.opt.threads() > 1 ? "std::atomic<uint32_t>" : "uint32_t");
         puts(" __Vcoverage[");
         puts(cvtToStr(m_coverBins));
         puts("];\n");
+        // Add for sparse getCoverage(): bins hit since the last resetCovDirty()
+        puts("static constexpr uint32_t __Vcovdirtysize = " + cvtToStr(m_coverBins) + ";\n");
+        puts("uint32_t __Vcovdirty[__Vcovdirtysize];\n");
+        puts(v3Global.opt.threads() > 1 ? "std::atomic<uint32_t>" : "uint32_t");
+        puts(" __Vcovdirtyn{0};\n");
     }
 
     if (v3Global.opt.profPgo()) {
@@ -531,6 +544,9 @@ void EmitCSyms::emitSymHdr() {
 
     puts("\n// METHODS\n");
     puts("const char* name() { return TOP.name(); }\n");
+    // Add for snapshot/restore: byte offsets of the module instance state
+    puts("static size_t __Vstatebegin();\n");
+    puts("static size_t __Vstateend();\n");
 
     if (v3Global.hasEvents()) {
         if (v3Global.assignsEvents()) {
@@ -572,6 +588,25 @@ void EmitCSyms::emitSymHdr() {
     }
     puts("};\n");
 
+    // Add for snapshot/restore: the module instance range of the symbol table, which follows the
+    // members that must not be copied (context, mutexes, vectors, thread pool). It is only a plain
+    // block of values for some configurations, see stateSize() in V3EmitCModel.cpp
+    puts("\n#pragma GCC diagnostic push\n");
+    puts("#pragma GCC diagnostic ignored \"-Winvalid-offsetof\"\n");
+    puts("inline size_t " + symClassName() + "::__Vstatebegin() { return offsetof(" + symClassName()
+         + ", " + firstInstance + "); }\n");
+    const string stateEnd = "offsetof(" + symClassName() + ", " + lastInstance + ") + sizeof("
+                            + symClassName() + "::" + lastInstance + ")";
+    if (m_coverBins) {
+        puts("inline size_t " + symClassName() + "::__Vstateend() { return offsetof("
+             + symClassName() + ", __Vcoverage); }\n");
+        puts("static_assert(offsetof(" + symClassName() + ", __Vcoverage) == " + stateEnd
+             + ", \"__Vcoverage must directly follow the module instance state\");\n");
+    } else {
+        puts("inline size_t " + symClassName() + "::__Vstateend() { return " + stateEnd + "; }\n");
+    }
+    puts("#pragma GCC diagnostic pop\n");
+
     ofp()->putsEndGuard();
     VL_DO_CLEAR(delete m_ofp, m_ofp = nullptr);
 }